@@ -0,0 +1,260 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/// <summary>
+/// Bounded, lock-free queue for many producers and many consumers.
+/// The slots are preallocated in a ring; every slot carries a sequence number which tells
+/// producers and consumers whether the slot is free or filled (D. Vyukov's bounded MPMC queue).
+/// Both ends claim slots with a CAS, so poll() is safe from any thread; the DropOldest_e policy
+/// polls on the producer side.
+/// </summary>
+public class BoundedMpmcQueue<E> {
+
+    /// <summary>
+    /// What offer() does when the queue is full.
+    /// </summary>
+    public enum OverflowPolicy_t {
+        Block_e,        // wait until the consumer made room
+        DropOldest_e,   // remove the oldest element and report it to the OverflowHandler
+        Reject_e        // report the new element to the OverflowHandler and return false
+    }
+
+    /// <summary>
+    /// Called for every element which was dropped or rejected because the queue was full.
+    /// </summary>
+    public interface OverflowHandler<T> {
+        void overflow(T element, boolean rejected);
+    }
+
+    /// <summary>
+    /// Time a blocked producer parks before it checks the queue again.
+    /// </summary>
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+
+    /// <summary>
+    /// Index of the next slot to poll.
+    /// </summary>
+    private final AtomicLong head = new AtomicLong();
+
+    /// <summary>
+    /// Index of the next slot to fill.
+    /// </summary>
+    private final AtomicLong tail = new AtomicLong();
+
+    private final OverflowPolicy_t policy;
+    private volatile OverflowHandler<? super E> overflowHandler = null;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+
+    /// <summary>
+    /// Creates an empty queue. All slots are allocated here, offer() and poll() don't allocate.
+    /// </summary>
+    /// <param name="capacity">maximal number of elements, rounded up to the next power of two</param>
+    /// <param name="policy">what happens when the queue is full</param>
+    public BoundedMpmcQueue(int capacity, OverflowPolicy_t policy) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.policy = policy;
+        this.buffer = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public void setOverflowHandler(OverflowHandler<? super E> handler) {
+        this.overflowHandler = handler;
+    }
+
+    public OverflowPolicy_t getPolicy() {
+        return policy;
+    }
+
+    /// <summary>
+    /// Adds the element according to the overflow policy.
+    /// </summary>
+    /// <returns>true when the element was added; false when it was rejected or the blocked thread was interrupted</returns>
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException();
+
+        while (!tryOffer(element)) {
+            switch (policy) {
+                case Block_e:
+                    if (Thread.currentThread().isInterrupted())
+                        return false;
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                    break;
+
+                case DropOldest_e:
+                    E oldest = poll();
+                    if (oldest != null) {
+                        droppedCount.incrementAndGet();
+                        fireOverflow(oldest, false);
+                    }
+                    break;
+
+                case Reject_e:
+                default:
+                    rejectedCount.incrementAndGet();
+                    fireOverflow(element, true);
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /// <summary>
+    /// Adds the element if there is a free slot. Never blocks and never drops.
+    /// </summary>
+    public boolean tryOffer(E element) {
+        long pos = tail.get();
+        int index;
+        for (;;) {
+            index = (int) pos & mask;
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;   // full
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        buffer.lazySet(index, element);
+        sequences.set(index, pos + 1);     // publishes the element
+
+        enqueuedCount.incrementAndGet();
+        int depth = size();
+        int mark;
+        while (depth > (mark = highWaterMark.get()) && !highWaterMark.compareAndSet(mark, depth)) {
+        }
+        return true;
+    }
+
+    /// <summary>
+    /// Removes and returns the oldest element or null if the queue is empty.
+    /// </summary>
+    public E poll() {
+        long pos = head.get();
+        int index;
+        for (;;) {
+            index = (int) pos & mask;
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1))
+                    break;
+                pos = head.get();
+            } else if (dif < 0) {
+                return null;    // empty
+            } else {
+                pos = head.get();
+            }
+        }
+
+        E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.set(index, pos + capacity);     // frees the slot for the next round
+        return element;
+    }
+
+    /// <summary>
+    /// Returns the oldest element without removing it. With several consumers another one may take it first.
+    /// </summary>
+    public E peek() {
+        long pos = head.get();
+        int index = (int) pos & mask;
+        if (sequences.get(index) == pos + 1)
+            return buffer.get(index);
+        return null;
+    }
+
+    /// <summary>
+    /// Removes every element.
+    /// </summary>
+    public void clear() {
+        while (poll() != null) {
+        }
+    }
+
+    //================
+    // depth counters
+    //================
+
+    /// <summary>
+    /// Current number of elements.
+    /// </summary>
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0)
+            return 0;
+        return (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /// <summary>
+    /// Highest number of elements which were in the queue at the same time.
+    /// </summary>
+    public int getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    /// <summary>
+    /// Number of elements which were added since the queue was created.
+    /// </summary>
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /// <summary>
+    /// Number of elements which were removed by the DropOldest_e policy.
+    /// </summary>
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /// <summary>
+    /// Number of elements which were refused by the Reject_e policy.
+    /// </summary>
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void fireOverflow(E element, boolean rejected) {
+        OverflowHandler<? super E> handler = overflowHandler;
+        if (handler != null)
+            handler.overflow(element, rejected);
+    }
+}
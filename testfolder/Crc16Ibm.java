@@ -0,0 +1,119 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+/// <summary>
+/// CRC-16-IBM (x^16 + x^15 + x^2 + 1), reflected, initial value 0xFFFF, as used in the telegrams.
+/// The crc is kept in the lower 16 bits of an int to avoid the sign extension of short.
+/// update(crc, b) can run byte by byte while a telegram is framed or unshifted;
+/// update(crc, buffer, offset, length) processes 8 bytes per step (slicing-by-8).
+/// A telegram including its own CRC (low byte first) has the residue 0.
+/// </summary>
+public final class Crc16Ibm {
+
+    /// <summary>
+    /// initial value for the crc calculation
+    /// </summary>
+    public static final int INIT = 0xFFFF;
+
+    /// <summary>
+    /// LUT for the byte-wise calculation; TABLES[k] is the crc of a byte followed by k zero bytes.
+    /// </summary>
+    private static final int[][] TABLES = new int[8][256];
+    private static final int[] T0 = TABLES[0];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            T0[i] = crc;
+        }
+        for (int k = 1; k < 8; k++) {
+            for (int i = 0; i < 256; i++) {
+                int prev = TABLES[k - 1][i];
+                TABLES[k][i] = (prev >>> 8) ^ T0[prev & 0xFF];
+            }
+        }
+    }
+
+    private Crc16Ibm() {
+    }
+
+    /// <summary>
+    /// Value of the byte-wise lookup table, e.g. for tests against the original LUT.
+    /// </summary>
+    public static int tableValue(int index) {
+        return T0[index & 0xFF];
+    }
+
+    /// <summary>
+    /// Adds one byte to a running crc.
+    /// </summary>
+    /// <param name="crc">crc of the previous bytes, INIT for the first byte</param>
+    /// <param name="b">next byte</param>
+    /// <returns>crc including b (lower 16 bits)</returns>
+    public static int update(int crc, byte b) {
+        return (crc >>> 8) ^ T0[(crc ^ b) & 0xFF];
+    }
+
+    /// <summary>
+    /// Adds a range of bytes to a running crc, 8 bytes per step.
+    /// </summary>
+    public static int update(int crc, byte[] data, int offset, int length) {
+        int i = offset;
+        final int end = offset + length;
+
+        for (; i + 8 <= end; i += 8) {
+            int x = crc ^ ((data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8));
+            crc = TABLES[7][x & 0xFF]
+                ^ TABLES[6][(x >>> 8) & 0xFF]
+                ^ TABLES[5][data[i + 2] & 0xFF]
+                ^ TABLES[4][data[i + 3] & 0xFF]
+                ^ TABLES[3][data[i + 4] & 0xFF]
+                ^ TABLES[2][data[i + 5] & 0xFF]
+                ^ TABLES[1][data[i + 6] & 0xFF]
+                ^ T0[data[i + 7] & 0xFF];
+        }
+        for (; i < end; i++)
+            crc = (crc >>> 8) ^ T0[(crc ^ data[i]) & 0xFF];
+
+        return crc;
+    }
+
+    /// <summary>
+    /// Same result as update(crc, data, offset, length) with 4 bytes per step.
+    /// For CPUs with small caches: uses half of the tables.
+    /// </summary>
+    public static int updateSlicing4(int crc, byte[] data, int offset, int length) {
+        int i = offset;
+        final int end = offset + length;
+
+        for (; i + 4 <= end; i += 4) {
+            int x = crc ^ ((data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8));
+            crc = TABLES[3][x & 0xFF]
+                ^ TABLES[2][(x >>> 8) & 0xFF]
+                ^ TABLES[1][data[i + 2] & 0xFF]
+                ^ T0[data[i + 3] & 0xFF];
+        }
+        for (; i < end; i++)
+            crc = (crc >>> 8) ^ T0[(crc ^ data[i]) & 0xFF];
+
+        return crc;
+    }
+
+    /// <summary>
+    /// Byte by byte reference implementation.
+    /// </summary>
+    public static int updateBytewise(int crc, byte[] data, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++)
+            crc = (crc >>> 8) ^ T0[(crc ^ data[i]) & 0xFF];
+        return crc;
+    }
+
+    /// <summary>
+    /// crc of the first length bytes of data.
+    /// </summary>
+    public static short calculate(byte[] data, int length) {
+        return (short) update(INIT, data, 0, length);
+    }
+}
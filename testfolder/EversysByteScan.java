@@ -0,0 +1,110 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.SpecialChars_t;
+
+/// <summary>
+/// Searches and shifts the characters of the telegram framing in byte arrays, so the runs between them
+/// can be copied and checksummed in bulk.
+///
+/// indexOf() scans 8 bytes at a time (SWAR, SIMD within a register): a long is read little endian, byte i
+/// of the array is byte i of the long, and (y - 0x0101..01) & ~y & 0x8080..80 with y = x ^ (key in every
+/// byte) sets the high bit of every byte of x which equals key. The borrow can also mark bytes above a
+/// real match, but never below it, so the lowest marked byte is always the first match.
+/// This only wins for the runs between the shift characters of received data (tools/EversysCodecBenchmark:
+/// unshift of random data and text) and only where ByteBuffer.getLong() is a single load (Java 9 and
+/// newer); on Java 8 indexOf() is bytewise. firstControl() and shift() are bytewise: with SWAR they were
+/// slower on the short runs of zeros, shift() on every payload.
+/// </summary>
+public final class EversysByteScan {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /// <summary>
+    /// true = indexOf() reads 8 bytes at a time; false on Java 8, which assembles ByteBuffer.getLong()
+    /// from single bytes.
+    /// </summary>
+    static final boolean SWAR = !System.getProperty("java.specification.version", "1.8").startsWith("1.");
+
+    /// <summary>
+    /// Bytes which are always compared bytewise first: the short runs are found before the 8 byte words
+    /// are set up.
+    /// </summary>
+    private static final int PREFIX = 8;
+
+    private EversysByteScan() {
+    }
+
+    /// <summary>
+    /// Index of the first SOH, EOT or ShiftChar, the bytes which end a run of telegram data in a received
+    /// stream, or to if there is none.
+    /// </summary>
+    public static int firstControl(byte[] data, int from, int to) {
+        byte soh = SpecialChars_t.SOH_e.getData();
+        byte eot = SpecialChars_t.EOT_e.getData();
+        byte shift = SpecialChars_t.ShiftChar_e.getData();
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == soh || b == eot || b == shift)
+                return i;
+        }
+        return to;
+    }
+
+    /// <summary>
+    /// Index of the first byte equal to key, or -1 if there is none.
+    /// </summary>
+    public static int indexOf(byte[] data, int from, int to, byte key) {
+        int i = from;
+        for (int prefixEnd = Math.min(to, from + PREFIX); i < prefixEnd; i++) {
+            if (data[i] == key)
+                return i;
+        }
+        if (SWAR && to - i >= 8) {
+            ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            long pattern = broadcast(key);
+            for (; i + 8 <= to; i += 8) {
+                long found = zeroBytes(words.getLong(i) ^ pattern) & HIGHS;
+                if (found != 0)
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (data[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    /// <summary>
+    /// Writes the bytes with the special characters shifted.
+    /// </summary>
+    /// <param name="out">destination, room for 2 * length bytes after pos</param>
+    /// <returns>index after the last written byte</returns>
+    public static int shift(byte[] data, int offset, int length, byte[] out, int pos) {
+        final int end = offset + length;
+        final byte shiftChar = SpecialChars_t.ShiftChar_e.getData();
+        final byte shiftXor = SpecialChars_t.ShiftXOR_e.getData();
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (EversysFrameEncoder.isSpecialChar(b)) {
+                out[pos++] = shiftChar;
+                out[pos++] = (byte) (b ^ shiftXor);
+            } else {
+                out[pos++] = b;
+            }
+        }
+        return pos;
+    }
+
+    private static long zeroBytes(long y) {
+        return (y - ONES) & ~y;
+    }
+
+    private static long broadcast(byte b) {
+        return (b & 0xFFL) * ONES;
+    }
+}
@@ -0,0 +1,366 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.comm.serial.BoundedMpmcQueue.OverflowPolicy_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Queue_t;
+
+/// <summary>
+/// Delivers the listener callbacks of one EversysSerialComm on an executor instead of the
+/// transmission thread. The events are kept in a bounded queue and delivered one after the other
+/// in the order they were raised; at most one task of this dispatcher runs at a time.
+/// The engine never waits for the listener: when the queue is full a new informational event is dropped
+/// and counted, and isCongested() tells the engine to stop sending new packets until the listener caught up.
+/// The events which finish a packet (sent, ack timeout, nack fail, response timeout, response, dropped
+/// outgoing packet) and the received packets are never dropped: they go to an unbounded overflow queue behind
+/// the bounded one. There are at most a few per packet, and the engine doesn't start new packets while it is
+/// congested. A received packet was already acknowledged when it is raised, so the machine doesn't repeat it.
+/// Without an executor (null) the callbacks are called directly, as before.
+/// </summary>
+public class EversysCallbackDispatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysCallbackDispatcher.class);
+
+    /// <summary>
+    /// Default number of events which may wait for a listener.
+    /// </summary>
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /// <summary>
+    /// Events delivered in one task before the executor thread is given back.
+    /// </summary>
+    private static final int MAX_EVENTS_PER_TASK = 256;
+
+    private enum Kind_t {
+        PacketEvent_e(false),
+        PacketSent_e(true),
+        PacketReceived_e(true),
+        AckTimeout_e(true),
+        NackFail_e(true),
+        ResponseTimeout_e(true),
+        DataSent_e(false),
+        FrameSent_e(false),
+        ResponseReceived_e(true),
+        FramingError_e(false),
+        PacketDropped_e(false);
+
+        /// <summary>
+        /// true = finishes a packet (a caller may wait for it) or is a received packet which was
+        /// already acknowledged; never dropped
+        /// </summary>
+        final boolean terminal;
+
+        Kind_t(boolean terminal) {
+            this.terminal = terminal;
+        }
+    }
+
+    /// <summary>
+    /// One callback; the listener is taken when the event is raised.
+    /// </summary>
+    private static final class Event {
+        final Kind_t kind;
+        final Object listener;
+        final Object subject;
+        final Object detail;
+        final int count;
+        final boolean flag;
+
+        Event(Kind_t kind, Object listener, Object subject, Object detail, int count, boolean flag) {
+            this.kind = kind;
+            this.listener = listener;
+            this.subject = subject;
+            this.detail = detail;
+            this.count = count;
+            this.flag = flag;
+        }
+
+        boolean isTerminal() {
+            return kind.terminal || (kind == Kind_t.PacketDropped_e && ((Queue_t) subject).isOutgoing());
+        }
+    }
+
+    private final Executor executor;
+    private final BoundedMpmcQueue<Event> queue;
+
+    /// <summary>
+    /// Terminal events which didn't fit into queue; delivered after it. While it isn't empty,
+    /// all new terminal events go here too, so the order is kept.
+    /// </summary>
+    private final ConcurrentLinkedQueue<Event> overflow = new ConcurrentLinkedQueue<Event>();
+    private final AtomicInteger overflowSize = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final int congestionLimit;
+    private final Runnable drainedHandler;
+
+    /// <summary>
+    /// true while a delivery task is queued in the executor or running.
+    /// </summary>
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /// <summary>
+    /// Set when isCongested() returned true; drainedHandler is called once the queue is below the limit again.
+    /// </summary>
+    private volatile boolean congestionReported = false;
+
+    private final Runnable deliveryTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverQueued();
+        }
+    };
+
+    /// <summary>
+    /// Creates a dispatcher.
+    /// </summary>
+    /// <param name="executor">runs the deliveries; null = call the listener on the raising thread</param>
+    /// <param name="capacity">maximal number of waiting events, rounded up to the next power of two</param>
+    /// <param name="drainedHandler">called on the executor when the queue is no longer congested, may be null</param>
+    public EversysCallbackDispatcher(Executor executor, int capacity, Runnable drainedHandler) {
+        this.executor = executor;
+        this.queue = new BoundedMpmcQueue<Event>(capacity, OverflowPolicy_t.Reject_e);
+        this.congestionLimit = queue.capacity() - queue.capacity() / 4;
+        this.drainedHandler = drainedHandler;
+    }
+
+    //#region default executor
+    private static final class DefaultExecutorHolder {
+        static final Executor INSTANCE = createDefaultExecutor();
+    }
+
+    /// <summary>
+    /// Executor shared by all engines which were not given one: a virtual thread per task on Java 21+,
+    /// otherwise a cached pool of daemon threads.
+    /// </summary>
+    public static Executor defaultExecutor() {
+        return DefaultExecutorHolder.INSTANCE;
+    }
+
+    private static Executor createDefaultExecutor() {
+        try {
+            // Java 21+; looked up by reflection so the code still runs on older runtimes
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "eversys-callback-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+    //#endregion
+
+    //#region events
+    void packetEvent(PacketEventListener listener, Object sender, PacketEventArgs args) {
+        raise(new Event(Kind_t.PacketEvent_e, listener, args, sender, 0, false));
+    }
+
+    void packetSent(PacketEventListener listener, Packet_t packet) {
+        raise(new Event(Kind_t.PacketSent_e, listener, packet, null, 0, false));
+    }
+
+    void packetReceived(PacketEventListener listener, Packet_t packet) {
+        raise(new Event(Kind_t.PacketReceived_e, listener, packet, null, 0, false));
+    }
+
+    void ackTimeout(PacketEventListener listener, Packet_t packet) {
+        raise(new Event(Kind_t.AckTimeout_e, listener, packet, null, 0, false));
+    }
+
+    void nackFail(PacketEventListener listener, Packet_t packet) {
+        raise(new Event(Kind_t.NackFail_e, listener, packet, null, 0, false));
+    }
+
+    void responseTimeout(PacketEventListener listener, Packet_t packet) {
+        raise(new Event(Kind_t.ResponseTimeout_e, listener, packet, null, 0, false));
+    }
+
+    /// <summary>
+    /// The frame buffer is reused by the engine, so it is copied when the event is queued.
+    /// </summary>
+    void frameSent(FrameSentListener listener, byte[] frame, int length) {
+        raise(new Event(Kind_t.FrameSent_e, listener, executor == null ? frame : copy(frame, length), null, length, false));
+    }
+
+    /// <summary>
+    /// dataSentIntercept() gets an array of the exact length, so the frame is always copied.
+    /// </summary>
+    void dataSent(PacketEventListener listener, byte[] frame, int length) {
+        raise(new Event(Kind_t.DataSent_e, listener, copy(frame, length), null, length, false));
+    }
+
+    void responseReceived(PacketEventListener listener, Packet_t request, Packet_t response) {
+        raise(new Event(Kind_t.ResponseReceived_e, listener, request, response, 0, false));
+    }
+
+    void framingError(PacketEventListener listener, FramingError_t error, int discardedBytes) {
+        raise(new Event(Kind_t.FramingError_e, listener, error, null, discardedBytes, false));
+    }
+
+    void packetDropped(PacketEventListener listener, Queue_t queue, Object packet, boolean rejected) {
+        raise(new Event(Kind_t.PacketDropped_e, listener, queue, packet, 0, rejected));
+    }
+
+    private static byte[] copy(byte[] frame, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(frame, 0, copy, 0, length);
+        return copy;
+    }
+    //#endregion
+
+    //#region state
+    /// <summary>
+    /// true when the queue is more than three quarters full. The engine doesn't start new packets then.
+    /// </summary>
+    public boolean isCongested() {
+        if (getBacklog() < congestionLimit)
+            return false;
+        congestionReported = true;
+        return true;
+    }
+
+    /// <summary>
+    /// Number of events which wait for the listener.
+    /// </summary>
+    public int getBacklog() {
+        return queue.size() + overflowSize.get();
+    }
+
+    /// <summary>
+    /// Highest number of events which waited at the same time.
+    /// </summary>
+    public int getHighWaterMark() {
+        return queue.getHighWaterMark();
+    }
+
+    /// <summary>
+    /// Number of informational events which were not delivered because the queue was full.
+    /// </summary>
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+    //#endregion
+
+    private void raise(Event event) {
+        if (executor == null) {
+            deliver(event);
+            return;
+        }
+        if (overflowSize.get() > 0 || !queue.offer(event)) {
+            if (event.isTerminal()) {
+                overflow.add(event);
+                overflowSize.incrementAndGet();
+            } else {
+                long count = dropped.incrementAndGet();
+                if (count == 1 || count % 1000 == 0)
+                    logger.error("listener too slow, " + count + " callbacks dropped");
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(deliveryTask);
+        } catch (Exception e) {
+            // executor was shut down; the events stay queued until a new event is raised
+            scheduled.set(false);
+            logger.error("cannot dispatch listener callbacks : " + e.toString());
+        }
+    }
+
+    private void deliverQueued() {
+        int delivered = 0;
+        Event event;
+        while (delivered < MAX_EVENTS_PER_TASK && (event = next()) != null) {
+            deliver(event);
+            delivered++;
+        }
+        scheduled.set(false);
+
+        if (!queue.isEmpty() || !overflow.isEmpty())
+            schedule();     // more events or raced with a producer
+
+        if (congestionReported && getBacklog() < congestionLimit) {
+            congestionReported = false;
+            if (drainedHandler != null)
+                drainedHandler.run();
+        }
+    }
+
+    /// <summary>
+    /// Next event in raise order: the bounded queue first, then the overflow.
+    /// </summary>
+    private Event next() {
+        Event event = queue.poll();
+        if (event == null && (event = overflow.poll()) != null)
+            overflowSize.decrementAndGet();
+        return event;
+    }
+
+    private void deliver(Event event) {
+        PacketEventListener listener = event.kind == Kind_t.FrameSent_e ? null : (PacketEventListener) event.listener;
+        try {
+            switch (event.kind) {
+                case PacketEvent_e:
+                    listener.PacketEventFired(event.detail, (PacketEventArgs) event.subject);
+                    break;
+                case PacketSent_e:
+                    listener.packetSent((Packet_t) event.subject);
+                    break;
+                case PacketReceived_e:
+                    listener.packetReceived((Packet_t) event.subject);
+                    break;
+                case AckTimeout_e:
+                    listener.ackTimeout((Packet_t) event.subject);
+                    break;
+                case NackFail_e:
+                    listener.nackFail((Packet_t) event.subject);
+                    break;
+                case ResponseTimeout_e:
+                    listener.responseTimeout((Packet_t) event.subject);
+                    break;
+                case DataSent_e:
+                    listener.dataSentIntercept((byte[]) event.subject);
+                    break;
+                case FrameSent_e:
+                    ((FrameSentListener) event.listener).frameSent((byte[]) event.subject, event.count);
+                    break;
+                case ResponseReceived_e:
+                    ((ResponseListener) listener).responseReceived((Packet_t) event.subject, (Packet_t) event.detail);
+                    break;
+                case FramingError_e:
+                    ((FramingErrorListener) listener).framingError((FramingError_t) event.subject, event.count);
+                    break;
+                case PacketDropped_e:
+                    ((PacketOverflowListener) listener).packetDropped((Queue_t) event.subject, event.detail, event.flag);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            logger.error("listener failed on " + event.kind + " : " + e.toString());
+        }
+    }
+}
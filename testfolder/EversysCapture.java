@@ -0,0 +1,308 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/// <summary>
+/// Binary capture of the raw serial traffic of one port: every chunk written by WriteBuffered() or TryInlineAck()
+/// and every chunk read by ProcessRawData(), with System.nanoTime() and direction.
+///
+/// The records are appended to a memory-mapped file of fixed size; when a record doesn't fit anymore the
+/// next file is started and the oldest file beyond maxFiles is deleted, also the files of earlier runs
+/// with the same name. Recording is one copy into the
+/// mapped buffer under a short lock; the OS writes the pages to disk, also when the process crashes.
+///
+/// File layout (little endian):
+///   header  : magic "EVCAP001" (8), start time ms since 1970 (8), System.nanoTime() at start (8), reserved (8)
+///   records : length n (4), direction (1), System.nanoTime() (8), n bytes
+///   end     : length 0 (the rest of the file is zero)
+/// The length of a record is written last, so a record which was cut off by a crash ends the file.
+/// </summary>
+public class EversysCapture implements Closeable {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysCapture.class);
+
+    public enum Direction_t {
+        Inbound_e( (byte)0 ),      // read from the port
+        Outbound_e( (byte)1 );     // written to the port
+
+        private final byte data;
+
+        private Direction_t(byte data) {
+            this.data = data;
+        }
+
+        public byte getData() {
+            return data;
+        }
+
+        public static Direction_t fromByte(byte data) {
+            return data == 0 ? Inbound_e : Outbound_e;
+        }
+    }
+
+    static final long MAGIC = 0x3130305041435645L;     // "EVCAP001" little endian
+    static final int FILE_HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 13;
+    public static final String FILE_SUFFIX = ".evcap";
+
+    public static final int DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    /// <summary>
+    /// System property with the directory in which EversysSerialComm.Start() opens a capture;
+    /// default is eversys-capture in the home directory, an empty value turns the capture off.
+    /// </summary>
+    public static final String DIRECTORY_PROPERTY = "eversys.capture.dir";
+
+    /// <summary>
+    /// Directory of the always-on capture from DIRECTORY_PROPERTY, null = off.
+    /// </summary>
+    public static File configuredDirectory() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY, new File(System.getProperty("user.home"), "eversys-capture").getPath());
+        return directory.isEmpty() ? null : new File(directory);
+    }
+
+    private final File directory;
+    private final String name;
+    private final int fileSize;
+    private final int maxFiles;
+
+    private final ArrayDeque<File> files = new ArrayDeque<File>();
+    private int fileNumber = 0;
+
+    // guarded by this
+    private RandomAccessFile file = null;
+    private MappedByteBuffer buffer = null;
+    private boolean closed = false;
+
+    private volatile long recordCount = 0;
+    private volatile long byteCount = 0;
+    private volatile long droppedCount = 0;
+
+    /// <summary>
+    /// Opens the first capture file.
+    /// </summary>
+    /// <param name="directory">directory for the files, created if missing</param>
+    /// <param name="name">prefix of the file names, e.g. the port name</param>
+    /// <param name="fileSize">size of one file in bytes</param>
+    /// <param name="maxFiles">number of files which are kept</param>
+    public EversysCapture(File directory, String name, int fileSize, int maxFiles) throws IOException {
+        if (fileSize < FILE_HEADER_SIZE + RECORD_HEADER_SIZE + 64)
+            throw new IllegalArgumentException("file size too small: " + fileSize);
+        if (maxFiles < 1)
+            throw new IllegalArgumentException("maxFiles must be at least 1: " + maxFiles);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+
+        this.directory = directory;
+        this.name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.fileSize = fileSize;
+        this.maxFiles = maxFiles;
+
+        synchronized (this) {
+            // files of earlier runs count for maxFiles; the names start with the time, so they sort by age
+            File[] existing = directory.listFiles();
+            if (existing != null) {
+                Arrays.sort(existing);
+                for (File f : existing) {
+                    if (f.getName().startsWith(this.name + "-") && f.getName().endsWith(FILE_SUFFIX))
+                        files.addLast(f);
+                }
+            }
+            nextFile();
+        }
+        logger.info("eversys capture of " + this.name + " in " + directory.getAbsolutePath() + ": up to " + maxFiles
+                + " files of " + (fileSize >> 10) + " kB, " + (((long) maxFiles * fileSize) >> 20) + " MB");
+    }
+
+    /// <summary>
+    /// Opens a capture with the default file size and number of files.
+    /// </summary>
+    public EversysCapture(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /// <summary>
+    /// Appends a record. Errors are logged and the capture is stopped; the caller is never disturbed.
+    /// </summary>
+    public void record(Direction_t direction, byte[] data, int offset, int length) {
+        long now = System.nanoTime();
+        int size = RECORD_HEADER_SIZE + length;
+        if (size + 4 > fileSize - FILE_HEADER_SIZE) {
+            droppedCount++;
+            return;
+        }
+
+        synchronized (this) {
+            if (closed)
+                return;
+            try {
+                if (buffer.remaining() < size + 4)     // + 4 for the end marker
+                    nextFile();
+
+                int start = buffer.position();
+                buffer.position(start + 4);
+                buffer.put(direction.getData());
+                buffer.putLong(now);
+                buffer.put(data, offset, length);
+                buffer.putInt(start, length);       // commit
+            } catch (IOException | RuntimeException e) {
+                logger.error("eversys capture stopped : " + e.toString());
+                closeFile();
+                closed = true;
+                return;
+            }
+            recordCount++;
+            byteCount += length;
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /// <summary>
+    /// Records which were larger than a file.
+    /// </summary>
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /// <summary>
+    /// Kept capture files of this name, including the ones of earlier runs, oldest first.
+    /// </summary>
+    public synchronized File[] getFiles() {
+        return files.toArray(new File[files.size()]);
+    }
+
+    /// <summary>
+    /// Writes the mapped pages and closes the current file.
+    /// </summary>
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (buffer != null)
+            buffer.force();
+        closeFile();
+    }
+
+    private void nextFile() throws IOException {
+        closeFile();
+
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File next = new File(directory, String.format("%s-%s-%03d%s", name, stamp, fileNumber++ % 1000, FILE_SUFFIX));
+        file = new RandomAccessFile(next, "rw");
+        file.setLength(fileSize);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(System.nanoTime());
+        buffer.putLong(0);
+
+        files.addLast(next);
+        while (files.size() > maxFiles) {
+            File oldest = files.removeFirst();
+            if (!oldest.delete())
+                logger.warn("cannot delete old capture " + oldest);
+        }
+    }
+
+    private void closeFile() {
+        buffer = null;     // unmapped by the GC; the OS writes the dirty pages
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.warn("cannot close capture : " + e.toString());
+            }
+            file = null;
+        }
+    }
+
+    /// <summary>
+    /// Reads the records of one capture file. The record fields are reused by next().
+    /// </summary>
+    public static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+
+        private final long startMillis;
+        private final long startNanos;
+
+        public Direction_t direction;
+        public long nanos;
+        public byte[] data = new byte[256];
+        public int length;
+
+        public Reader(File captureFile) throws IOException {
+            file = new RandomAccessFile(captureFile, "r");
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < FILE_HEADER_SIZE || buffer.getLong() != MAGIC) {
+                file.close();
+                throw new IOException("not an eversys capture: " + captureFile);
+            }
+            startMillis = buffer.getLong();
+            startNanos = buffer.getLong();
+            buffer.getLong();
+        }
+
+        /// <summary>
+        /// Wall clock time when the file was started, ms since 1970.
+        /// </summary>
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /// <summary>
+        /// System.nanoTime() when the file was started; the record times are on the same clock.
+        /// </summary>
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /// <summary>
+        /// Reads the next record into direction, nanos, data and length.
+        /// </summary>
+        /// <returns>false at the end of the file</returns>
+        public boolean next() {
+            if (buffer.remaining() < RECORD_HEADER_SIZE)
+                return false;
+            int n = buffer.getInt();
+            if (n <= 0 || n > buffer.remaining() - RECORD_HEADER_SIZE + 4)
+                return false;
+            direction = Direction_t.fromByte(buffer.get());
+            nanos = buffer.getLong();
+            if (data.length < n)
+                data = new byte[Math.max(n, data.length * 2)];
+            buffer.get(data, 0, n);
+            length = n;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
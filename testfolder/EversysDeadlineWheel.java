@@ -0,0 +1,216 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+/// <summary>
+/// Hashed timing wheel for the protocol deadlines (ack and response timeouts) of one engine, on the
+/// System.nanoTime() clock.
+///
+/// The deadlines are intrusive: a Deadline is a node of a doubly linked list in the bucket of its tick, so
+/// schedule() and cancel() are O(1) and don't allocate. A deadline keeps its exact time in ns; the tick only
+/// selects the bucket. poll() visits the buckets of the ticks which passed since the last call, and
+/// nanosUntilNext() tells the engine when to wake up for the next expiry.
+///
+/// Not thread safe; only used by the thread which runs the engine.
+/// </summary>
+public class EversysDeadlineWheel {
+
+    /// <summary>
+    /// Node of the wheel. Subclassed by the objects which own a deadline, e.g. the packets in flight.
+    /// </summary>
+    public static class Deadline {
+        private long deadlineNanos;
+        private Deadline previous;
+        private Deadline next;
+        private int bucket = -1;
+
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /// <summary>
+        /// System.nanoTime() when the deadline expires; only valid while it is scheduled.
+        /// </summary>
+        public long getDeadline() {
+            return deadlineNanos;
+        }
+    }
+
+    public static final int DEFAULT_BUCKETS = 256;
+    public static final long DEFAULT_TICK_NANOS = 1000000;     // 1 ms
+
+    private final long tickNanos;
+    private final Deadline[] buckets;
+    private final int mask;
+
+    /// <summary>
+    /// System.nanoTime() of tick 0; the ticks are counted from here, so they stay positive.
+    /// </summary>
+    private final long origin;
+
+    /// <summary>
+    /// All buckets of earlier ticks are empty.
+    /// </summary>
+    private long currentTick = 0;
+    private int size = 0;
+
+    /// <summary>
+    /// Creates a wheel with DEFAULT_BUCKETS buckets of DEFAULT_TICK_NANOS.
+    /// </summary>
+    public EversysDeadlineWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_BUCKETS);
+    }
+
+    /// <summary>
+    /// Creates a wheel.
+    /// </summary>
+    /// <param name="tickNanos">time span of one bucket</param>
+    /// <param name="bucketCount">number of buckets, rounded up to a power of two</param>
+    public EversysDeadlineWheel(long tickNanos, int bucketCount) {
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("tick must be positive: " + tickNanos);
+        if (bucketCount < 1 || bucketCount > (1 << 20))
+            throw new IllegalArgumentException("bucket count out of range: " + bucketCount);
+        this.tickNanos = tickNanos;
+        int n = Integer.highestOneBit(bucketCount);
+        if (n < bucketCount)
+            n <<= 1;
+        this.buckets = new Deadline[n];
+        this.mask = n - 1;
+        this.origin = System.nanoTime();
+    }
+
+    /// <summary>
+    /// Number of scheduled deadlines.
+    /// </summary>
+    public int size() {
+        return size;
+    }
+
+    /// <summary>
+    /// Schedules the deadline, or moves it if it is already scheduled.
+    /// </summary>
+    /// <param name="deadline">node</param>
+    /// <param name="deadlineNanos">System.nanoTime() of the expiry</param>
+    public void schedule(Deadline deadline, long deadlineNanos) {
+        if (deadline.isScheduled())
+            unlink(deadline);
+
+        long tick = tickOf(deadlineNanos);
+        if (tick < currentTick)
+            tick = currentTick;     // already overdue: expires with the next poll()
+
+        int bucket = (int) (tick & mask);
+        deadline.deadlineNanos = deadlineNanos;
+        deadline.bucket = bucket;
+        deadline.previous = null;
+        deadline.next = buckets[bucket];
+        if (deadline.next != null)
+            deadline.next.previous = deadline;
+        buckets[bucket] = deadline;
+        size++;
+    }
+
+    /// <summary>
+    /// Removes the deadline; does nothing if it is not scheduled.
+    /// </summary>
+    public void cancel(Deadline deadline) {
+        if (deadline.isScheduled())
+            unlink(deadline);
+    }
+
+    /// <summary>
+    /// Removes and returns one deadline which expired at now, or null if there is none.
+    /// Called in a loop until it returns null.
+    /// </summary>
+    /// <param name="now">System.nanoTime()</param>
+    public Deadline poll(long now) {
+        if (size == 0) {
+            currentTick = Math.max(currentTick, tickOf(now));
+            return null;
+        }
+
+        long nowTick = tickOf(now);
+        if (nowTick - currentTick > mask) {
+            // more than one lap passed: every bucket may hold expired deadlines
+            for (int b = 0; b <= mask; b++) {
+                Deadline expired = pollBucket(b, now);
+                if (expired != null)
+                    return expired;
+            }
+            currentTick = nowTick;
+            return null;
+        }
+
+        while (true) {
+            Deadline expired = pollBucket((int) (currentTick & mask), now);
+            if (expired != null)
+                return expired;
+            if (currentTick == nowTick)
+                return null;
+            currentTick++;
+        }
+    }
+
+    /// <summary>
+    /// Nanoseconds until the earliest deadline expires.
+    /// </summary>
+    /// <param name="now">System.nanoTime()</param>
+    /// <returns>0 = a deadline is expired, Long.MAX_VALUE = no deadline scheduled</returns>
+    public long nanosUntilNext(long now) {
+        if (size == 0)
+            return Long.MAX_VALUE;
+
+        // the first bucket, in tick order, which holds a deadline of its own lap has the earliest one
+        for (long tick = currentTick; tick <= currentTick + mask; tick++) {
+            long earliest = Long.MAX_VALUE;
+            boolean found = false;
+            for (Deadline d = buckets[(int) (tick & mask)]; d != null; d = d.next) {
+                if (tickOf(d.deadlineNanos) <= tick && (!found || d.deadlineNanos - earliest < 0)) {
+                    earliest = d.deadlineNanos;
+                    found = true;
+                }
+            }
+            if (found)
+                return Math.max(0, earliest - now);
+        }
+
+        // all deadlines are more than one lap away
+        long earliest = 0;
+        boolean found = false;
+        for (Deadline head : buckets) {
+            for (Deadline d = head; d != null; d = d.next) {
+                if (!found || d.deadlineNanos - earliest < 0) {
+                    earliest = d.deadlineNanos;
+                    found = true;
+                }
+            }
+        }
+        return Math.max(0, earliest - now);
+    }
+
+    private Deadline pollBucket(int bucket, long now) {
+        for (Deadline d = buckets[bucket]; d != null; d = d.next) {
+            if (now - d.deadlineNanos >= 0) {
+                unlink(d);
+                return d;
+            }
+        }
+        return null;
+    }
+
+    private long tickOf(long nanos) {
+        return Math.max(0, (nanos - origin) / tickNanos);
+    }
+
+    private void unlink(Deadline deadline) {
+        if (deadline.previous != null)
+            deadline.previous.next = deadline.next;
+        else
+            buckets[deadline.bucket] = deadline.next;
+        if (deadline.next != null)
+            deadline.next.previous = deadline.previous;
+        deadline.previous = null;
+        deadline.next = null;
+        deadline.bucket = -1;
+        size--;
+    }
+}
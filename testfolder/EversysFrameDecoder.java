@@ -0,0 +1,252 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.SpecialChars_t;
+
+/// <summary>
+/// Incremental decoder for the SOH ... EOT telegrams.
+/// Bytes can be fed in chunks of any size; the state is kept between the calls.
+/// Every byte is looked at once: shifted characters are reverted and the CRC is calculated
+/// while the telegram is copied into the frame buffer; the runs between SOH, EOT and ShiftChar are found
+/// with EversysByteScan and copied in bulk. No recursion, no buffer shifting.
+/// Not thread safe; one decoder per receiving thread.
+/// </summary>
+public class EversysFrameDecoder {
+
+    /// <summary>
+    /// Framing problems which are reported to the FrameHandler.
+    /// </summary>
+    public enum FramingError_t {
+        Garbage_e,          // bytes outside of a telegram (before SOH) were discarded
+        UnexpectedSoh_e,    // SOH inside a telegram; the unfinished telegram was discarded
+        Oversize_e,         // telegram longer than the maximal frame size; discarded until the next SOH
+        DanglingShift_e     // ShiftChar_e directly before SOH or EOT; the telegram was discarded
+    }
+
+    /// <summary>
+    /// Receives the decoded telegrams and the framing errors. Called on the decoding thread.
+    /// </summary>
+    public interface FrameHandler {
+        /// <summary>
+        /// A complete telegram was received.
+        /// </summary>
+        /// <param name="frame">telegram without SOH and EOT, shifted characters reverted</param>
+        /// <param name="length">number of valid bytes in frame</param>
+        /// <param name="crcResidue">CRC over the whole telegram including the transmitted CRC; 0 = ok</param>
+        /// <returns>buffer for the next telegram (at least the maximal frame size), frame to keep using it, or null to let the decoder allocate one</returns>
+        byte[] frameReceived(byte[] frame, int length, short crcResidue);
+
+        /// <summary>
+        /// Bytes were discarded.
+        /// </summary>
+        /// <param name="error">reason</param>
+        /// <param name="discardedBytes">number of discarded bytes (unshifted telegram bytes or raw bytes outside of a telegram)</param>
+        void framingError(FramingError_t error, int discardedBytes);
+    }
+
+    private enum DecoderState_t {
+        Hunting,    // waiting for SOH
+        InFrame,    // collecting the telegram
+        Shifted,    // last byte was ShiftChar_e
+        Discarding  // telegram too long, waiting for SOH
+    }
+
+    private static final byte SOH = SpecialChars_t.SOH_e.getData();
+    private static final byte EOT = SpecialChars_t.EOT_e.getData();
+    private static final byte SHIFT_CHAR = SpecialChars_t.ShiftChar_e.getData();
+    private static final byte SHIFT_XOR = SpecialChars_t.ShiftXOR_e.getData();
+
+    private final FrameHandler handler;
+    private DecoderState_t state = DecoderState_t.Hunting;
+    private int maxFrameSize;
+    private byte[] frame;
+    private int length = 0;
+    private int crc = Crc16Ibm.INIT;
+
+    /// <summary>
+    /// Bytes which were discarded since the last report.
+    /// </summary>
+    private int discarded = 0;
+
+    private long frameCount = 0;
+    private final long[] errorCounts = new long[FramingError_t.values().length];
+
+    public EversysFrameDecoder(int maxFrameSize, FrameHandler handler) {
+        if (handler == null)
+            throw new IllegalArgumentException("handler must not be null");
+        this.handler = handler;
+        setMaxFrameSize(maxFrameSize);
+    }
+
+    /// <summary>
+    /// Changes the maximal telegram size (without SOH and EOT). An unfinished telegram is discarded.
+    /// </summary>
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < 1)
+            throw new IllegalArgumentException("maxFrameSize out of range: " + maxFrameSize);
+        this.maxFrameSize = maxFrameSize;
+        this.frame = new byte[maxFrameSize];
+        reset();
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /// <summary>
+    /// Discards an unfinished telegram and waits for the next SOH.
+    /// </summary>
+    public void reset() {
+        state = DecoderState_t.Hunting;
+        length = 0;
+        crc = Crc16Ibm.INIT;
+        discarded = 0;
+    }
+
+    /// <summary>
+    /// Number of bytes of the unfinished telegram. 0 when no telegram is being received.
+    /// </summary>
+    public int getBufferedLength() {
+        return length;
+    }
+
+    /// <summary>
+    /// True when a SOH was received but the EOT is still missing.
+    /// </summary>
+    public boolean isInFrame() {
+        return state == DecoderState_t.InFrame || state == DecoderState_t.Shifted;
+    }
+
+    /// <summary>
+    /// Number of telegrams which were given to the FrameHandler.
+    /// </summary>
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /// <summary>
+    /// Number of times the error was reported.
+    /// </summary>
+    public long getErrorCount(FramingError_t error) {
+        return errorCounts[error.ordinal()];
+    }
+
+    /// <summary>
+    /// Feeds received bytes into the decoder.
+    /// </summary>
+    /// <param name="buffer">received bytes</param>
+    /// <param name="offset">index of the first byte</param>
+    /// <param name="count">number of bytes</param>
+    public void decode(byte[] buffer, int offset, int count) {
+        final int end = offset + count;
+        int i = offset;
+        while (i < end) {
+            // fast paths: copy a run of telegram bytes up to the next SOH, EOT or ShiftChar in one step,
+            // skip garbage up to the next SOH; the byte which ends the run is handled below
+            if (state == DecoderState_t.InFrame) {
+                int run = EversysByteScan.firstControl(buffer, i, end) - i;
+                if (run > 0) {
+                    int copy = Math.min(run, maxFrameSize - length);     // the byte after a full frame reports Oversize_e
+                    System.arraycopy(buffer, i, frame, length, copy);
+                    crc = Crc16Ibm.update(crc, buffer, i, copy);
+                    length += copy;
+                    i += copy;
+                    if (i == end)
+                        break;
+                }
+            } else if (state == DecoderState_t.Hunting || state == DecoderState_t.Discarding) {
+                int soh = EversysByteScan.indexOf(buffer, i, end, SOH);
+                int skip = (soh < 0 ? end : soh) - i;
+                discarded += skip;
+                i += skip;
+                if (i == end)
+                    break;
+            }
+
+            byte b = buffer[i++];
+
+            if (b == SOH) {
+                switch (state) {
+                    case InFrame:
+                        discarded += length;
+                        report(FramingError_t.UnexpectedSoh_e);
+                        break;
+                    case Shifted:
+                        discarded += length + 1;
+                        report(FramingError_t.DanglingShift_e);
+                        break;
+                    default:
+                        if (discarded > 0)
+                            report(FramingError_t.Garbage_e);
+                        break;
+                }
+                startFrame();
+                continue;
+            }
+
+            switch (state) {
+                case Hunting:
+                case Discarding:
+                    discarded++;
+                    break;
+
+                case InFrame:
+                    if (b == EOT)
+                        endFrame();
+                    else if (b == SHIFT_CHAR)
+                        state = DecoderState_t.Shifted;
+                    else
+                        append(b);
+                    break;
+
+                case Shifted:
+                    if (b == EOT) {
+                        discarded += length + 1;
+                        report(FramingError_t.DanglingShift_e);
+                        length = 0;
+                        state = DecoderState_t.Hunting;
+                    } else {
+                        state = DecoderState_t.InFrame;
+                        append((byte) (b ^ SHIFT_XOR));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void startFrame() {
+        state = DecoderState_t.InFrame;
+        length = 0;
+        crc = Crc16Ibm.INIT;
+    }
+
+    private void append(byte b) {
+        if (length >= maxFrameSize) {
+            discarded += length + 1;
+            report(FramingError_t.Oversize_e);
+            length = 0;
+            state = DecoderState_t.Discarding;
+            return;
+        }
+        frame[length++] = b;
+        crc = Crc16Ibm.update(crc, b);
+    }
+
+    private void endFrame() {
+        int frameLength = length;
+        length = 0;
+        state = DecoderState_t.Hunting;
+        frameCount++;
+
+        byte[] next = handler.frameReceived(frame, frameLength, (short) crc);
+        if (next == null || next.length < maxFrameSize)
+            next = new byte[maxFrameSize];  // the handler kept the old buffer
+        frame = next;
+    }
+
+    private void report(FramingError_t error) {
+        int count = discarded;
+        discarded = 0;
+        errorCounts[error.ordinal()]++;
+        handler.framingError(error, count);
+    }
+}
@@ -0,0 +1,190 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketType_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.SpecialChars_t;
+
+/// <summary>
+/// Writes telegrams (SOH ... EOT) directly into a caller supplied buffer.
+/// The header is written and checksummed byte by byte; the payload is checksummed with the sliced CRC and
+/// shifted in one loop by EversysByteScan. No allocations.
+/// Counterpart of EversysFrameDecoder.
+/// </summary>
+public final class EversysFrameEncoder {
+
+    private static final byte SOH = SpecialChars_t.SOH_e.getData();
+    private static final byte EOT = SpecialChars_t.EOT_e.getData();
+    private static final byte SHIFT_CHAR = SpecialChars_t.ShiftChar_e.getData();
+    private static final byte SHIFT_XOR = SpecialChars_t.ShiftXOR_e.getData();
+
+    /// <summary>
+    /// PIP, PIE, PN, SA, DA
+    /// </summary>
+    private static final int PACKET_HEADER_SIZE = 5;
+    /// <summary>
+    /// MI, MP1, MP2, DL1, DL2
+    /// </summary>
+    private static final int DATA_HEADER_SIZE = 5;
+    private static final int CRC_SIZE = 2;
+
+    /// <summary>
+    /// true for the bytes which have to be shifted: 0x00-0x04, LF, CR, ShiftChar and ETB (unsigned compare).
+    /// </summary>
+    private static final boolean[] SPECIAL = new boolean[256];
+
+    static {
+        for (int i = 0; i <= (SpecialChars_t.EOT_e.getData() & 0xFF); i++)
+            SPECIAL[i] = true;
+        SPECIAL[SpecialChars_t.ETB_e.getData() & 0xFF] = true;
+        SPECIAL[SpecialChars_t.LF_e.getData() & 0xFF] = true;
+        SPECIAL[SpecialChars_t.CR_e.getData() & 0xFF] = true;
+        SPECIAL[SHIFT_CHAR & 0xFF] = true;
+    }
+
+    private EversysFrameEncoder() {
+    }
+
+    /// <summary>
+    /// Checks for special characters which have to be shifted.
+    /// </summary>
+    public static boolean isSpecialChar(byte c) {
+        return SPECIAL[c & 0xFF];
+    }
+
+    /// <summary>
+    /// Buffer size which is always enough for a telegram with this many data bytes (every byte shifted).
+    /// </summary>
+    public static int maxFrameLength(int dataLength) {
+        return 2 + 2 * (PACKET_HEADER_SIZE + DATA_HEADER_SIZE + dataLength + CRC_SIZE);
+    }
+
+    /// <summary>
+    /// Buffer size which is always enough for an ack or nack telegram.
+    /// </summary>
+    public static int maxAckFrameLength() {
+        return 2 + 2 * PACKET_HEADER_SIZE;
+    }
+
+    /// <summary>
+    /// Writes the packet as telegram with SOH, shifted characters and EOT.
+    /// For data and request packets packet.CRC is set like Packet_t.ToByteArray() does.
+    /// </summary>
+    /// <param name="packet">packet to encode</param>
+    /// <param name="out">destination, at least maxFrameLength(packet.dataLength) bytes after offset</param>
+    /// <param name="offset">index of the SOH in out</param>
+    /// <returns>number of bytes written</returns>
+    public static int encode(Packet_t packet, byte[] out, int offset) {
+        boolean hasData = packet.type == PacketType_t.Data_e || packet.type == PacketType_t.Request_e;
+        int pos = offset;
+        int crc = Crc16Ibm.INIT;
+        byte b;
+
+        out[pos++] = SOH;
+
+        b = (byte) ((packet.parity << 6) | (packet.protoVersion & 0x3F));
+        crc = Crc16Ibm.update(crc, b);
+        pos = put(out, pos, b);
+        b = (byte) ((packet.isEncrypted.getData() << 7) | (packet.appPort.getData() << 3) | (packet.type.getData() & 0x7));
+        crc = Crc16Ibm.update(crc, b);
+        pos = put(out, pos, b);
+        crc = Crc16Ibm.update(crc, packet.sequenceNumber);
+        pos = put(out, pos, packet.sequenceNumber);
+        crc = Crc16Ibm.update(crc, packet.source);
+        pos = put(out, pos, packet.source);
+        crc = Crc16Ibm.update(crc, packet.destination);
+        pos = put(out, pos, packet.destination);
+
+        if (hasData) {
+            int dataLength = packet.dataLength;
+
+            b = packet.message.command;
+            crc = Crc16Ibm.update(crc, b);
+            pos = put(out, pos, b);
+            b = (byte) packet.message.parameter;
+            crc = Crc16Ibm.update(crc, b);
+            pos = put(out, pos, b);
+            b = (byte) (packet.message.parameter >> 8);
+            crc = Crc16Ibm.update(crc, b);
+            pos = put(out, pos, b);
+            b = (byte) dataLength;
+            crc = Crc16Ibm.update(crc, b);
+            pos = put(out, pos, b);
+            b = (byte) (dataLength >> 8);
+            crc = Crc16Ibm.update(crc, b);
+            pos = put(out, pos, b);
+
+            // payload: sliced CRC, then shifting in one loop
+            crc = Crc16Ibm.update(crc, packet.data, 0, dataLength);
+            pos = EversysByteScan.shift(packet.data, 0, dataLength, out, pos);
+
+            packet.setCRC((short) crc);
+            pos = put(out, pos, (byte) crc);
+            pos = put(out, pos, (byte) (crc >> 8));
+        }
+
+        out[pos++] = EOT;
+        return pos - offset;
+    }
+
+    /// <summary>
+    /// Writes an ack or nack telegram without creating a Packet_t.
+    /// </summary>
+    /// <param name="type">PosAck_e or NegAck_e</param>
+    /// <param name="sequenceNumber">sequence number of the acknowledged packet</param>
+    /// <param name="source">address of this device</param>
+    /// <param name="destination">source of the acknowledged packet</param>
+    /// <param name="protoVersion">protocol version</param>
+    /// <param name="out">destination, at least maxAckFrameLength() bytes after offset</param>
+    /// <param name="offset">index of the SOH in out</param>
+    /// <returns>number of bytes written</returns>
+    public static int encodeAck(PacketType_t type, byte sequenceNumber, byte source, byte destination, byte protoVersion, byte[] out, int offset) {
+        int pos = offset;
+        out[pos++] = SOH;
+        pos = put(out, pos, (byte) (protoVersion & 0x3F));     // parity 0
+        pos = put(out, pos, (byte) ((EversysSerialComm.ApplicationPort_t.Api_e.getData() << 3) | (type.getData() & 0x7)));
+        pos = put(out, pos, sequenceNumber);
+        pos = put(out, pos, source);
+        pos = put(out, pos, destination);
+        out[pos++] = EOT;
+        return pos - offset;
+    }
+
+    /// <summary>
+    /// Writes a telegram which was assembled by the caller (header and data, unshifted, without CRC).
+    /// The CRC is appended, special characters are shifted and SOH/EOT are added.
+    /// </summary>
+    /// <param name="telegram">PIP, PIE, PN, SA, DA and for data packets MI ... DATA[]</param>
+    /// <param name="length">number of bytes in telegram</param>
+    /// <param name="out">destination, at least maxTelegramFrameLength(length) bytes after offset</param>
+    /// <param name="offset">index of the SOH in out</param>
+    /// <returns>number of bytes written</returns>
+    public static int encodeTelegram(byte[] telegram, int length, byte[] out, int offset) {
+        int pos = offset;
+        int crc = Crc16Ibm.INIT;
+
+        out[pos++] = SOH;
+        crc = Crc16Ibm.update(crc, telegram, 0, length);
+        pos = EversysByteScan.shift(telegram, 0, length, out, pos);
+        pos = put(out, pos, (byte) crc);
+        pos = put(out, pos, (byte) (crc >> 8));
+        out[pos++] = EOT;
+        return pos - offset;
+    }
+
+    /// <summary>
+    /// Buffer size which is always enough for encodeTelegram() with this many telegram bytes.
+    /// </summary>
+    public static int maxTelegramFrameLength(int length) {
+        return 2 + 2 * (length + CRC_SIZE);
+    }
+
+    static int put(byte[] out, int pos, byte b) {
+        if (SPECIAL[b & 0xFF]) {
+            out[pos++] = SHIFT_CHAR;
+            out[pos++] = (byte) (b ^ SHIFT_XOR);
+        } else {
+            out[pos++] = b;
+        }
+        return pos;
+    }
+}
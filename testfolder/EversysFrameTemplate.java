@@ -0,0 +1,145 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.Arrays;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.SpecialChars_t;
+
+/// <summary>
+/// Precompiled telegram of a packet whose fields never change except the sequence number, e.g. the
+/// GetStatus_e poll. Created by EversysSerialComm.CompileTemplate().
+///
+/// The shifted bytes before and after PN are kept as they are. write() copies them around the shifted
+/// sequence number and appends the CRC, which is patched with a table instead of being calculated:
+/// the CRC is linear, so crc(telegram with PN = s) = crc(telegram with PN = 0) ^ crc0(s followed by the
+/// rest of the telegram as zero bytes), and the second term is precomputed for all 256 values of s.
+/// Only the sequence number and the two CRC bytes may need shifting at send time.
+///
+/// Immutable and thread safe.
+/// </summary>
+public final class EversysFrameTemplate {
+
+    private static final byte SOH = SpecialChars_t.SOH_e.getData();
+    private static final byte EOT = SpecialChars_t.EOT_e.getData();
+
+    /// <summary>
+    /// Fields of the packets created from the template (sequence number 0).
+    /// </summary>
+    private final Packet_t prototype;
+
+    /// <summary>
+    /// SOH, PIP, PIE (shifted)
+    /// </summary>
+    private final byte[] head;
+    /// <summary>
+    /// SA, DA, MI, MP, DL, DATA (shifted)
+    /// </summary>
+    private final byte[] tail;
+
+    /// <summary>
+    /// CRC of the telegram with sequence number 0
+    /// </summary>
+    private final int crcOfZero;
+    /// <summary>
+    /// CRC change by sequence number
+    /// </summary>
+    private final short[] crcDelta = new short[256];
+
+    private final int maxLength;
+
+    /// <summary>
+    /// Compiles the telegram of a data packet or request.
+    /// </summary>
+    /// <param name="prototype">packet with all fields set; its sequence number is ignored</param>
+    EversysFrameTemplate(Packet_t prototype) {
+        this.prototype = prototype;
+
+        byte[] telegram = prototype.ToByteArray();      // unshifted with CRC
+        int length = telegram.length - 2;
+        telegram[2] = 0;
+
+        byte[] buffer = new byte[EversysFrameEncoder.maxTelegramFrameLength(length)];
+        int pos = 0;
+        buffer[pos++] = SOH;
+        pos = EversysFrameEncoder.put(buffer, pos, telegram[0]);
+        pos = EversysFrameEncoder.put(buffer, pos, telegram[1]);
+        head = Arrays.copyOf(buffer, pos);
+
+        pos = 0;
+        for (int i = 3; i < length; i++)
+            pos = EversysFrameEncoder.put(buffer, pos, telegram[i]);
+        tail = Arrays.copyOf(buffer, pos);
+
+        crcOfZero = Crc16Ibm.update(Crc16Ibm.INIT, telegram, 0, length);
+
+        // crc with start value 0 of (s, length - 3 zero bytes)
+        int zeros = length - 3;
+        for (int s = 0; s < 256; s++) {
+            int crc = Crc16Ibm.update(0, (byte) s);
+            for (int z = 0; z < zeros; z++)
+                crc = Crc16Ibm.update(crc, (byte) 0);
+            crcDelta[s] = (short) crc;
+        }
+
+        maxLength = head.length + 2 + tail.length + 4 + 1;
+    }
+
+    /// <summary>
+    /// Buffer size which is always enough for write().
+    /// </summary>
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /// <summary>
+    /// CRC of the telegram with this sequence number.
+    /// </summary>
+    public short crc(byte sequenceNumber) {
+        return (short) (crcOfZero ^ crcDelta[sequenceNumber & 0xFF]);
+    }
+
+    /// <summary>
+    /// Writes the telegram with this sequence number, SOH to EOT.
+    /// </summary>
+    /// <param name="out">destination, at least getMaxLength() bytes after offset</param>
+    /// <param name="offset">index of the SOH in out</param>
+    /// <returns>number of bytes written</returns>
+    public int write(byte sequenceNumber, byte[] out, int offset) {
+        System.arraycopy(head, 0, out, offset, head.length);
+        int pos = EversysFrameEncoder.put(out, offset + head.length, sequenceNumber);
+        System.arraycopy(tail, 0, out, pos, tail.length);
+        pos += tail.length;
+
+        int crc = crcOfZero ^ crcDelta[sequenceNumber & 0xFF];
+        pos = EversysFrameEncoder.put(out, pos, (byte) crc);
+        pos = EversysFrameEncoder.put(out, pos, (byte) (crc >> 8));
+        out[pos++] = EOT;
+        return pos - offset;
+    }
+
+    /// <summary>
+    /// Copies the fields of the compiled packet into a new packet; message and data are shared.
+    /// </summary>
+    void initPacket(Packet_t packet) {
+        packet.parity = prototype.parity;
+        packet.protoVersion = prototype.protoVersion;
+        packet.isEncrypted = prototype.isEncrypted;
+        packet.appPort = prototype.appPort;
+        packet.type = prototype.type;
+        packet.source = prototype.source;
+        packet.destination = prototype.destination;
+        packet.message = prototype.message;
+        packet.dataLength = prototype.dataLength;
+        packet.data = prototype.data;
+        packet.isFail = false;
+        packet.template = this;
+    }
+
+    public byte getSource() {
+        return prototype.source;
+    }
+
+    public byte getDestination() {
+        return prototype.destination;
+    }
+}
@@ -0,0 +1,156 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/// <summary>
+/// Runs the transmission state machines of many EversysSerialComm instances on a few shared threads,
+/// instead of one TransmissionThread per port. An engine is only run when it was signalled
+/// (received telegram, enqueued packet, ...) or when its next ack/response deadline expires.
+/// One engine never runs on two threads at the same time.
+/// </summary>
+public class EversysIoScheduler {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysIoScheduler.class);
+
+    /// <summary>
+    /// Rounds an engine may run in a row before the other engines get their turn.
+    /// </summary>
+    private static final int MAX_ROUNDS_PER_TURN = 16;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /// <summary>
+    /// Creates the shared I/O threads. They are daemon threads with the highest priority.
+    /// </summary>
+    /// <param name="threads">number of I/O threads shared by all engines</param>
+    public EversysIoScheduler(int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "eversys-io-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /// <summary>
+    /// Creates the slot of the engine. Called by EversysSerialComm.Start(), which publishes the slot
+    /// and then wakes it; the engine is not run before that.
+    /// </summary>
+    Slot register(EversysSerialComm engine) {
+        return new Slot(engine);
+    }
+
+    /// <summary>
+    /// Stops the executor. The registered engines are not run anymore.
+    /// </summary>
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /// <summary>
+    /// Scheduling state of one engine.
+    /// </summary>
+    final class Slot implements Runnable {
+        private final EversysSerialComm engine;
+
+        /// <summary>
+        /// true while the slot is queued in the executor or running.
+        /// </summary>
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        /// <summary>
+        /// Set by wake(); cleared at the start of every round.
+        /// </summary>
+        private volatile boolean dirty = false;
+
+        private volatile boolean cancelled = false;
+        private ScheduledFuture<?> timer = null;
+
+        private final Runnable timerTask = new Runnable() {
+            @Override
+            public void run() {
+                wake();
+            }
+        };
+
+        Slot(EversysSerialComm engine) {
+            this.engine = engine;
+        }
+
+        /// <summary>
+        /// Makes sure the engine runs a round soon. Can be called from any thread.
+        /// </summary>
+        void wake() {
+            dirty = true;
+            if (!cancelled && scheduled.compareAndSet(false, true))
+                submit();
+        }
+
+        /// <summary>
+        /// Removes the engine from the scheduler.
+        /// </summary>
+        void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                if (timer != null)
+                    timer.cancel(false);
+            }
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (Exception e) {
+                // executor was shut down
+                scheduled.set(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            long timeout = 0;
+            int rounds = 0;
+            while (!cancelled && timeout == 0 && rounds++ < MAX_ROUNDS_PER_TURN) {
+                dirty = false;
+                timeout = engine.RunScheduledRound();
+            }
+
+            if (timeout < 0) {
+                cancel();
+                logger.error("eversys engine " + engine.PortName() + " stopped");
+            }
+
+            synchronized (this) {
+                if (timer != null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+                if (!cancelled && timeout > 0 && timeout != Long.MAX_VALUE) {
+                    try {
+                        timer = executor.schedule(timerTask, timeout, TimeUnit.NANOSECONDS);
+                    } catch (Exception e) {
+                        // executor was shut down
+                    }
+                }
+            }
+
+            scheduled.set(false);
+            // work which arrived while running, or more rounds needed
+            if ((dirty || timeout == 0) && !cancelled && scheduled.compareAndSet(false, true))
+                submit();
+        }
+    }
+}
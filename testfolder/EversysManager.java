@@ -1,5 +1,18 @@
 package com.dalkomm.beat.booth.manager.comm.serial;
 
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,60 +25,297 @@ import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
  * @version 1.0
  */
 
-public class EversysManager implements PacketEventListener {
+public class EversysManager implements PacketEventListener, PacketOverflowListener, FramingErrorListener, ResponseListener, FrameSentListener {
 	
 	private static Logger logger = LoggerFactory.getLogger(BoothManagerBootStrap.class);
 	
 	EversysSerialComm mSerialComm = null;
 	
+	/**
+	 * futures of the packets which were sent with request() or command() and are not finished yet
+	 */
+	private final Map<Packet_t, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+	
+	/**
+	 * expires the per-call deadlines; the cancelled ones are removed at once, the queue only holds the open calls
+	 */
+	private static final ScheduledExecutorService deadlineTimer = createDeadlineTimer();
+	
+	private static ScheduledExecutorService createDeadlineTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "eversys-deadline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+	
+	/**
+	 * polls the telemetry requests, see startPolling()
+	 */
+	private final EversysTelemetryPoller telemetryPoller = new EversysTelemetryPoller(this, deadlineTimer);
+	
+	/**
+	 * responses of the read-only requests, see getResponseCache()
+	 */
+	private final EversysResponseCache responseCache = new EversysResponseCache(this);
+	
+	/**
+	 * frame templates of the commands without parameter and data, by command id (+ 0x100 for requests)
+	 */
+	private final AtomicReferenceArray<EversysFrameTemplate> templates = new AtomicReferenceArray<EversysFrameTemplate>(512);
+	
+	/**
+	 * longest wait of SendAndGetResponse()
+	 */
+	private volatile Duration responseWaitLimit = Duration.ofSeconds(30);
+	
 	public EversysManager() {}
 	
 	public void init() {
 		 try {
              mSerialComm = EversysSerialComm.getInstance();
              mSerialComm.SerialComm("COM1", 115200, (byte)0x41);
+             mSerialComm.setListener(this);
+             configureLanes();
              mSerialComm.Start();
              
              Send(Command_t.GetApiVersion_e, (short)0, null);
              
-             Thread.sleep(1000 * 120);
-             
          } catch(Exception exx) {
          	logger.info(exx.toString());
          }
 		
 	}
 	
+	/**
+	 * Uses an engine which was set up by the caller, e.g. by EversysSerialHub or on a LoopbackTransport.
+	 * The caller starts the engine after this call.
+	 */
+	public void init(EversysSerialComm serialComm) {
+		mSerialComm = serialComm;
+		mSerialComm.setListener(this);
+		configureLanes();
+	}
+	
+	/**
+	 * Stop_e overtakes everything else; the other commands (DoProduct_e, ...) go before the requests,
+	 * which are sent in the background lane by default.
+	 */
+	private void configureLanes() {
+		mSerialComm.setCommandLane(Command_t.Stop_e.getData(), EversysSerialComm.Queue_t.OutgoingUrgent_e);
+	}
+	
 	public EversysSerialComm.Packet_t Send(Command_t cmd, short cmdParam, byte[] data)
     {
 		return this.Send(mSerialComm. new Message_t(cmd.getData(), cmdParam), data, false);
     }
 
+	/**
+	 * Sends a request and blocks until the response arrives, at most getResponseWaitLimit().
+	 * Must not be called from a PacketEventListener callback, use request() there.
+	 * 
+	 * @return response or null if the request failed or the wait limit passed
+	 */
     public EversysSerialComm.Packet_t SendAndGetResponse(Command_t cmd, short cmdParam, byte[] data)
     {
-    	return this.Send(mSerialComm. new Message_t((byte) cmd.getData(), cmdParam), data, true);
+    	try {
+    		return request(cmd, cmdParam, data).get(responseWaitLimit.toNanos(), TimeUnit.NANOSECONDS);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (ExecutionException e) {
+    		logger.error(cmd + " failed : " + e.getCause());
+    	} catch (TimeoutException e) {
+    		logger.error(cmd + " failed : no response within " + responseWaitLimit);
+    	}
+    	return null;
+    }
+    
+    public Duration getResponseWaitLimit() {
+    	return responseWaitLimit;
+    }
+    
+	/**
+	 * Longest time SendAndGetResponse() blocks; 30 s by default.
+	 */
+    public void setResponseWaitLimit(Duration responseWaitLimit) {
+    	if (responseWaitLimit.isNegative() || responseWaitLimit.isZero())
+    		throw new IllegalArgumentException("responseWaitLimit must be positive: " + responseWaitLimit);
+    	this.responseWaitLimit = responseWaitLimit;
     }
     
     private EversysSerialComm.Packet_t Send(EversysSerialComm.Message_t message, byte[] data, boolean expectResponse)
     {
-    	EversysSerialComm.Packet_t _packet = mSerialComm. new Packet_t();
-    	
-    	int dataLength;
-        if (data == null)
-        {
-          data = new byte[2];
-          dataLength = 0;
-        }
-        else
-          dataLength = data.length;
+        if (message.command == Command_t.DoProduct_e.getData() || message.command == Command_t.DoProductOfDisplay_e.getData())
+          telemetryPoller.productStarted();
+        responseCache.commandSent(message.command);
         
-        if (!expectResponse)
-        	mSerialComm.EnqueuePacket((byte) 65, message, data, dataLength);
-        else
-        	mSerialComm.EnqueuePacket((byte) 65, message, data, dataLength, true);
+        EversysSerialComm.Packet_t _packet = createPacket(message, data, expectResponse);
+        mSerialComm.EnqueuePreparedPacket(_packet);
     	
     	return _packet;
     }
+    
+	/**
+	 * Sends a request. The future completes with the response of the machine.
+	 * It fails with an EversysRequestException (AckTimeout, NackFail, ResponseTimeout or QueueFull).
+	 * The callbacks run on the callback thread of the engine, use the async methods of the future for slow work.
+	 * Requests with a TTL in the response cache are answered from the cache or share an identical open request.
+	 */
+	public CompletableFuture<Packet_t> request(Command_t cmd, short cmdParam, byte[] data) {
+		return responseCache.request(cmd, cmdParam, data);
+	}
+	
+	/**
+	 * Same as request(cmd, cmdParam, data), additionally fails with DeadlineExceeded after the deadline.
+	 * A valid cached response is returned, otherwise the request is sent on its own.
+	 */
+	public CompletableFuture<Packet_t> request(Command_t cmd, short cmdParam, byte[] data, Duration deadline) {
+		Packet_t cached = responseCache.getCached(cmd, cmdParam, data);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		return submit(cmd, cmdParam, data, true, deadline);
+	}
+	
+	/**
+	 * Sends a command without response. The future completes with the sent packet when the machine acknowledged it.
+	 */
+	public CompletableFuture<Packet_t> command(Command_t cmd, short cmdParam, byte[] data) {
+		return submit(cmd, cmdParam, data, false, null);
+	}
+	
+	/**
+	 * Same as command(cmd, cmdParam, data), additionally fails with DeadlineExceeded after the deadline.
+	 */
+	public CompletableFuture<Packet_t> command(Command_t cmd, short cmdParam, byte[] data, Duration deadline) {
+		return submit(cmd, cmdParam, data, false, deadline);
+	}
+	
+	/**
+	 * Starts polling GetStatus_e, GetRequests_e, GetInfoMessages_e and GetSensorValues_e.
+	 * The listener only gets the answers which changed. Use getTelemetryPoller() to change the intervals.
+	 */
+	public void startPolling(EversysTelemetryPoller.TelemetryListener listener) {
+		telemetryPoller.setListener(listener);
+		telemetryPoller.start();
+	}
+	
+	public void stopPolling() {
+		telemetryPoller.stop();
+	}
+	
+	public EversysTelemetryPoller getTelemetryPoller() {
+		return telemetryPoller;
+	}
+	
+	public EversysResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Sends a request without the response cache; used by the cache for its misses.
+	 */
+	CompletableFuture<Packet_t> submitRequest(Command_t cmd, short cmdParam, byte[] data, Duration deadline) {
+		return submit(cmd, cmdParam, data, true, deadline);
+	}
+	
+	private CompletableFuture<Packet_t> submit(Command_t cmd, short cmdParam, byte[] data, boolean expectResponse, Duration deadline) {
+		if (cmd == Command_t.DoProduct_e || cmd == Command_t.DoProductOfDisplay_e)
+			telemetryPoller.productStarted();
+		responseCache.commandSent(cmd.getData());
+		
+		final Packet_t packet = data == null && cmdParam == 0
+				? mSerialComm.CreatePacket(template(cmd.getData(), expectResponse))
+				: createPacket(mSerialComm. new Message_t(cmd.getData(), cmdParam), data, expectResponse);
+		final PendingRequest pending = new PendingRequest(expectResponse);
+		
+		// register before the packet is queued, the ack can arrive at any time
+		pendingRequests.put(packet, pending);
+		
+		if (deadline != null) {
+			pending.deadlineTask = deadlineTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// the caller gave up, the packet must not be sent anymore
+					if (fail(packet, new EversysRequestException.DeadlineExceeded(packet)))
+						mSerialComm.WithdrawPacket(packet);
+				}
+			}, deadline.toNanos(), TimeUnit.NANOSECONDS);
+			if (pending.future.isDone())
+				pending.cancelDeadline();	// finished before the task was assigned
+		}
+		
+		if (!mSerialComm.EnqueuePreparedPacket(packet)) {
+			fail(packet, new EversysRequestException.QueueFull(packet));
+		}
+		
+		return pending.future;
+	}
+	
+	private Packet_t createPacket(EversysSerialComm.Message_t message, byte[] data, boolean expectResponse) {
+		if (data == null && message.parameter == 0)
+			return mSerialComm.CreatePacket(template(message.command, expectResponse));
+		if (data == null)
+			return mSerialComm.CreatePacket((byte) 65, message, new byte[2], 0, expectResponse);
+		return mSerialComm.CreatePacket((byte) 65, message, data, data.length, expectResponse);
+	}
+	
+	/**
+	 * Frame template of a command without parameter and data, compiled with its first use.
+	 * The polls (GetStatus_e, GetRequests_e, GetSensorValues_e, ...) are then sent without encoding.
+	 */
+	private EversysFrameTemplate template(byte command, boolean expectResponse) {
+		int index = (command & 0xFF) | (expectResponse ? 0x100 : 0);
+		EversysFrameTemplate template = templates.get(index);
+		if (template == null || template.getSource() != mSerialComm.getAddress()) {
+			template = mSerialComm.CompileTemplate((byte) 65, mSerialComm. new Message_t(command, (short) 0), null, 0, expectResponse);
+			templates.set(index, template);
+		}
+		return template;
+	}
+	
+	private void complete(Packet_t packet, Packet_t result) {
+		PendingRequest pending = pendingRequests.remove(packet);
+		if (pending != null) {
+			pending.cancelDeadline();
+			pending.future.complete(result);
+		}
+	}
+	
+	/**
+	 * @return false if the request was already finished
+	 */
+	private boolean fail(Packet_t packet, EversysRequestException exception) {
+		PendingRequest pending = pendingRequests.remove(packet);
+		if (pending == null)
+			return false;
+		pending.cancelDeadline();
+		pending.future.completeExceptionally(exception);
+		return true;
+	}
+	
+	private static class PendingRequest {
+		final CompletableFuture<Packet_t> future = new CompletableFuture<>();
+		final boolean expectResponse;
+		/**
+		 * DeadlineExceeded task; null without deadline
+		 */
+		volatile ScheduledFuture<?> deadlineTask;
+		
+		PendingRequest(boolean expectResponse) {
+			this.expectResponse = expectResponse;
+		}
+		
+		void cancelDeadline() {
+			ScheduledFuture<?> task = deadlineTask;
+			if (task != null)
+				task.cancel(false);
+		}
+	}
 
 	@Override
 	public void PacketEventFired(Object sender, PacketEventArgs eventArgs) {
@@ -76,9 +326,9 @@ public class EversysManager implements PacketEventListener {
 
 	@Override
 	public void packetSent(Packet_t packet) {
-		// TODO Auto-generated method stub
-		int i = 0;
-		i++;
+		PendingRequest pending = pendingRequests.get(packet);
+		if (pending != null && !pending.expectResponse)
+			complete(packet, packet);
 	}
 
 	@Override
@@ -90,23 +340,23 @@ public class EversysManager implements PacketEventListener {
 
 	@Override
 	public void ackTimeout(Packet_t packet) {
-		// TODO Auto-generated method stub
-		int i = 0;
-		i++;
+		fail(packet, new EversysRequestException.AckTimeout(packet));
 	}
 
 	@Override
 	public void nackFail(Packet_t packet) {
-		// TODO Auto-generated method stub
-		int i = 0;
-		i++;
+		fail(packet, new EversysRequestException.NackFail(packet));
 	}
 
 	@Override
 	public void responseTimeout(Packet_t packet) {
-		// TODO Auto-generated method stub
-		int i = 0;
-		i++;
+		fail(packet, new EversysRequestException.ResponseTimeout(packet));
+	}
+
+	@Override
+	public void responseReceived(Packet_t request, Packet_t response) {
+		responseCache.responseReceived(response);
+		complete(request, response);
 	}
 
 	@Override
@@ -115,6 +365,24 @@ public class EversysManager implements PacketEventListener {
 		int i = 0;
 		i++;
 	}
+
+	@Override
+	public void frameSent(byte[] frame, int length) {
+		// only implemented to turn off dataSentIntercept(), not registered with setFrameSentListener()
+	}
+
+	@Override
+	public void packetDropped(EversysSerialComm.Queue_t queue, Object packet, boolean rejected) {
+		logger.error("eversys packet " + (rejected ? "rejected" : "dropped") + ", queue full : " + queue);
+		
+		if (queue.isOutgoing())
+			fail((Packet_t) packet, new EversysRequestException.QueueFull((Packet_t) packet));
+	}
+
+	@Override
+	public void framingError(EversysFrameDecoder.FramingError_t error, int discardedBytes) {
+		logger.warn("eversys framing error : " + error + ", " + discardedBytes + " bytes discarded");
+	}
 	
 	//===========================================
 	
@@ -0,0 +1,357 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Queue_t;
+
+/// <summary>
+/// Counters, gauges and latency histograms of one EversysSerialComm.
+/// The counters and histograms are updated by the engine without locks; the gauges are read from
+/// the engine when they are queried. Pull API: engine.getMetrics(); the same values are
+/// available through JMX after registerMBean().
+/// </summary>
+public class EversysMetrics implements EversysMetricsMXBean {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysMetrics.class);
+
+    private static final String[] COMMAND_NAMES = new String[256];
+
+    static {
+        for (int i = 0; i < 256; i++)
+            COMMAND_NAMES[i] = String.format("0x%02X", i);
+        for (Command_t cmd : Command_t.values())
+            COMMAND_NAMES[cmd.getData() & 0xFF] = cmd.name();
+    }
+
+    private final EversysSerialComm engine;
+    private ObjectName objectName = null;
+
+    /// <summary>
+    /// Histograms by command id; created with the first value.
+    /// </summary>
+    private final AtomicReferenceArray<LatencyHistogram> ackTimes = new AtomicReferenceArray<LatencyHistogram>(256);
+    private final AtomicReferenceArray<LatencyHistogram> responseTimes = new AtomicReferenceArray<LatencyHistogram>(256);
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder acksReceived = new LongAdder();
+    private final LongAdder nacksReceived = new LongAdder();
+    private final LongAdder ackTimeouts = new LongAdder();
+    private final LongAdder ackTimeoutFailures = new LongAdder();
+    private final LongAdder nackFailures = new LongAdder();
+    private final LongAdder responsesReceived = new LongAdder();
+    private final LongAdder responseTimeouts = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final LongAdder nacksSent = new LongAdder();
+    private final LongAdder crcErrors = new LongAdder();
+    private final LongAdder lengthErrors = new LongAdder();
+    private final LongAdder[] framingErrors = new LongAdder[FramingError_t.values().length];
+
+    EversysMetrics(EversysSerialComm engine) {
+        this.engine = engine;
+        for (int i = 0; i < framingErrors.length; i++)
+            framingErrors[i] = new LongAdder();
+    }
+
+    //#region recording, called by the engine
+    void packetSent(boolean retransmission) {
+        if (retransmission)
+            retransmissions.increment();
+        else
+            packetsSent.increment();
+    }
+
+    void ackReceived(byte command, long nanos) {
+        acksReceived.increment();
+        histogram(ackTimes, command).record(nanos);
+    }
+
+    void nackReceived() {
+        nacksReceived.increment();
+    }
+
+    void ackTimeout(boolean failed) {
+        ackTimeouts.increment();
+        if (failed)
+            ackTimeoutFailures.increment();
+    }
+
+    void nackFailed() {
+        nackFailures.increment();
+    }
+
+    void responseReceived(byte command, long nanos) {
+        responsesReceived.increment();
+        histogram(responseTimes, command).record(nanos);
+    }
+
+    void responseTimeout() {
+        responseTimeouts.increment();
+    }
+
+    void packetReceived() {
+        packetsReceived.increment();
+    }
+
+    void ackSent(boolean positive) {
+        if (positive)
+            acksSent.increment();
+        else
+            nacksSent.increment();
+    }
+
+    void crcError() {
+        crcErrors.increment();
+    }
+
+    void lengthError() {
+        lengthErrors.increment();
+    }
+
+    void framingError(FramingError_t error) {
+        framingErrors[error.ordinal()].increment();
+    }
+
+    private static LatencyHistogram histogram(AtomicReferenceArray<LatencyHistogram> histograms, byte command) {
+        int index = command & 0xFF;
+        LatencyHistogram histogram = histograms.get(index);
+        if (histogram == null) {
+            histograms.compareAndSet(index, null, new LatencyHistogram());
+            histogram = histograms.get(index);
+        }
+        return histogram;
+    }
+    //#endregion
+
+    //#region pull API
+    /// <summary>
+    /// Time from the (last) transmission of a packet to its ack, or null if no ack was received yet.
+    /// </summary>
+    public LatencyHistogram getAckTimes(Command_t command) {
+        return ackTimes.get(command.getData() & 0xFF);
+    }
+
+    /// <summary>
+    /// Time from the first transmission of a request to its response, or null if no response was received yet.
+    /// </summary>
+    public LatencyHistogram getResponseTimes(Command_t command) {
+        return responseTimes.get(command.getData() & 0xFF);
+    }
+
+    /// <summary>
+    /// Number of times the frame decoder reported the error.
+    /// </summary>
+    public long getFramingErrors(FramingError_t error) {
+        return framingErrors[error.ordinal()].sum();
+    }
+    //#endregion
+
+    //#region EversysMetricsMXBean
+    @Override
+    public String getPortName() {
+        return engine.PortName();
+    }
+
+    @Override
+    public String getSendState() {
+        return engine.getSendState();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return engine.getInFlightCount();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth() {
+        return engine.getQueueDepth(Queue_t.OutgoingUrgent_e) + engine.getQueueDepth(Queue_t.Outgoing_e)
+                + engine.getQueueDepth(Queue_t.OutgoingBackground_e);
+    }
+
+    @Override
+    public int getIncomingRawQueueDepth() {
+        return engine.getQueueDepth(Queue_t.IncomingRaw_e);
+    }
+
+    @Override
+    public int getIncomingDataQueueDepth() {
+        return engine.getQueueDepth(Queue_t.IncomingData_e);
+    }
+
+    @Override
+    public int getIncomingAckQueueDepth() {
+        return engine.getQueueDepth(Queue_t.IncomingAck_e);
+    }
+
+    @Override
+    public int getCallbackBacklog() {
+        return engine.getCallbackDispatcher().getBacklog();
+    }
+
+    @Override
+    public long getPacketsSent() { return packetsSent.sum(); }
+    @Override
+    public long getRetransmissions() { return retransmissions.sum(); }
+    @Override
+    public long getPacketsReceived() { return packetsReceived.sum(); }
+    @Override
+    public long getAcksReceived() { return acksReceived.sum(); }
+    @Override
+    public long getNacksReceived() { return nacksReceived.sum(); }
+    @Override
+    public long getAckTimeouts() { return ackTimeouts.sum(); }
+    @Override
+    public long getAckTimeoutFailures() { return ackTimeoutFailures.sum(); }
+    @Override
+    public long getNackFailures() { return nackFailures.sum(); }
+    @Override
+    public long getResponsesReceived() { return responsesReceived.sum(); }
+    @Override
+    public long getResponseTimeouts() { return responseTimeouts.sum(); }
+    @Override
+    public long getAcksSent() { return acksSent.sum(); }
+    @Override
+    public long getNacksSent() { return nacksSent.sum(); }
+    @Override
+    public long getCrcErrors() { return crcErrors.sum(); }
+    @Override
+    public long getLengthErrors() { return lengthErrors.sum(); }
+
+    /// <summary>
+    /// Garbage, unexpected SOH and dangling shift characters: the decoder had to search the next SOH.
+    /// </summary>
+    @Override
+    public long getFramingResyncs() {
+        return getFramingErrors(FramingError_t.Garbage_e) + getFramingErrors(FramingError_t.UnexpectedSoh_e)
+                + getFramingErrors(FramingError_t.DanglingShift_e);
+    }
+
+    @Override
+    public long getOversizeFrames() {
+        return getFramingErrors(FramingError_t.Oversize_e);
+    }
+
+    @Override
+    public long getQueueOverflows() {
+        long overflows = 0;
+        for (Queue_t queue : Queue_t.values())
+            overflows += engine.getQueueOverflowCount(queue);
+        return overflows;
+    }
+
+    @Override
+    public long getDroppedCallbacks() {
+        return engine.getCallbackDispatcher().getDroppedCount();
+    }
+
+    @Override
+    public Map<String, Long> getAckTimeCount() { return counts(ackTimes); }
+    @Override
+    public Map<String, Double> getAckTimeP50() { return percentiles(ackTimes, 50); }
+    @Override
+    public Map<String, Double> getAckTimeP99() { return percentiles(ackTimes, 99); }
+    @Override
+    public Map<String, Double> getAckTimeP999() { return percentiles(ackTimes, 99.9); }
+    @Override
+    public Map<String, Long> getResponseTimeCount() { return counts(responseTimes); }
+    @Override
+    public Map<String, Double> getResponseTimeP50() { return percentiles(responseTimes, 50); }
+    @Override
+    public Map<String, Double> getResponseTimeP99() { return percentiles(responseTimes, 99); }
+    @Override
+    public Map<String, Double> getResponseTimeP999() { return percentiles(responseTimes, 99.9); }
+
+    @Override
+    public boolean isAdaptiveTimeouts() { return engine.isAdaptiveTimeouts(); }
+    @Override
+    public Map<String, Double> getAckSmoothedRtt() { return engine.getAckRtt().getSmoothedRtts(); }
+    @Override
+    public Map<String, Double> getAckTimeoutEstimate() { return engine.getAckRtt().getTimeouts(); }
+    @Override
+    public Map<String, Double> getResponseSmoothedRtt() { return engine.getResponseRtt().getSmoothedRtts(); }
+    @Override
+    public Map<String, Double> getResponseTimeoutEstimate() { return engine.getResponseRtt().getTimeouts(); }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < 256; i++) {
+            if (ackTimes.get(i) != null)
+                ackTimes.get(i).reset();
+            if (responseTimes.get(i) != null)
+                responseTimes.get(i).reset();
+        }
+        LongAdder[] counters = { packetsSent, retransmissions, packetsReceived, acksReceived, nacksReceived,
+                ackTimeouts, ackTimeoutFailures, nackFailures, responsesReceived, responseTimeouts,
+                acksSent, nacksSent, crcErrors, lengthErrors };
+        for (LongAdder counter : counters)
+            counter.reset();
+        for (LongAdder counter : framingErrors)
+            counter.reset();
+    }
+    //#endregion
+
+    private static Map<String, Long> counts(AtomicReferenceArray<LatencyHistogram> histograms) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < 256; i++) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null)
+                result.put(COMMAND_NAMES[i], histogram.getCount());
+        }
+        return result;
+    }
+
+    private static Map<String, Double> percentiles(AtomicReferenceArray<LatencyHistogram> histograms, double percentile) {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < 256; i++) {
+            LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null && histogram.getCount() > 0)
+                result.put(COMMAND_NAMES[i], histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        return result;
+    }
+
+    //#region JMX
+    /// <summary>
+    /// Registers this object at the platform MBean server. Errors are logged, not thrown.
+    /// </summary>
+    public synchronized void registerMBean() {
+        if (objectName != null)
+            return;
+        try {
+            ObjectName name = new ObjectName(EversysMetrics.class.getPackage().getName()
+                    + ":type=EversysSerialComm,port=" + ObjectName.quote(String.valueOf(engine.PortName())));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (Exception e) {
+            logger.error("cannot register eversys metrics : " + e.toString());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.error("cannot unregister eversys metrics : " + e.toString());
+        }
+        objectName = null;
+    }
+    //#endregion
+}
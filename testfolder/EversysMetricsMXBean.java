@@ -0,0 +1,67 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.Map;
+
+/// <summary>
+/// JMX view of EversysMetrics, registered as
+/// com.dalkomm.beat.booth.manager.comm.serial:type=EversysSerialComm,port=(port name).
+/// Times in microseconds; the maps are keyed by the Command_t name.
+/// </summary>
+public interface EversysMetricsMXBean {
+
+    //#region gauges
+    public String getPortName();
+    public String getSendState();
+    public int getInFlightCount();
+    public int getOutgoingQueueDepth();
+    public int getIncomingRawQueueDepth();
+    public int getIncomingDataQueueDepth();
+    public int getIncomingAckQueueDepth();
+    public int getCallbackBacklog();
+    //#endregion
+
+    //#region counters
+    public long getPacketsSent();
+    public long getRetransmissions();
+    public long getPacketsReceived();
+    public long getAcksReceived();
+    public long getNacksReceived();
+    public long getAckTimeouts();
+    public long getAckTimeoutFailures();
+    public long getNackFailures();
+    public long getResponsesReceived();
+    public long getResponseTimeouts();
+    public long getAcksSent();
+    public long getNacksSent();
+    public long getCrcErrors();
+    public long getLengthErrors();
+    public long getFramingResyncs();
+    public long getOversizeFrames();
+    public long getQueueOverflows();
+    public long getDroppedCallbacks();
+    //#endregion
+
+    //#region latency
+    public Map<String, Long> getAckTimeCount();
+    public Map<String, Double> getAckTimeP50();
+    public Map<String, Double> getAckTimeP99();
+    public Map<String, Double> getAckTimeP999();
+    public Map<String, Long> getResponseTimeCount();
+    public Map<String, Double> getResponseTimeP50();
+    public Map<String, Double> getResponseTimeP99();
+    public Map<String, Double> getResponseTimeP999();
+    //#endregion
+
+    //#region round trip estimates, see EversysRttEstimator
+    public boolean isAdaptiveTimeouts();
+    public Map<String, Double> getAckSmoothedRtt();
+    public Map<String, Double> getAckTimeoutEstimate();
+    public Map<String, Double> getResponseSmoothedRtt();
+    public Map<String, Double> getResponseTimeoutEstimate();
+    //#endregion
+
+    /// <summary>
+    /// Clears the histograms and counters.
+    /// </summary>
+    public void reset();
+}
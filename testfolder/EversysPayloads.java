@@ -0,0 +1,301 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Typed access to the payloads (DATA[] of the telegram) of the Command_t responses and requests.
+///
+/// The response views are flyweights: wrap() only stores the array, offset and length, and every getter
+/// reads the bytes directly. A caller keeps one view per response type and wraps every new packet with it,
+/// so reading the fields of a poll does not allocate. A view is not thread safe and is only valid as long
+/// as the wrapped array is not changed.
+///
+/// The request encoders write into an array of the caller and return the payload length, which is passed
+/// as data/dataLength to CreatePacket().
+///
+/// All multi-byte fields are little endian like the header fields (MP, DL) of the telegram.
+/// The field layouts are collected in this class; only the justReset bit (bit 0 of the first status byte)
+/// is used by the engine itself.
+/// </summary>
+public final class EversysPayloads {
+
+    private EversysPayloads() {
+    }
+
+    /// <summary>
+    /// Creates the view for the response of the command, or null if the response has no typed view.
+    /// </summary>
+    public static View newView(Command_t command) {
+        switch (command) {
+            case GetStatus_e:
+                return new StatusView();
+            case GetSensorValues_e:
+                return new SensorValuesView();
+            case GetMachineCounters_e:
+                return new MachineCountersView();
+            case GetProductParameters_e:
+                return new ProductParametersView();
+            case GetInfoMessages_e:
+                return new InfoMessagesView();
+            default:
+                return null;
+        }
+    }
+
+    /// <summary>
+    /// true when the packet is a GetStatus response with the justReset bit set.
+    /// </summary>
+    public static boolean isJustReset(Packet_t packet) {
+        return packet.message != null && packet.message.command == Command_t.GetStatus_e.getData()
+                && packet.data != null && packet.dataLength > 0 && (packet.data[0] & StatusView.JUST_RESET) != 0;
+    }
+
+    //#region views
+    /// <summary>
+    /// Flyweight over the payload of one response.
+    /// </summary>
+    public static abstract class View {
+        private byte[] buffer = EMPTY;
+        private int offset = 0;
+        private int length = 0;
+
+        private static final byte[] EMPTY = new byte[0];
+
+        /// <summary>
+        /// Command of the response this view reads.
+        /// </summary>
+        public abstract Command_t getCommand();
+
+        /// <summary>
+        /// Reads the data of the packet, which must be a response to getCommand().
+        /// </summary>
+        /// <returns>this</returns>
+        public View wrap(Packet_t packet) {
+            if (packet.message == null || packet.message.command != getCommand().getData())
+                throw new IllegalArgumentException("not a " + getCommand() + " packet");
+            return wrap(packet.data == null ? EMPTY : packet.data, 0, packet.dataLength);
+        }
+
+        /// <summary>
+        /// Reads a payload inside a larger buffer, e.g. a RawPacket_t at offset 10 (after the data header).
+        /// </summary>
+        /// <returns>this</returns>
+        public View wrap(byte[] buffer, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > buffer.length)
+                throw new IndexOutOfBoundsException("payload " + offset + "+" + length + " outside of " + buffer.length);
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+
+        /// <summary>
+        /// Payload length in bytes.
+        /// </summary>
+        public int length() {
+            return length;
+        }
+
+        protected int u8(int index) {
+            check(index, 1);
+            return buffer[offset + index] & 0xFF;
+        }
+
+        protected int u16(int index) {
+            check(index, 2);
+            return (buffer[offset + index] & 0xFF) | ((buffer[offset + index + 1] & 0xFF) << 8);
+        }
+
+        protected short s16(int index) {
+            return (short) u16(index);
+        }
+
+        protected long u32(int index) {
+            check(index, 4);
+            int i = offset + index;
+            return ((buffer[i] & 0xFFL)) | ((buffer[i + 1] & 0xFFL) << 8)
+                    | ((buffer[i + 2] & 0xFFL) << 16) | ((buffer[i + 3] & 0xFFL) << 24);
+        }
+
+        private void check(int index, int size) {
+            if (index < 0 || index + size > length)
+                throw new IndexOutOfBoundsException(getCommand() + " payload has " + length + " bytes, field at " + index);
+        }
+    }
+
+    /// <summary>
+    /// GetStatus_e: status bits, the first 16 bits form the status word. Bit 0 = justReset.
+    /// </summary>
+    public static final class StatusView extends View {
+        public static final int JUST_RESET = 0x01;
+
+        @Override
+        public Command_t getCommand() {
+            return Command_t.GetStatus_e;
+        }
+
+        public boolean isJustReset() {
+            return length() > 0 && (u8(0) & JUST_RESET) != 0;
+        }
+
+        /// <summary>
+        /// First two bytes of the status, 0 if the payload is shorter.
+        /// </summary>
+        public int getStatusWord() {
+            return length() >= 2 ? u16(0) : length() == 1 ? u8(0) : 0;
+        }
+
+        /// <summary>
+        /// Bit of the status payload, bit 0 = bit 0 of the first byte.
+        /// </summary>
+        public boolean isSet(int bit) {
+            int index = bit >>> 3;
+            return index < length() && (u8(index) & (1 << (bit & 7))) != 0;
+        }
+    }
+
+    /// <summary>
+    /// GetSensorValues_e: signed 16-bit values, one per sensor.
+    /// </summary>
+    public static final class SensorValuesView extends View {
+        @Override
+        public Command_t getCommand() {
+            return Command_t.GetSensorValues_e;
+        }
+
+        public int getCount() {
+            return length() / 2;
+        }
+
+        public short getValue(int sensor) {
+            return s16(sensor * 2);
+        }
+    }
+
+    /// <summary>
+    /// GetMachineCounters_e: unsigned 32-bit counters.
+    /// </summary>
+    public static final class MachineCountersView extends View {
+        @Override
+        public Command_t getCommand() {
+            return Command_t.GetMachineCounters_e;
+        }
+
+        public int getCount() {
+            return length() / 4;
+        }
+
+        public long getCounter(int counter) {
+            return u32(counter * 4);
+        }
+    }
+
+    /// <summary>
+    /// GetProductParameters_e: unsigned 16-bit parameters of the product given as cmdParam of the request.
+    /// </summary>
+    public static final class ProductParametersView extends View {
+        @Override
+        public Command_t getCommand() {
+            return Command_t.GetProductParameters_e;
+        }
+
+        public int getCount() {
+            return length() / 2;
+        }
+
+        public int getParameter(int parameter) {
+            return u16(parameter * 2);
+        }
+    }
+
+    /// <summary>
+    /// GetInfoMessages_e: list of the active info message ids, 16 bits each; id 0 is an unused entry.
+    /// </summary>
+    public static final class InfoMessagesView extends View {
+        @Override
+        public Command_t getCommand() {
+            return Command_t.GetInfoMessages_e;
+        }
+
+        /// <summary>
+        /// Number of entries including unused ones.
+        /// </summary>
+        public int getCount() {
+            return length() / 2;
+        }
+
+        public int getMessageId(int entry) {
+            return u16(entry * 2);
+        }
+
+        public boolean contains(int messageId) {
+            int count = getCount();
+            for (int i = 0; i < count; i++) {
+                if (u16(i * 2) == messageId)
+                    return true;
+            }
+            return false;
+        }
+    }
+    //#endregion
+
+    //#region request encoders
+    /// <summary>
+    /// DoProduct_e payload: product number (16 bit), then optional parameter overrides (16 bit each)
+    /// in the order of GetProductParameters_e.
+    /// </summary>
+    /// <returns>payload length</returns>
+    public static int encodeDoProduct(byte[] out, int offset, int productNumber, int[] parameters) {
+        int count = parameters == null ? 0 : parameters.length;
+        check(out, offset, 2 + 2 * count);
+        int i = putU16(out, offset, productNumber);
+        for (int p = 0; p < count; p++)
+            i = putU16(out, i, parameters[p]);
+        return i - offset;
+    }
+
+    /// <summary>
+    /// DisplayAction_e payload: action id (16 bit).
+    /// </summary>
+    /// <returns>payload length</returns>
+    public static int encodeDisplayAction(byte[] out, int offset, int action) {
+        check(out, offset, 2);
+        return putU16(out, offset, action) - offset;
+    }
+
+    /// <summary>
+    /// QRCodeMode_e payload: mode (8 bit), then the ASCII content of the code if there is one.
+    /// Characters outside of ASCII are sent as '?'.
+    /// </summary>
+    /// <returns>payload length</returns>
+    public static int encodeQRCodeMode(byte[] out, int offset, int mode, String content) {
+        int contentLength = content == null ? 0 : content.length();
+        check(out, offset, 1 + contentLength);
+        out[offset] = (byte) mode;
+        for (int c = 0; c < contentLength; c++) {
+            char ch = content.charAt(c);
+            out[offset + 1 + c] = (byte) (ch < 0x80 ? ch : '?');
+        }
+        return 1 + contentLength;
+    }
+
+    /// <summary>
+    /// Payload size of encodeQRCodeMode(), to size the buffer.
+    /// </summary>
+    public static int qrCodeModeLength(String content) {
+        return 1 + (content == null ? 0 : content.length());
+    }
+
+    private static int putU16(byte[] out, int index, int value) {
+        out[index] = (byte) value;
+        out[index + 1] = (byte) (value >> 8);
+        return index + 2;
+    }
+
+    private static void check(byte[] out, int offset, int length) {
+        if (offset < 0 || offset + length > out.length)
+            throw new IndexOutOfBoundsException("payload of " + length + " bytes does not fit at " + offset + " into " + out.length);
+    }
+    //#endregion
+}
@@ -0,0 +1,80 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Reason why a future returned by EversysManager.request() or EversysManager.command() failed.
+/// </summary>
+public class EversysRequestException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient Packet_t packet;
+
+	public EversysRequestException(String message, Packet_t packet) {
+		super(message);
+		this.packet = packet;
+	}
+
+	/// <summary>
+	/// Packet which was sent (or should have been sent).
+	/// </summary>
+	public Packet_t getPacket() {
+		return packet;
+	}
+
+	/// <summary>
+	/// No ack was received after MaxSendRepetition retries.
+	/// </summary>
+	public static class AckTimeout extends EversysRequestException {
+		private static final long serialVersionUID = 1L;
+
+		public AckTimeout(Packet_t packet) {
+			super("no ack received", packet);
+		}
+	}
+
+	/// <summary>
+	/// The machine answered with a nack more than MaxSendRepetition times.
+	/// </summary>
+	public static class NackFail extends EversysRequestException {
+		private static final long serialVersionUID = 1L;
+
+		public NackFail(Packet_t packet) {
+			super("packet was not acknowledged (nack)", packet);
+		}
+	}
+
+	/// <summary>
+	/// The request was acknowledged but no response arrived within ResponseTimeout.
+	/// </summary>
+	public static class ResponseTimeout extends EversysRequestException {
+		private static final long serialVersionUID = 1L;
+
+		public ResponseTimeout(Packet_t packet) {
+			super("no response received", packet);
+		}
+	}
+
+	/// <summary>
+	/// The deadline given by the caller expired first. The packet may still be sent.
+	/// </summary>
+	public static class DeadlineExceeded extends EversysRequestException {
+		private static final long serialVersionUID = 1L;
+
+		public DeadlineExceeded(Packet_t packet) {
+			super("deadline exceeded", packet);
+		}
+	}
+
+	/// <summary>
+	/// The packet was not sent because the send queue was full.
+	/// </summary>
+	public static class QueueFull extends EversysRequestException {
+		private static final long serialVersionUID = 1L;
+
+		public QueueFull(Packet_t packet) {
+			super("send queue is full", packet);
+		}
+	}
+}
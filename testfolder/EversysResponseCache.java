@@ -0,0 +1,253 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Read-through cache for the responses of read-only requests of one EversysManager, keyed by
+/// command, parameter and payload.
+///  - A response is reused until the TTL of its command expires. Commands without TTL are not cached.
+///  - Identical requests which are sent while the first one is still open share its wire transaction.
+///  - Every command which may change the machine (see setInvalidating(), by default all commands except
+///    the Get* requests) and every GetStatus response with the justReset bit clears the cache.
+/// Every caller gets its own future, so completing or cancelling it doesn't affect the other callers.
+/// The cached Packet_t is shared by all callers and must not be changed.
+/// </summary>
+public class EversysResponseCache {
+
+    private final EversysManager manager;
+
+    /// <summary>
+    /// TTL in ns by command id; 0 = not cached.
+    /// </summary>
+    private final long[] ttls = new long[256];
+
+    /// <summary>
+    /// true = sending this command clears the cache.
+    /// </summary>
+    private final boolean[] invalidating = new boolean[256];
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    /// <summary>
+    /// Incremented by invalidate(); responses of requests sent before are not stored.
+    /// </summary>
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    EversysResponseCache(EversysManager manager) {
+        this.manager = manager;
+        for (Command_t cmd : Command_t.values()) {
+            if (cmd != Command_t.Undef_e && !cmd.name().startsWith("Get"))
+                invalidating[cmd.getData() & 0xFF] = true;
+        }
+        setTtl(Command_t.GetApiVersion_e, Duration.ofHours(1));
+        setTtl(Command_t.GetProductParameters_e, Duration.ofMinutes(1));
+        setTtl(Command_t.GetMachineCounters_e, Duration.ofSeconds(5));
+    }
+
+    /// <summary>
+    /// Sets how long the responses of the request are reused. Duration.ZERO disables caching for it.
+    /// </summary>
+    public void setTtl(Command_t command, Duration ttl) {
+        ttls[command.getData() & 0xFF] = ttl.toNanos();
+        if (ttl.isZero())
+            invalidate(command);
+    }
+
+    public Duration getTtl(Command_t command) {
+        return Duration.ofNanos(ttls[command.getData() & 0xFF]);
+    }
+
+    /// <summary>
+    /// Sets whether sending the command clears the cache.
+    /// </summary>
+    public void setInvalidating(Command_t command, boolean clearsCache) {
+        invalidating[command.getData() & 0xFF] = clearsCache;
+    }
+
+    public boolean isInvalidating(Command_t command) {
+        return invalidating[command.getData() & 0xFF];
+    }
+
+    public boolean isCached(Command_t command) {
+        return ttls[command.getData() & 0xFF] > 0;
+    }
+
+    /// <summary>
+    /// Returns the cached response, joins an open identical request, or sends the request.
+    /// </summary>
+    public CompletableFuture<Packet_t> request(Command_t command, short cmdParam, byte[] data) {
+        long ttl = ttls[command.getData() & 0xFF];
+        if (ttl == 0)
+            return manager.submitRequest(command, cmdParam, data, null);
+
+        Key key = new Key(command, cmdParam, data);
+        long now = System.nanoTime();
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.future.isDone()) {
+                    merged.incrementAndGet();
+                    return dependent(entry);
+                }
+                if (!entry.future.isCompletedExceptionally() && now - entry.expires < 0) {
+                    hits.incrementAndGet();
+                    return dependent(entry);
+                }
+                entries.remove(key, entry);     // expired or failed
+                continue;
+            }
+
+            Entry created = new Entry(generation.get());
+            if (entries.putIfAbsent(key, created) != null)
+                continue;       // another thread was faster, join its request
+
+            misses.incrementAndGet();
+            send(key, created, command, cmdParam, data, ttl);
+            return dependent(created);
+        }
+    }
+
+    /// <summary>
+    /// Future of one caller; completes with the shared future of the entry.
+    /// </summary>
+    private static CompletableFuture<Packet_t> dependent(Entry entry) {
+        return entry.future.thenApply(Function.<Packet_t>identity());
+    }
+
+    /// <summary>
+    /// The cached response if it is still valid, otherwise null. Never sends anything.
+    /// </summary>
+    public Packet_t getCached(Command_t command, short cmdParam, byte[] data) {
+        Entry entry = entries.get(new Key(command, cmdParam, data));
+        if (entry == null || !entry.future.isDone() || entry.future.isCompletedExceptionally()
+                || System.nanoTime() - entry.expires >= 0)
+            return null;
+        hits.incrementAndGet();
+        return entry.future.getNow(null);
+    }
+
+    private void send(final Key key, final Entry entry, Command_t command, short cmdParam, byte[] data, final long ttl) {
+        CompletableFuture<Packet_t> wire = manager.submitRequest(command, cmdParam, data, null);
+        wire.whenComplete(new BiConsumer<Packet_t, Throwable>() {
+            @Override
+            public void accept(Packet_t response, Throwable error) {
+                if (error != null || entry.generation != generation.get()) {
+                    // failed, or the machine changed while the request was open: don't keep it
+                    entries.remove(key, entry);
+                } else {
+                    entry.expires = System.nanoTime() + ttl;
+                }
+
+                if (error != null)
+                    entry.future.completeExceptionally(error);
+                else
+                    entry.future.complete(response);
+            }
+        });
+    }
+
+    //#region invalidation
+    /// <summary>
+    /// Called by EversysManager for every command which is sent.
+    /// </summary>
+    void commandSent(byte command) {
+        if (invalidating[command & 0xFF])
+            invalidate();
+    }
+
+    /// <summary>
+    /// Called by EversysManager for every response; a justReset clears the cache.
+    /// </summary>
+    void responseReceived(Packet_t response) {
+        if (EversysPayloads.isJustReset(response))
+            invalidate();
+    }
+
+    /// <summary>
+    /// Removes all cached responses. Open requests still complete their callers but are not stored.
+    /// </summary>
+    public void invalidate() {
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        entries.clear();
+    }
+
+    /// <summary>
+    /// Removes the cached responses of one command.
+    /// </summary>
+    public void invalidate(Command_t command) {
+        for (Key key : entries.keySet()) {
+            if (key.command == command)
+                entries.remove(key);
+        }
+    }
+    //#endregion
+
+    //#region statistics
+    /// <summary>
+    /// Requests answered from the cache.
+    /// </summary>
+    public long getHitCount() { return hits.get(); }
+    /// <summary>
+    /// Requests which joined an identical open request.
+    /// </summary>
+    public long getMergedCount() { return merged.get(); }
+    /// <summary>
+    /// Requests which were sent to the machine.
+    /// </summary>
+    public long getMissCount() { return misses.get(); }
+    public long getInvalidationCount() { return invalidations.get(); }
+    public int size() { return entries.size(); }
+    //#endregion
+
+    private static final class Entry {
+        final long generation;
+        final CompletableFuture<Packet_t> future = new CompletableFuture<Packet_t>();
+        volatile long expires;
+
+        Entry(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static final class Key {
+        final Command_t command;
+        final short cmdParam;
+        final byte[] data;
+        final int hash;
+
+        Key(Command_t command, short cmdParam, byte[] data) {
+            this.command = command;
+            this.cmdParam = cmdParam;
+            this.data = data == null ? new byte[0] : data.clone();
+            this.hash = (command.hashCode() * 31 + cmdParam) * 31 + Arrays.hashCode(this.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return command == other.command && cmdParam == other.cmdParam && Arrays.equals(data, other.data);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+
+/// <summary>
+/// Round trip time estimation per command in the style of Jacobson/Karels (RFC 6298):
+///   first sample : srtt = r, rttvar = r / 2
+///   next samples : rttvar = 3/4 rttvar + 1/4 |srtt - r|, srtt = 7/8 srtt + 1/8 r
+///   timeout      = (srtt + 4 rttvar) * 2^backoff, clamped to [min, max(max, configured)]
+/// Until the first sample of a command the configured timeout of the engine (AckTimeout or ResponseTimeout)
+/// is used instead of srtt + 4 rttvar; the upper bound never shortens it. With configuredFloor the configured
+/// timeout is also the lower bound (response deadlines: a response is not repeated by the machine, so a
+/// deadline which is too short fails the request). Every timeout doubles the timeout of the command (backoff), the next
+/// valid sample resets it. Only packets which were sent once are sampled (Karn), because the answer to a
+/// repeated packet can't be matched to one of its transmissions.
+///
+/// One instance per engine and kind (ack, response). Updated by the transmission thread; the getters may be
+/// called from any thread and may return slightly stale values.
+/// </summary>
+public class EversysRttEstimator {
+
+    private static final String[] COMMAND_NAMES = new String[256];
+
+    static {
+        for (int i = 0; i < 256; i++)
+            COMMAND_NAMES[i] = String.format("0x%02X", i);
+        for (Command_t cmd : Command_t.values())
+            COMMAND_NAMES[cmd.getData() & 0xFF] = cmd.name();
+    }
+
+    /// <summary>
+    /// Highest backoff exponent; the timeout grows at most 2^MAX_BACKOFF times.
+    /// </summary>
+    static final int MAX_BACKOFF = 5;
+
+    private final long[] srtt = new long[256];
+    private final long[] rttvar = new long[256];
+    private final long[] samples = new long[256];
+    private final int[] backoff = new int[256];
+
+    private volatile long minTimeout;
+    private volatile long maxTimeout;
+    private final boolean configuredFloor;
+
+    /// <summary>
+    /// Configured timeout of the last timeoutNanos() call; for the getters.
+    /// </summary>
+    private volatile long configuredTimeout;
+
+    /// <summary>
+    /// Creates an estimator.
+    /// </summary>
+    /// <param name="min">lower bound of the timeout</param>
+    /// <param name="max">upper bound of the estimated timeout; a longer configured timeout is still used</param>
+    /// <param name="configured">configured timeout of the engine, until the first timeoutNanos() call</param>
+    /// <param name="configuredFloor">true = the timeout is never shorter than the configured one</param>
+    public EversysRttEstimator(Duration min, Duration max, Duration configured, boolean configuredFloor) {
+        setBounds(min, max);
+        configuredTimeout = configured.toNanos();
+        this.configuredFloor = configuredFloor;
+    }
+
+    /// <summary>
+    /// Sets the range of the computed timeouts. The upper bound never shortens the configured timeout.
+    /// </summary>
+    public void setBounds(Duration min, Duration max) {
+        if (min.isNegative() || max.compareTo(min) < 0)
+            throw new IllegalArgumentException("invalid timeout bounds: " + min + " .. " + max);
+        minTimeout = min.toNanos();
+        maxTimeout = max.toNanos();
+    }
+
+    public Duration getMinTimeout() {
+        return Duration.ofNanos(minTimeout);
+    }
+
+    public Duration getMaxTimeout() {
+        return Duration.ofNanos(maxTimeout);
+    }
+
+    //#region called by the engine
+    /// <summary>
+    /// Adds a round trip time of a packet which was sent once.
+    /// </summary>
+    void sample(byte command, long nanos) {
+        int c = command & 0xFF;
+        if (nanos < 0)
+            return;
+        if (samples[c] == 0) {
+            srtt[c] = nanos;
+            rttvar[c] = nanos / 2;
+        } else {
+            long error = srtt[c] - nanos;
+            rttvar[c] += ((error < 0 ? -error : error) - rttvar[c]) >> 2;
+            srtt[c] += (nanos - srtt[c]) >> 3;
+        }
+        samples[c]++;
+        backoff[c] = 0;
+    }
+
+    /// <summary>
+    /// Doubles the timeout of the command until the next valid sample.
+    /// </summary>
+    void timedOut(byte command) {
+        int c = command & 0xFF;
+        if (backoff[c] < MAX_BACKOFF)
+            backoff[c]++;
+    }
+
+    /// <summary>
+    /// Current timeout of the command in ns.
+    /// </summary>
+    /// <param name="configured">configured timeout in ns (AckTimeout or ResponseTimeout)</param>
+    long timeoutNanos(byte command, long configured) {
+        configuredTimeout = configured;
+        int c = command & 0xFF;
+        long base = samples[c] == 0 ? configured : srtt[c] + 4 * rttvar[c];
+        long timeout = base << backoff[c];
+        if (timeout < base)
+            timeout = Long.MAX_VALUE;     // overflow
+        long floor = configuredFloor ? Math.max(minTimeout, configured) : minTimeout;
+        return Math.max(floor, Math.min(Math.max(maxTimeout, configured), timeout));
+    }
+    //#endregion
+
+    //#region live estimates
+    public Duration getSmoothedRtt(Command_t command) {
+        return Duration.ofNanos(srtt[command.getData() & 0xFF]);
+    }
+
+    public Duration getRttVariance(Command_t command) {
+        return Duration.ofNanos(rttvar[command.getData() & 0xFF]);
+    }
+
+    public long getSampleCount(Command_t command) {
+        return samples[command.getData() & 0xFF];
+    }
+
+    public int getBackoff(Command_t command) {
+        return backoff[command.getData() & 0xFF];
+    }
+
+    /// <summary>
+    /// Timeout which the next transmission of the command gets.
+    /// </summary>
+    public Duration getTimeout(Command_t command) {
+        return Duration.ofNanos(timeoutNanos(command.getData(), configuredTimeout));
+    }
+
+    /// <summary>
+    /// Smoothed round trip time in microseconds of every sampled command, keyed by the Command_t name.
+    /// </summary>
+    public Map<String, Double> getSmoothedRtts() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < 256; i++) {
+            if (samples[i] > 0)
+                result.put(COMMAND_NAMES[i], srtt[i] / 1000.0);
+        }
+        return result;
+    }
+
+    /// <summary>
+    /// Timeout in microseconds of every sampled or backed off command, keyed by the Command_t name.
+    /// </summary>
+    public Map<String, Double> getTimeouts() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        long configured = configuredTimeout;
+        for (int i = 0; i < 256; i++) {
+            if (samples[i] > 0 || backoff[i] > 0)
+                result.put(COMMAND_NAMES[i], timeoutNanos((byte) i, configured) / 1000.0);
+        }
+        return result;
+    }
+    //#endregion
+
+    /// <summary>
+    /// Forgets all samples and backoffs.
+    /// </summary>
+    public void reset() {
+        for (int i = 0; i < 256; i++) {
+            srtt[i] = 0;
+            rttvar[i] = 0;
+            samples[i] = 0;
+            backoff[i] = 0;
+        }
+    }
+}
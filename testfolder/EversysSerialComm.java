@@ -2,33 +2,33 @@ package com.dalkomm.beat.booth.manager.comm.serial;
 
 import java.beans.IntrospectionException;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.dalkomm.beat.booth.manager.comm.serial.BoundedMpmcQueue.OverflowPolicy_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
 import com.dalkomm.beat.booth.manager.conf.Configuration;
 import com.dalkomm.beat.booth.manager.dao.ConfigDao;
 import com.dalkomm.beat.booth.manager.data.config.SerialConfig;
 import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
 import com.dalkomm.beat.booth.manager.exception.SerialCommException;
-import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortDataListener;
-import com.fazecast.jSerialComm.SerialPortEvent;
 
 
 /**
@@ -42,15 +42,31 @@ public class EversysSerialComm {
 	
 	private PacketEventListener mListener = null;
 
+    /// <summary>
+    /// Delivers the listener callbacks off the transmission thread, see ConfigureCallbacks().
+    /// </summary>
+    private EversysCallbackDispatcher callbacks = CreateCallbackDispatcher(EversysCallbackDispatcher.defaultExecutor(),
+            EversysCallbackDispatcher.DEFAULT_CAPACITY);
+
     public void setListener(PacketEventListener listener) {
         this.mListener = listener;
     }
 
+    /// <summary>
+    /// Gets the written telegrams, see FrameSentListener. null = the telegrams are not reported
+    /// (and not copied), except to dataSentIntercept() of a listener which doesn't implement FrameSentListener.
+    /// </summary>
+    private volatile FrameSentListener mFrameSentListener = null;
+
+    public void setFrameSentListener(FrameSentListener listener) {
+        this.mFrameSentListener = listener;
+    }
+
 	protected void fireAckNackReceived(boolean timeout) {
         if (mListener != null) {
             Object sender = this; 
             PacketEventArgs eventArgs = new PacketEventArgs(timeout);
-            mListener.PacketEventFired(sender, eventArgs);
+            callbacks.packetEvent(mListener, sender, eventArgs);
         }
     }
 	
@@ -58,40 +74,60 @@ public class EversysSerialComm {
         if (mListener != null) {
             Object sender = this; 
             PacketEventArgs eventArgs = new PacketEventArgs(packet);
-            mListener.PacketEventFired(sender, eventArgs);
+            callbacks.packetEvent(mListener, sender, eventArgs);
         }
     }
 
     private void callPacketSentHandler(Packet_t p)
     {
         if (mListener != null)
-        	mListener.packetSent(p);
+        	callbacks.packetSent(mListener, p);
     }
 
     private void callPacketReceivedHandler(Packet_t p)
     {
         if (mListener != null)
-        	mListener.packetReceived(p);
+        	callbacks.packetReceived(mListener, p);
     }
     private void callAckTimeoutHandler(Packet_t p)
     {
         if (mListener != null)
-        	mListener.ackTimeout(p);
+        	callbacks.ackTimeout(mListener, p);
     }
     private void callNackFailHandler(Packet_t p)
     {
         if (mListener != null)
-        	mListener.nackFail(p);
+        	callbacks.nackFail(mListener, p);
     }
     private void callResponseTimeoutHandler(Packet_t p)
     {
         if (mListener != null)
-        	mListener.responseTimeout(p);
+        	callbacks.responseTimeout(mListener, p);
     }
-    private void callDataSentInterceptHandler(byte[] arr)
+    private void callDataSentInterceptHandler(byte[] frame, int length)
     {
-        if (mListener != null)
-        	mListener.dataSentIntercept(arr);
+        FrameSentListener frameListener = mFrameSentListener;
+        if (frameListener != null)
+            callbacks.frameSent(frameListener, frame, length);
+        else if (mListener != null && !(mListener instanceof FrameSentListener))
+        	callbacks.dataSent(mListener, frame, length);
+    }
+    private void callResponseReceivedHandler(Packet_t request, Packet_t response)
+    {
+        if (mListener instanceof ResponseListener)
+            callbacks.responseReceived(mListener, request, response);
+    }
+    private void callFramingErrorHandler(FramingError_t error, int discardedBytes)
+    {
+        if (mListener instanceof FramingErrorListener)
+            callbacks.framingError(mListener, error, discardedBytes);
+    }
+    private void callPacketDroppedHandler(Queue_t queue, Object packet, boolean rejected)
+    {
+        if (rejected)
+            logger.error("packet rejected, " + queue + " is full");
+        if (mListener instanceof PacketOverflowListener)
+            callbacks.packetDropped(mListener, queue, packet, rejected);
     }
     
 	
@@ -272,18 +308,33 @@ public class EversysSerialComm {
     }
     
   /// <summary>
-    /// Raw telegram packet with data-array and the data length. (including SOH and EOT)
-    /// Shifted character are still shifted.
+    /// Received telegram without SOH and EOT. Shifted characters are already reverted.
+    /// The objects are pooled: the data array has the size of MaxPacketSize and is reused for the next telegram.
     /// </summary>
     public class RawPacket_t
     {
         public byte[] data;
         public int length;
+        /// <summary>
+        /// CRC calculated over all bytes of the telegram including the transmitted CRC. 0 = CRC ok.
+        /// </summary>
+        public short crcResidue;
+        /// <summary>
+        /// true = the ack/nack was already written by the receive thread, see setInlineAcks().
+        /// </summary>
+        boolean ackSent;
         public RawPacket_t(byte[] data, int length)
         {
             this.data = new byte[length];
             this.length = length;
-            System.arraycopy(data, 0, this.data, length, length);
+            System.arraycopy(data, 0, this.data, 0, length);
+            this.crcResidue = CalculateCRC(this.data, length);
+        }
+        public RawPacket_t(int capacity)
+        {
+            this.data = new byte[capacity];
+            this.length = 0;
+            this.crcResidue = CRC_INIT;
         }
     }
     
@@ -324,6 +375,33 @@ public class EversysSerialComm {
 
         public boolean isFail;         // true= this packet has an error in it
 
+        /// <summary>
+        /// true = the sequence number is assigned when the packet leaves the outgoing queues, so the
+        /// machine sees increasing numbers even when a packet of a higher lane overtakes this one.
+        /// </summary>
+        boolean numberOnSend;
+
+        /// <summary>
+        /// true = this received packet was already acknowledged by the receive thread, see setInlineAcks().
+        /// </summary>
+        boolean ackSent;
+
+        /// <summary>
+        /// Precompiled telegram of an outgoing packet, see CreatePacket(EversysFrameTemplate); null = encoded on send.
+        /// CRC stays null for such packets.
+        /// </summary>
+        EversysFrameTemplate template;
+
+        /// <summary>
+        /// true = the sender gave up on this packet, see WithdrawPacket(). It is not sent (again).
+        /// </summary>
+        volatile boolean withdrawn;
+
+        /// <summary>
+        /// true = response to a request of the machine, see CreateResponse(). It is sent once, without waiting for an ack.
+        /// </summary>
+        boolean response;
+
         /// <summary>
         /// Converts the packet to a byte array.
         /// </summary>
@@ -377,7 +455,19 @@ public class EversysSerialComm {
         /// <returns>raw data array</returns>
         public byte[] ToRawArray()
         {
-            return ProcessToSend(this.ToByteArray());
+            byte[] buffer = new byte[EversysFrameEncoder.maxFrameLength(dataLength)];
+            int length = EversysFrameEncoder.encode(this, buffer, 0);
+            return Arrays.copyOf(buffer, length);
+        }
+
+        /// <summary>
+        /// Stores the crc which EversysFrameEncoder calculated while encoding this packet.
+        /// </summary>
+        void setCRC(short crc)
+        {
+            if (CRC == null)
+                CRC = new PacketCRC_t();
+            CRC.As16BitVal = crc;
         }
 	}
 	
@@ -418,6 +508,39 @@ public class EversysSerialComm {
 		ResponseTimeout = responseTimeout;
 	}
 
+    /// <summary>
+    /// true = the ack and response deadlines of a slow command follow its measured round trip times and
+    /// back off after timeouts, see EversysRttEstimator. The ack deadline of a fast command may get shorter than
+    /// AckTimeout (at least 10 ms), so a lost ack is repeated sooner; the response deadline is never shorter
+    /// than ResponseTimeout, because a lost response is not repeated. Both use the configured timeouts until
+    /// the first measurement of a command.
+    /// false = every command waits AckTimeout and ResponseTimeout.
+    /// </summary>
+    private volatile boolean _adaptiveTimeouts = true;
+    public boolean isAdaptiveTimeouts() {
+		return _adaptiveTimeouts;
+	}
+
+	public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+		_adaptiveTimeouts = adaptiveTimeouts;
+	}
+
+    /// <summary>
+    /// Round trip times from sending a packet to its ack, by command.
+    /// </summary>
+    private final EversysRttEstimator _ackRtt = new EversysRttEstimator(Duration.ofMillis(10), Duration.ofSeconds(1), Duration.ofMillis(200), false);
+    public EversysRttEstimator getAckRtt() {
+		return _ackRtt;
+	}
+
+    /// <summary>
+    /// Round trip times from sending a request to its response, by command.
+    /// </summary>
+    private final EversysRttEstimator _responseRtt = new EversysRttEstimator(Duration.ofMillis(10), Duration.ofSeconds(5), Duration.ofMillis(200), true);
+    public EversysRttEstimator getResponseRtt() {
+		return _responseRtt;
+	}
+
     /// <summary>
     /// Maximal number of retries until an ack is received, without the initial attempt.
     /// </summary>
@@ -431,14 +554,74 @@ public class EversysSerialComm {
 		MaxSendRepetition = maxSendRepetition;
 	}
 
+    /// <summary>
+    /// Maximal number of sent packets which wait for their ack/response at the same time.
+    /// 1 = stop-and-wait: the next packet is only sent after the ack (or the response of a request).
+    /// Higher values should only be used with firmware which accepts several packets in a row.
+    /// </summary>
+    private int _windowSize = 1;
+    public int getWindowSize() {
+		return _windowSize;
+	}
+
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE)
+			throw new IllegalArgumentException("window size out of range: " + windowSize);
+		_windowSize = windowSize;
+		signalWork();
+	}
+
+    /// <summary>
+    /// true = data packets and requests of the machine are acknowledged (or nacked) by the receive thread as soon as
+    /// their telegram is complete, with a precomputed ack telegram, instead of one round later by the transmission
+    /// thread. Telegrams whose sequence number matches an open request of ours may be its response and are still
+    /// handled by the transmission thread, which also delivers the packets and drops the repetitions.
+    /// Not possible with a write coalescing window: an inline ack would overtake the buffered telegrams.
+    /// </summary>
+    private volatile boolean _inlineAcks = false;
+    public boolean isInlineAcks() {
+		return _inlineAcks;
+	}
+
+	public synchronized void setInlineAcks(boolean inlineAcks) {
+		if (inlineAcks && _writeCoalescingWindow > 0)
+			throw new IllegalStateException("inline acks need write coalescing window 0");
+		_inlineAcks = inlineAcks;
+	}
+
+    /// <summary>
+    /// Write combining window in microseconds. The telegrams (acks, nacks, data) which are written in one
+    /// round of the transmission thread are always combined into one writeBytes() call.
+    /// With a window > 0 the first telegram waits up to this long for more telegrams (e.g. the ack of
+    /// the next received packet) before the buffer is written. 0 = write at the end of every round.
+    /// A window > 0 is not possible with inline acks, see setInlineAcks().
+    /// </summary>
+    private volatile long _writeCoalescingWindow = 0;
+    public long getWriteCoalescingWindow() {
+		return _writeCoalescingWindow;
+	}
+
+	public synchronized void setWriteCoalescingWindow(long microseconds) {
+		if (microseconds < 0 || microseconds > MAX_WRITE_COALESCING_WINDOW)
+			throw new IllegalArgumentException("write coalescing window out of range: " + microseconds);
+		if (microseconds > 0 && _inlineAcks)
+			throw new IllegalStateException("write coalescing window needs inline acks off");
+		_writeCoalescingWindow = microseconds;
+		signalWork();
+	}
+
     /// <summary>
     /// How long the thread will be inactive after every execution.
+    /// Not used anymore: the thread sleeps until there is work to do or an ack/response deadline expires.
     /// </summary>
+	@Deprecated
 	public int ThreadSleepTime;
+	@Deprecated
     public int getThreadSleepTime() {
 		return ThreadSleepTime;
 	}
 
+	@Deprecated
 	public void setThreadSleepTime(int threadSleepTime) {
 		ThreadSleepTime = threadSleepTime;
 	}
@@ -459,8 +642,9 @@ public class EversysSerialComm {
             //ApiPort.WriteBufferSize = 2 * _maxPacketSize;
             //ApiPort.ReadBufferSize = 2 * _maxPacketSize;
         }
-        //Array.Resize(ref rawDataBuffer, _maxPacketSize);
-		rawDataBuffer = Arrays.copyOfRange(rawDataBuffer,0,_maxPacketSize);		//hcpark
+        // the current telegram and the pooled buffers have the old size
+        frameDecoder.setMaxFrameSize(_maxPacketSize);
+        RawPacketPool.clear();
 	}
 
     /// <summary>
@@ -492,7 +676,7 @@ public class EversysSerialComm {
     /// This value is used to safely terminate the used thread and close the port.
     /// </summary>
     public boolean PortIsIdle() {
-    	if (rawDataBufferLength == 0 && _sendIsIdle && _receiveIsIdle)
+    	if (frameDecoder.getBufferedLength() == 0 && _writeBufferLength == 0 && _sendIsIdle && _receiveIsIdle)
             return true;
         else
             return false;
@@ -503,7 +687,7 @@ public class EversysSerialComm {
     /// True if the port is open.
     /// </summary>
     public boolean PortIsOpen() {
-        return ApiPort.isOpen();
+        return ApiPort != null && ApiPort.isOpen();
     }
 
     /// <summary>
@@ -537,6 +721,28 @@ public class EversysSerialComm {
         return _portName;
     }
 
+    /// <summary>
+    /// Counters, gauges and latency histograms of this instance.
+    /// </summary>
+    private final EversysMetrics metrics = new EversysMetrics(this);
+    public EversysMetrics getMetrics() {
+        return metrics;
+    }
+
+    /// <summary>
+    /// State of the oldest packet in flight (Idle, Sending, WaitingForAck, WaitingForResponse).
+    /// </summary>
+    public String getSendState() {
+        return ThreadState.name();
+    }
+
+    /// <summary>
+    /// Number of packets which are sent and wait for their ack or response.
+    /// </summary>
+    public int getInFlightCount() {
+        return _inFlightCount;
+    }
+
     /// <summary>
     /// Sequence number of the last sent packet.
     /// </summary>
@@ -552,28 +758,13 @@ public class EversysSerialComm {
     /// </summary>
     private int lastAckCommand = -1;
 
-    /// <summary>
-    /// Counts Ack_e timeouts until it reaches MaxSendRepetition
-    /// </summary>
-    private int ackTimeoutCounter = 0;
-
-    /// <summary>
-    /// Counts Nacks until it reaches MaxSendRepetition
-    /// </summary>
-    private int nackCounter = 0;
-
     /// <summary>
     /// This number increments after every new command/request; repetitions are with the same number.
     /// </summary>
     private byte sequenceNumber = 0;
 
     /// <summary>
-    /// Flag; set when a request is in the queue and data with the same sequenceNumber was received.
-    /// </summary>
-    private boolean responseReceived = false;
-
-    /// <summary>
-    /// Flag; set when a request was sent but the response was not yet received
+    /// Flag; set when the machine sent a request and our response (see CreateResponse()) was not sent yet
     /// </summary>
     private boolean requestOpen = false;
 
@@ -581,22 +772,40 @@ public class EversysSerialComm {
     /// Always set to the time when the last packet was received.
     /// Used to prohibit the sending of a response or Ack/Nack after the timeout time was exceeded.
     /// </summary>
-    private LocalDateTime incomingTimeStamp = LocalDateTime.now();		//hcpark : DateTime...
+    private volatile long incomingNanos = System.nanoTime();		//hcpark : DateTime... ; System.nanoTime()
+
+    /// <summary>
+    /// Assembles the received bytes into telegrams and puts them into the IncomingRawQueue.
+    /// </summary>
+    private final EversysFrameDecoder frameDecoder = new EversysFrameDecoder(512, new EversysFrameDecoder.FrameHandler() {
+        @Override
+        public byte[] frameReceived(byte[] frame, int length, short crcResidue)
+        {
+            return RawFrameReceived(frame, length, crcResidue);
+        }
+
+        @Override
+        public void framingError(FramingError_t error, int discardedBytes)
+        {
+            metrics.framingError(error);
+            callFramingErrorHandler(error, discardedBytes);
+        }
+    });
 
     /// <summary>
-    /// Length of the rawDataBuffer array. (Number of filled fields rather than the array length).
+    /// RawPacket_t objects which were processed and can be reused for the next telegrams.
     /// </summary>
-    private int rawDataBufferLength = 0;
+    private final BoundedMpmcQueue<RawPacket_t> RawPacketPool = new BoundedMpmcQueue<RawPacket_t>(128, OverflowPolicy_t.Reject_e);
 
     /// <summary>
-    /// Buffer to save the data which is received on the serial port. Its size equals MaxPacketSize.
+    /// Payload of packets without data.
     /// </summary>
-    private byte[] rawDataBuffer = new byte[512];
+    private static final byte[] EMPTY_DATA = new byte[0];
 
     /// <summary>
     /// When this flag is set to true the Serialport will be closed as soon as the ongoing transmission is finished.
     /// </summary>
-    private boolean stopSerialPort = false;
+    private volatile boolean stopSerialPort = false;
 
     /// <summary>
     /// When the ChangePort function is called and the port is currently busy then the new baudrate is stored here.
@@ -611,7 +820,7 @@ public class EversysSerialComm {
     /// <summary>
     /// Stop flag for the transmission thread.
     /// </summary>
-    private boolean stopTransmissionThread = false;
+    private volatile boolean stopTransmissionThread = false;
 
     /// <summary>
     /// number of bytes in the packet-header(PIP+PIE+PN+SA+DA)
@@ -638,198 +847,590 @@ public class EversysSerialComm {
     /// Protocol version. Should be incremented after every major release.
     /// </summary>
     final byte PROTOCOL_VERSION = 0;
+    /// <summary>
+    /// Maximal window size. Must stay well below 256 so that the sequence numbers of the packets in flight are unique.
+    /// </summary>
+    static final int MAX_WINDOW_SIZE = 32;
 
-    
-	private SerialPort ApiPort = null;
-	private Thread TransmissionThread = null;
-    private Queue<Packet_t> OutgoingQueue = new LinkedList<Packet_t>();
-    private Queue<Packet_t> IncomingDataQueue = new LinkedList<Packet_t>();
-    private Queue<Packet_t> IncomingAckQueue = new LinkedList<Packet_t>();
-    private Queue<RawPacket_t> IncomingRawQueue = new LinkedList<RawPacket_t>();
-    
-	/// <summary>
-    /// LUT for the CRC-16-IBM (x^16 + x^15 + x^2 + 1)
-    /// </summary>
-    static int[] crcPolynomTable = 
-    {
-    		// hcpark : ushort => int
-        0x0000,0xc0c1,0xc181,0x0140,0xc301,0x03c0,0x0280,0xc241,
-        0xc601,0x06c0,0x0780,0xc741,0x0500,0xc5c1,0xc481,0x0440,
-        0xcc01,0x0cc0,0x0d80,0xcd41,0x0f00,0xcfc1,0xce81,0x0e40,
-        0x0a00,0xcac1,0xcb81,0x0b40,0xc901,0x09c0,0x0880,0xc841,
-        0xd801,0x18c0,0x1980,0xd941,0x1b00,0xdbc1,0xda81,0x1a40,
-        0x1e00,0xdec1,0xdf81,0x1f40,0xdd01,0x1dc0,0x1c80,0xdc41,
-        0x1400,0xd4c1,0xd581,0x1540,0xd701,0x17c0,0x1680,0xd641,
-        0xd201,0x12c0,0x1380,0xd341,0x1100,0xd1c1,0xd081,0x1040,
-        0xf001,0x30c0,0x3180,0xf141,0x3300,0xf3c1,0xf281,0x3240,
-        0x3600,0xf6c1,0xf781,0x3740,0xf501,0x35c0,0x3480,0xf441,
-        0x3c00,0xfcc1,0xfd81,0x3d40,0xff01,0x3fc0,0x3e80,0xfe41,
-        0xfa01,0x3ac0,0x3b80,0xfb41,0x3900,0xf9c1,0xf881,0x3840,
-        0x2800,0xe8c1,0xe981,0x2940,0xeb01,0x2bc0,0x2a80,0xea41,
-        0xee01,0x2ec0,0x2f80,0xef41,0x2d00,0xedc1,0xec81,0x2c40,
-        0xe401,0x24c0,0x2580,0xe541,0x2700,0xe7c1,0xe681,0x2640,
-        0x2200,0xe2c1,0xe381,0x2340,0xe101,0x21c0,0x2080,0xe041,
-        0xa001,0x60c0,0x6180,0xa141,0x6300,0xa3c1,0xa281,0x6240,
-        0x6600,0xa6c1,0xa781,0x6740,0xa501,0x65c0,0x6480,0xa441,
-        0x6c00,0xacc1,0xad81,0x6d40,0xaf01,0x6fc0,0x6e80,0xae41,
-        0xaa01,0x6ac0,0x6b80,0xab41,0x6900,0xa9c1,0xa881,0x6840,
-        0x7800,0xb8c1,0xb981,0x7940,0xbb01,0x7bc0,0x7a80,0xba41,
-        0xbe01,0x7ec0,0x7f80,0xbf41,0x7d00,0xbdc1,0xbc81,0x7c40,
-        0xb401,0x74c0,0x7580,0xb541,0x7700,0xb7c1,0xb681,0x7640,
-        0x7200,0xb2c1,0xb381,0x7340,0xb101,0x71c0,0x7080,0xb041,
-        0x5000,0x90c1,0x9181,0x5140,0x9301,0x53c0,0x5280,0x9241,
-        0x9601,0x56c0,0x5780,0x9741,0x5500,0x95c1,0x9481,0x5440,
-        0x9c01,0x5cc0,0x5d80,0x9d41,0x5f00,0x9fc1,0x9e81,0x5e40,
-        0x5a00,0x9ac1,0x9b81,0x5b40,0x9901,0x59c0,0x5880,0x9841,
-        0x8801,0x48c0,0x4980,0x8941,0x4b00,0x8bc1,0x8a81,0x4a40,
-        0x4e00,0x8ec1,0x8f81,0x4f40,0x8d01,0x4dc0,0x4c80,0x8c41,
-        0x4400,0x84c1,0x8581,0x4540,0x8701,0x47c0,0x4680,0x8641,
-        0x8201,0x42c0,0x4380,0x8341,0x4100,0x81c1,0x8081,0x4040
-    };
-    
-    //================
-    // public methods
-    //================
     /// <summary>
-    /// Default values:
-    /// ThreadSleepTime = 1ms
-    /// MaxPacketSize = 256
-    /// SequenceNumber = 0
-    /// MaxSendRepetition = 3
-    /// Timeouts = 200ms
+    /// Maximal write coalescing window in microseconds.
     /// </summary>
-    /// <param name="portName">Name of the port e.g. COM1</param>
-    /// <param name="baudRate">Baudrate e.g. 9600</param>
-    /// <param name="address">ID of this device (source id)</param>
-    public void SerialComm(String portName, int baudRate, byte address)
-    {
-        Address = address;
-        AckTimeout = Duration.ofMillis(200);
-        ResponseTimeout = Duration.ofMillis(200);
-        MaxSendRepetition = 3;
-        ThreadSleepTime = 1;
-        setMaxPacketSize(256);
-        sequenceNumber = 0;
-        setTransmissionThreadPriority(10); //ThreadPriority.Highest;
+    static final long MAX_WRITE_COALESCING_WINDOW = 10000;
 
-        _baudRate = baudRate;
-        _portName = portName;
+    /// <summary>
+    /// How often (ns) new work is checked for while the write coalescing window is open.
+    /// </summary>
+    private static final long WRITE_COALESCING_POLL = 50000;
+
+    /// <summary>
+    /// Initial size of the write buffer; it grows for longer telegrams.
+    /// </summary>
+    private static final int WRITE_BUFFER_SIZE = 1024;
 
-        //ApiPort = new SerialPort(portName, baudRate, Parity.None, 8, StopBits.One);
-        
-        try
-        {
-        	initialize();
-            ApiPort = getSerialPort(portName);
-            readySerialPort(ApiPort);
-        } catch (DeviceInitializeException e) {
-        	logger.error(e.toString());
-        }
-    }
     
-    /**
-	 * @param serial
-	 */
-	public void readySerialPort(SerialPort serial) {
-		if(!serial.isOpen()) {
-			serial.setBaudRate(_baudRate);
-			serial.openPort();
-			
-			// 8N1 => default setting
-			
-			serial.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING, 
-					DEFAULT_COMM_READ_TIMEOUT, DEFAULT_COMM_WRITE_TIMEOUT);
-		}
+	/// <summary>
+	/// Port to the machine; the engine only uses the SerialTransport interface.
+	/// </summary>
+	private SerialTransport ApiPort = null;
+
+	/// <summary>
+	/// Creates the transport in SerialComm(portName, ...) and ChangePort().
+	/// </summary>
+	private SerialTransport.Factory _transportFactory = JSerialCommTransport.FACTORY;
+	public SerialTransport.Factory getTransportFactory() {
+		return _transportFactory;
 	}
-	
+
 	/// <summary>
-    /// Opens the port and starts the thread.
-    /// </summary>
-    public void Start()
-    {
-    	ApiPort.setBaudRate(_baudRate);
-		
-        boolean success = false;
-        int tries = 0;
-        if (!ApiPort.isOpen())
-        {
-            while (success == false && tries < 10)
-            {
-               	success = ApiPort.openPort();
-                if (!success) tries++;
-            
-                stopSerialPort = false;
-            }
-        }
+	/// Sets the factory for the port names, e.g. TcpTransport.FACTORY for ser2net. Default is jSerialComm.
+	/// </summary>
+	public void setTransportFactory(SerialTransport.Factory transportFactory) {
+		_transportFactory = transportFactory;
+	}
 
-        if (TransmissionThread == null)
-        {
-            TransmissionThread = new Thread(new Runnable() {
-				@Override
-				public void run()
-				{
-					TransmissionThreadWorker();
-				}
-			});
-            TransmissionThread.setPriority(getTransmissionThreadPriority());
-            TransmissionThread.start();
+	public SerialTransport getTransport() {
+		return ApiPort;
+	}
+
+	/// <summary>
+	/// Records the raw traffic of the port, see setCapture().
+	/// </summary>
+	private volatile EversysCapture capture = null;
+	/// <summary>
+	/// true when the capture was opened by OpenConfiguredCapture() and is closed by Dispose().
+	/// </summary>
+	private boolean _ownCapture = false;
+	public EversysCapture getCapture() {
+		return capture;
+	}
+
+	/// <summary>
+	/// Starts recording every written telegram and every received chunk, null stops it.
+	/// The capture is not closed by the engine. Without a capture, Start() opens one in getCaptureDirectory().
+	/// </summary>
+	public void setCapture(EversysCapture capture) {
+		this.capture = capture;
+	}
+
+	/// <summary>
+	/// Directory of the always-on capture which Start() opens; from EversysCapture.configuredDirectory() by default.
+	/// null = no always-on capture. Takes effect with the next Start().
+	/// </summary>
+	private volatile File _captureDirectory = EversysCapture.configuredDirectory();
+	public File getCaptureDirectory() {
+		return _captureDirectory;
+	}
+
+	public void setCaptureDirectory(File directory) {
+		_captureDirectory = directory;
+	}
+	private Thread TransmissionThread = null;
+	/// <summary>
+	/// Shared scheduler which replaces the TransmissionThread, see setScheduler().
+	/// </summary>
+	private EversysIoScheduler _scheduler = null;
+	private volatile EversysIoScheduler.Slot _schedulerSlot = null;
+    private BoundedMpmcQueue<Packet_t> OutgoingUrgentQueue = CreateQueue(Queue_t.OutgoingUrgent_e, 16, OverflowPolicy_t.Reject_e);
+    private BoundedMpmcQueue<Packet_t> OutgoingQueue = CreateQueue(Queue_t.Outgoing_e, 64, OverflowPolicy_t.Reject_e);
+    private BoundedMpmcQueue<Packet_t> OutgoingBackgroundQueue = CreateQueue(Queue_t.OutgoingBackground_e, 64, OverflowPolicy_t.Reject_e);
+    private BoundedMpmcQueue<Packet_t> IncomingDataQueue = CreateQueue(Queue_t.IncomingData_e, 64, OverflowPolicy_t.DropOldest_e);
+    private BoundedMpmcQueue<Packet_t> IncomingAckQueue = CreateQueue(Queue_t.IncomingAck_e, 16, OverflowPolicy_t.DropOldest_e);
+    private BoundedMpmcQueue<RawPacket_t> IncomingRawQueue = CreateQueue(Queue_t.IncomingRaw_e, 64, OverflowPolicy_t.DropOldest_e);
+
+    /// <summary>
+    /// Identifies the internal queues, see ConfigureQueue() and getQueueDepth().
+    /// The packets to send wait in three lanes: OutgoingUrgent_e (e.g. Stop_e), Outgoing_e (commands)
+    /// and OutgoingBackground_e (requests, telemetry).
+    /// </summary>
+    public enum Queue_t {
+        Outgoing_e,
+        OutgoingUrgent_e,
+        OutgoingBackground_e,
+        IncomingData_e,
+        IncomingAck_e,
+        IncomingRaw_e;
+
+        public boolean isOutgoing() {
+            return this == Outgoing_e || this == OutgoingUrgent_e || this == OutgoingBackground_e;
         }
+    }
 
-        //ApiPort.DataReceived += DataReceivedHandler;
-        ApiPort.addDataListener(new SerialPortDataListener() {
+    /// <summary>
+    /// Outgoing lanes in the order they are served.
+    /// </summary>
+    private static final Queue_t[] OUTGOING_LANES = { Queue_t.OutgoingUrgent_e, Queue_t.Outgoing_e, Queue_t.OutgoingBackground_e };
 
-			@Override
-			public int getListeningEvents() {
-				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
-			}
+    /// <summary>
+    /// Lane by command id; null = Outgoing_e for commands, OutgoingBackground_e for requests.
+    /// </summary>
+    private final Queue_t[] commandLanes = new Queue_t[256];
 
-			@Override
-			public void serialEvent(SerialPortEvent event) {
-				if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
-					 return;
-				_receiveIsIdle = false;
-				byte[] buffer = new byte[ApiPort.bytesAvailable()];
-				int bytesRead = ApiPort.readBytes(buffer, buffer.length);
-				ProcessRawData(buffer, bytesRead);
-				_receiveIsIdle = true;
-			}
-		});
+    /// <summary>
+    /// Packets a lane may send per cycle while lower lanes wait, in the order of OUTGOING_LANES.
+    /// </summary>
+    private final int[] laneWeights = { 8, 4, 1 };
+    /// <summary>
+    /// Packets each lane may still send in the current cycle. Only used by the transmission thread.
+    /// </summary>
+    private final int[] laneCredits = { 8, 4, 1 };
+
+    /// <summary>
+    /// Puts all packets with this command id into the lane, e.g. Stop_e into OutgoingUrgent_e.
+    /// </summary>
+    /// <param name="command">command id (MI)</param>
+    /// <param name="lane">outgoing lane, null = default by packet type</param>
+    public void setCommandLane(byte command, Queue_t lane)
+    {
+        if (lane != null && !lane.isOutgoing())
+            throw new IllegalArgumentException("not an outgoing lane: " + lane);
+        commandLanes[command & 0xFF] = lane;
     }
-    
+
+    public Queue_t getCommandLane(byte command)
+    {
+        return commandLanes[command & 0xFF];
+    }
+
     /// <summary>
-    /// Only starts the thread.
+    /// Sets how many packets of the lane are sent in a row before each lower lane with waiting packets
+    /// gets its share. A lower lane therefore never starves, even when a higher lane is never empty.
+    /// Defaults: OutgoingUrgent_e 8, Outgoing_e 4, OutgoingBackground_e 1.
     /// </summary>
-    public void StartThread()
+    public void setLaneWeight(Queue_t lane, int weight)
     {
-    	if (TransmissionThread == null)
+        if (!lane.isOutgoing())
+            throw new IllegalArgumentException("not an outgoing lane: " + lane);
+        if (weight < 1)
+            throw new IllegalArgumentException("weight must be at least 1: " + weight);
+        laneWeights[LaneIndex(lane)] = weight;
+    }
+
+    public int getLaneWeight(Queue_t lane)
+    {
+        return laneWeights[LaneIndex(lane)];
+    }
+
+    private Queue_t LaneOf(Packet_t packet)
+    {
+        if (packet.response)
+            return Queue_t.OutgoingUrgent_e;     // the machine waits for it
+        Queue_t lane = packet.message != null ? commandLanes[packet.message.command & 0xFF] : null;
+        if (lane != null)
+            return lane;
+        return packet.type == PacketType_t.Request_e ? Queue_t.OutgoingBackground_e : Queue_t.Outgoing_e;
+    }
+
+    private static int LaneIndex(Queue_t lane)
+    {
+        switch (lane)
         {
-            TransmissionThread = new Thread(new Runnable() {
-				@Override
-				public void run()
-				{
-					TransmissionThreadWorker();
-				}
-			});
-            TransmissionThread.setPriority(getTransmissionThreadPriority());
-            TransmissionThread.start();
+            case OutgoingUrgent_e:
+                return 0;
+            case Outgoing_e:
+                return 1;
+            default:
+                return 2;
         }
-        stopSerialPort = false;
     }
-    
-    public void Close()
+
+    private BoundedMpmcQueue<Packet_t> OutgoingLane(Queue_t lane)
     {
-        Pause();
+        switch (lane)
+        {
+            case OutgoingUrgent_e:
+                return OutgoingUrgentQueue;
+            case OutgoingBackground_e:
+                return OutgoingBackgroundQueue;
+            default:
+                return OutgoingQueue;
+        }
     }
-    
-  /// <summary>
-    /// Closes the Port but does not terminate the thread.
+
+    /// <summary>
+    /// Takes the next packet to send with weighted round robin: the lanes are served in priority order
+    /// while they have credits; when every lane with waiting packets used its credits a new cycle starts.
     /// </summary>
-    public void Pause()
+    /// <returns>packet or null when all lanes are empty</returns>
+    private Packet_t PollOutgoing()
     {
-        stopSerialPort = true;
-        if (PortIsIdle() && PortIsOpen())
+        for (int cycle = 0; cycle < 2; cycle++)
         {
-            ApiPort.closePort();
+            boolean waiting = false;
+            for (int i = 0; i < OUTGOING_LANES.length; i++)
+            {
+                BoundedMpmcQueue<Packet_t> lane = OutgoingLane(OUTGOING_LANES[i]);
+                if (lane.isEmpty())
+                    continue;
+                waiting = true;
+                if (laneCredits[i] > 0)
+                {
+                    Packet_t packet = lane.poll();
+                    if (packet != null)
+                    {
+                        laneCredits[i]--;
+                        return packet;
+                    }
+                }
+            }
+            if (!waiting)
+                return null;
+            System.arraycopy(laneWeights, 0, laneCredits, 0, laneCredits.length);
+        }
+        return null;
+    }
+
+    private boolean OutgoingPending()
+    {
+        return !OutgoingUrgentQueue.isEmpty() || !OutgoingQueue.isEmpty() || !OutgoingBackgroundQueue.isEmpty();
+    }
+
+    /// <summary>
+    /// true when a new packet can be taken from the outgoing lanes.
+    /// </summary>
+    private boolean CanSendNext()
+    {
+        return stopSerialPort == false && InFlight.size() < _windowSize && OutgoingPending() && !callbacks.isCongested();
+    }
+
+    /// <summary>
+    /// Replaces a queue with an empty one with the given capacity and overflow policy.
+    /// Only allowed before the transmission thread is started.
+    /// </summary>
+    /// <param name="queue">queue to configure</param>
+    /// <param name="capacity">maximal number of packets, rounded up to the next power of two</param>
+    /// <param name="policy">Block_e, DropOldest_e or Reject_e; dropped and rejected packets are reported to a PacketOverflowListener</param>
+    public void ConfigureQueue(Queue_t queue, int capacity, OverflowPolicy_t policy)
+    {
+        if (TransmissionThread != null || _schedulerSlot != null)
+            throw new IllegalStateException("queues can only be configured before the transmission thread is started");
+
+        switch (queue)
+        {
+            case Outgoing_e:
+                OutgoingQueue = CreateQueue(queue, capacity, policy);
+                break;
+            case OutgoingUrgent_e:
+                OutgoingUrgentQueue = CreateQueue(queue, capacity, policy);
+                break;
+            case OutgoingBackground_e:
+                OutgoingBackgroundQueue = CreateQueue(queue, capacity, policy);
+                break;
+            case IncomingData_e:
+                IncomingDataQueue = CreateQueue(queue, capacity, policy);
+                break;
+            case IncomingAck_e:
+                IncomingAckQueue = CreateQueue(queue, capacity, policy);
+                break;
+            case IncomingRaw_e:
+                IncomingRawQueue = CreateQueue(queue, capacity, policy);
+                break;
+        }
+    }
+
+    /// <summary>
+    /// Sets where the listener callbacks run. By default they are delivered in order on a virtual thread
+    /// (Java 21+) or a shared daemon thread, so a slow listener doesn't delay acks and retransmissions.
+    /// When more than three quarters of the callback queue are used no new packets are sent; when it is
+    /// full further callbacks are dropped and counted. Only allowed before the transmission thread is started.
+    /// </summary>
+    /// <param name="executor">executor for the callbacks; null = call the listener on the transmission and receive threads</param>
+    /// <param name="capacity">maximal number of callbacks waiting for the listener</param>
+    public void ConfigureCallbacks(Executor executor, int capacity)
+    {
+        if (TransmissionThread != null || _schedulerSlot != null)
+            throw new IllegalStateException("callbacks can only be configured before the transmission thread is started");
+
+        callbacks = CreateCallbackDispatcher(executor, capacity);
+    }
+
+    public EversysCallbackDispatcher getCallbackDispatcher()
+    {
+        return callbacks;
+    }
+
+    private EversysCallbackDispatcher CreateCallbackDispatcher(Executor executor, int capacity)
+    {
+        return new EversysCallbackDispatcher(executor, capacity, new Runnable() {
+            @Override
+            public void run() {
+                signalWork();   // listener caught up, continue sending
+            }
+        });
+    }
+
+    /// <summary>
+    /// Current number of packets in the queue.
+    /// </summary>
+    public int getQueueDepth(Queue_t queue)
+    {
+        return getQueue(queue).size();
+    }
+
+    /// <summary>
+    /// Highest number of packets which were in the queue at the same time.
+    /// </summary>
+    public int getQueueHighWaterMark(Queue_t queue)
+    {
+        return getQueue(queue).getHighWaterMark();
+    }
+
+    /// <summary>
+    /// Number of packets which were dropped or rejected because the queue was full.
+    /// </summary>
+    public long getQueueOverflowCount(Queue_t queue)
+    {
+        BoundedMpmcQueue<?> q = getQueue(queue);
+        return q.getDroppedCount() + q.getRejectedCount();
+    }
+
+    /// <summary>
+    /// Number of writeBytes() calls.
+    /// </summary>
+    public long getWriteCount()
+    {
+        return _writeCount;
+    }
+
+    /// <summary>
+    /// Number of telegrams which were written to the port.
+    /// </summary>
+    public long getWrittenFrameCount()
+    {
+        return _writtenFrameCount;
+    }
+
+    /// <summary>
+    /// Average number of telegrams per writeBytes() call.
+    /// </summary>
+    public double getFramesPerWrite()
+    {
+        long writes = _writeCount;
+        return writes == 0 ? 0 : (double)_writtenFrameCount / writes;
+    }
+
+    /// <summary>
+    /// Highest number of telegrams which were written with one writeBytes() call.
+    /// </summary>
+    public int getMaxFramesPerWrite()
+    {
+        return _maxFramesPerWrite;
+    }
+
+    BoundedMpmcQueue<?> getQueue(Queue_t queue)
+    {
+        switch (queue)
+        {
+            case Outgoing_e:
+                return OutgoingQueue;
+            case OutgoingUrgent_e:
+                return OutgoingUrgentQueue;
+            case OutgoingBackground_e:
+                return OutgoingBackgroundQueue;
+            case IncomingData_e:
+                return IncomingDataQueue;
+            case IncomingAck_e:
+                return IncomingAckQueue;
+            default:
+                return IncomingRawQueue;
+        }
+    }
+
+    private <E> BoundedMpmcQueue<E> CreateQueue(final Queue_t queue, int capacity, OverflowPolicy_t policy)
+    {
+        BoundedMpmcQueue<E> q = new BoundedMpmcQueue<E>(capacity, policy);
+        q.setOverflowHandler(new BoundedMpmcQueue.OverflowHandler<Object>() {
+            @Override
+            public void overflow(Object element, boolean rejected)
+            {
+                callPacketDroppedHandler(queue, element, rejected);
+            }
+        });
+        return q;
+    }
+    
+    
+    //================
+    // public methods
+    //================
+    /// <summary>
+    /// Default values:
+    /// MaxPacketSize = 256
+    /// SequenceNumber = 0
+    /// MaxSendRepetition = 3
+    /// Timeouts = 200ms
+    /// </summary>
+    /// <param name="portName">Name of the port e.g. COM1</param>
+    /// <param name="baudRate">Baudrate e.g. 9600</param>
+    /// <param name="address">ID of this device (source id)</param>
+    public void SerialComm(String portName, int baudRate, byte address)
+    {
+        SerialTransport transport = null;
+        try
+        {
+            transport = _transportFactory.create(portName);
+        } catch (DeviceInitializeException e) {
+        	logger.error(e.toString());
+        }
+        SerialComm(transport, baudRate, address);
+        _portName = portName;
+    }
+
+    /// <summary>
+    /// Same as SerialComm(portName, baudRate, address) with a transport which was created by the caller,
+    /// e.g. one end of LoopbackTransport.createPair().
+    /// </summary>
+    /// <param name="transport">port to the machine</param>
+    /// <param name="baudRate">Baudrate e.g. 9600</param>
+    /// <param name="address">ID of this device (source id)</param>
+    public void SerialComm(SerialTransport transport, int baudRate, byte address)
+    {
+        Address = address;
+        AckTimeout = Duration.ofMillis(200);
+        ResponseTimeout = Duration.ofMillis(200);
+        MaxSendRepetition = 3;
+        ThreadSleepTime = 1;
+        setMaxPacketSize(256);
+        ResetSequenceNumber();
+        setTransmissionThreadPriority(10); //ThreadPriority.Highest;
+
+        _baudRate = baudRate;
+
+        //ApiPort = new SerialPort(portName, baudRate, Parity.None, 8, StopBits.One);
+        ApiPort = transport;
+        if (ApiPort != null)
+        {
+            _portName = ApiPort.getName();
+            if (!ApiPort.isOpen())
+            {
+                ApiPort.setBaudRate(_baudRate);
+                ApiPort.open();
+            }
+        }
+    }
+	
+	/// <summary>
+    /// Opens the port and starts the thread.
+    /// </summary>
+    public void Start()
+    {
+    	ApiPort.setBaudRate(_baudRate);
+		
+        boolean success = false;
+        int tries = 0;
+        if (!ApiPort.isOpen())
+        {
+            while (success == false && tries < 10)
+            {
+               	success = ApiPort.open();
+                if (!success) tries++;
+            
+                stopSerialPort = false;
+            }
+        }
+
+        // before the thread, so the capture has the first telegrams too
+        OpenConfiguredCapture();
+        StartTransmission();
+        metrics.registerMBean();
+
+        //ApiPort.DataReceived += DataReceivedHandler;
+        ApiPort.setDataListener(new SerialTransport.DataListener() {
+			@Override
+			public void dataReceived(byte[] buffer, int length) {
+				_receiveIsIdle = false;
+				ProcessRawData(buffer, length);
+				_receiveIsIdle = true;
+			}
+		});
+        signalWork();
+    }
+    
+    /// <summary>
+    /// Opens the always-on capture in getCaptureDirectory(), unless a capture was set or the directory is null.
+    /// </summary>
+    private void OpenConfiguredCapture()
+    {
+        File directory = _captureDirectory;
+        if (capture != null || directory == null)
+            return;
+        try
+        {
+            capture = new EversysCapture(directory, String.valueOf(PortName()));
+            _ownCapture = true;
+        }
+        catch (IOException e)
+        {
+            logger.error("cannot open eversys capture in " + directory + " : " + e.toString());
+        }
+    }
+
+    /// <summary>
+    /// Only starts the thread.
+    /// </summary>
+    public void StartThread()
+    {
+        StartTransmission();
+        stopSerialPort = false;
+        signalWork();
+    }
+
+    /// <summary>
+    /// Starts the TransmissionThread, or registers at the scheduler if one was set.
+    /// </summary>
+    private void StartTransmission()
+    {
+        if (_scheduler != null)
+        {
+            if (_schedulerSlot == null)
+            {
+                // published before the first wake, so signalWork() always finds the slot
+                _schedulerSlot = _scheduler.register(this);
+                _schedulerSlot.wake();
+            }
+            return;
+        }
+
+    	if (TransmissionThread == null)
+        {
+            TransmissionThread = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					TransmissionThreadWorker();
+				}
+			});
+            TransmissionThread.setPriority(getTransmissionThreadPriority());
+            TransmissionThread.start();
+        }
+    }
+
+    /// <summary>
+    /// Lets a shared EversysIoScheduler run the state machine instead of an own TransmissionThread.
+    /// Must be called before Start().
+    /// </summary>
+    /// <param name="scheduler">shared scheduler, null = own thread</param>
+    public void setScheduler(EversysIoScheduler scheduler)
+    {
+        if (TransmissionThread != null || _schedulerSlot != null)
+            throw new IllegalStateException("the transmission is already running");
+        _scheduler = scheduler;
+    }
+    
+    public void Close()
+    {
+        Pause();
+    }
+    
+  /// <summary>
+    /// Closes the Port but does not terminate the thread.
+    /// </summary>
+    public void Pause()
+    {
+        stopSerialPort = true;
+        signalWork();
+        if (PortIsIdle() && PortIsOpen())
+        {
+            ApiPort.close();
             _sendIsIdle = true;
             _receiveIsIdle = true;
         }
@@ -842,14 +1443,13 @@ public class EversysSerialComm {
     /// <param name="baudrate">new baudrate</param>
     public void ChangePort(String portname, int baudrate)
     {
-        if (!ApiPort.isOpen())
+        if (!PortIsOpen())
         {
             _baudRate = baudrate;
             _portName = portname;
             try
             {
-            	initialize();
-                ApiPort = getSerialPort(portname);
+                ApiPort = _transportFactory.create(portname);
                 ApiPort.setBaudRate( baudrate );
             } catch (DeviceInitializeException e) {
             	logger.error(e.toString());
@@ -896,7 +1496,7 @@ public class EversysSerialComm {
     /// <param name="dataLength"> how many data bytes will be sent </param>
     public void EnqueuePacket(byte destination, Message_t message, byte[] data, int dataLength)
     {
-        EnqueuePacket(destination, message, data, dataLength, false, Encrypt_t.No, (byte)0, ApplicationPort_t.Api_e, NextSequenceNumber());
+        EnqueuePreparedPacket(CreatePacket(destination, message, data, dataLength, false));
     }
 
     /// <summary>
@@ -913,7 +1513,7 @@ public class EversysSerialComm {
     /// <param name="request"> true when this packet is a request, else false. </param>
     public void EnqueuePacket(byte destination, Message_t message, byte[] data, int dataLength, boolean request)
     {
-        EnqueuePacket(destination, message, data, dataLength, request, Encrypt_t.No, (byte)0, ApplicationPort_t.Api_e, NextSequenceNumber());
+        EnqueuePreparedPacket(CreatePacket(destination, message, data, dataLength, request));
     }
 
     /// <summary>
@@ -961,6 +1561,53 @@ public class EversysSerialComm {
     /// <param name="encrypted"> Is the Packet Encrypted </param>
     /// <param name="parity"> Which parity does the packet have </param>
     public void EnqueuePacket(byte destination, Message_t message, byte[] data, int dataLength, boolean request, Encrypt_t encrypted, byte parity, ApplicationPort_t appPort, byte sequenzNr)
+    {
+        EnqueuePreparedPacket(CreatePacket(destination, message, data, dataLength, request, encrypted, parity, appPort, sequenzNr));
+    }
+
+    /// <summary>
+    /// Creates a command or request like EnqueuePacket() without sending it.
+    /// sequenceNumber = last Number + 1, assigned when the packet is sent
+    /// parity = 0
+    /// Encrypted = no
+    /// Application Port = Api_e
+    /// </summary>
+    /// <param name="destination"> destination of this packet as byte </param>
+    /// <param name="message"> data-header w/o data length see Message_t </param>
+    /// <param name="data"> data as a byte array. The size of this array should equal dataLength </param>
+    /// <param name="dataLength"> how many data bytes will be sent </param>
+    /// <param name="request"> true when this packet is a request, else false. </param>
+    /// <returns>packet for EnqueuePreparedPacket()</returns>
+    public Packet_t CreatePacket(byte destination, Message_t message, byte[] data, int dataLength, boolean request)
+    {
+        Packet_t packet = CreatePacket(destination, message, data, dataLength, request, Encrypt_t.No, (byte)0, ApplicationPort_t.Api_e, (byte)0);
+        packet.numberOnSend = true;
+        return packet;
+    }
+
+    /// <summary>
+    /// Creates the response to a request of the machine (packetReceived() with type Request_e).
+    /// It has the sequence number of the request, goes into the urgent lane and is sent once,
+    /// without waiting for an ack. It is not sent when ResponseTimeout passed since the request arrived.
+    /// </summary>
+    /// <param name="request"> received request </param>
+    /// <param name="message"> data-header w/o data length see Message_t </param>
+    /// <param name="data"> data as a byte array. The size of this array should equal dataLength </param>
+    /// <param name="dataLength"> how many data bytes will be sent </param>
+    /// <returns>packet for EnqueuePreparedPacket()</returns>
+    public Packet_t CreateResponse(Packet_t request, Message_t message, byte[] data, int dataLength)
+    {
+        Packet_t packet = CreatePacket(request.source, message, data, dataLength, false, Encrypt_t.No, (byte)0, request.appPort, request.sequenceNumber);
+        packet.response = true;
+        return packet;
+    }
+
+    /// <summary>
+    /// Creates a packet without sending it. Used when the caller must know the packet before
+    /// its callbacks (packetSent, ackTimeout, ...) can arrive.
+    /// </summary>
+    /// <returns>packet for EnqueuePreparedPacket()</returns>
+    public Packet_t CreatePacket(byte destination, Message_t message, byte[] data, int dataLength, boolean request, Encrypt_t encrypted, byte parity, ApplicationPort_t appPort, byte sequenzNr)
     {
         // Prepare a new packet
         Packet_t packet = new Packet_t();
@@ -980,9 +1627,70 @@ public class EversysSerialComm {
             packet.type = PacketType_t.Data_e;
         packet.isFail = false;
 
-        packet.ToByteArray();
+        return packet;
+    }
+
+    /// <summary>
+    /// Compiles the telegram of a packet which is sent often with the same fields, e.g. a poll without
+    /// parameter and data. Packets from CreatePacket(template) are written by patching the sequence number
+    /// and CRC into the template instead of encoding them.
+    /// </summary>
+    /// <returns>template for CreatePacket(EversysFrameTemplate)</returns>
+    public EversysFrameTemplate CompileTemplate(byte destination, Message_t message, byte[] data, int dataLength, boolean request)
+    {
+        if (data == null)
+            data = EMPTY_DATA;
+        return new EversysFrameTemplate(CreatePacket(destination, message, data, dataLength, request, Encrypt_t.No, (byte)0, ApplicationPort_t.Api_e, (byte)0));
+    }
+
+    /// <summary>
+    /// Creates a packet from a template; the sequence number is assigned when the packet leaves the outgoing queues.
+    /// </summary>
+    /// <returns>packet for EnqueuePreparedPacket()</returns>
+    public Packet_t CreatePacket(EversysFrameTemplate template)
+    {
+        Packet_t packet = new Packet_t();
+        template.initPacket(packet);
+        packet.numberOnSend = true;
+        return packet;
+    }
+
+    /// <summary>
+    /// Adds a packet from CreatePacket() to its outgoing lane, see setCommandLane().
+    /// </summary>
+    /// <param name="packet"> packet which will be sent as it is </param>
+    /// <returns>false when the lane rejected the packet</returns>
+    public boolean EnqueuePreparedPacket(Packet_t packet)
+    {
+        return EnqueuePreparedPacket(packet, LaneOf(packet));
+    }
+
+    /// <summary>
+    /// Adds a packet from CreatePacket() to the given outgoing lane.
+    /// </summary>
+    /// <param name="packet"> packet which will be sent as it is </param>
+    /// <param name="lane"> OutgoingUrgent_e, Outgoing_e or OutgoingBackground_e </param>
+    /// <returns>false when the lane rejected the packet</returns>
+    public boolean EnqueuePreparedPacket(Packet_t packet, Queue_t lane)
+    {
+        if (!lane.isOutgoing())
+            throw new IllegalArgumentException("not an outgoing lane: " + lane);
+
         _lastSentPacket = packet;
-        OutgoingQueue.add(packet);
+        boolean queued = OutgoingLane(lane).offer(packet);
+        signalWork();
+        return queued;
+    }
+
+    /// <summary>
+    /// Withdraws a packet from EnqueuePreparedPacket(): a queued packet is skipped, a packet in flight is
+    /// released without further repetitions or timeout callbacks. A response which still arrives is delivered.
+    /// </summary>
+    /// <param name="packet"> packet which was enqueued </param>
+    public void WithdrawPacket(Packet_t packet)
+    {
+        packet.withdrawn = true;
+        signalWork();
     }
 
     /// <summary>
@@ -996,7 +1704,7 @@ public class EversysSerialComm {
         boolean success = false;
         try
         {
-            if ((rawDataBufferLength + length) < getMaxPacketSize())
+            if ((frameDecoder.getBufferedLength() + length) < getMaxPacketSize())
             {
                 ProcessRawData(data, length);
                 success = true;
@@ -1018,19 +1726,27 @@ public class EversysSerialComm {
         int newLength = 0;
         byte[] newData = new byte[length];
 
-        for (int i = 0; length > i; i++)
+        final byte shiftChar = SpecialChars_t.ShiftChar_e.getData();
+        final byte shiftXor = SpecialChars_t.ShiftXOR_e.getData();
+        int i = 0;
+        while (length > i)
         {
-            if (data[i] == (byte)SpecialChars_t.ShiftChar_e.getData())
-            {
-                i++;
-                newData[newLength] = (byte)(data[i] ^ (byte)SpecialChars_t.ShiftXOR_e.getData());
-                newLength++;
-            }
-            else
+            // copy the run up to the next shift character in one step
+            int shift = EversysByteScan.indexOf(data, i, length, shiftChar);
+            int run = (shift < 0 ? length : shift) - i;
+            System.arraycopy(data, i, newData, newLength, run);
+            newLength += run;
+            i += run;
+
+            // then the shifted characters, in a tight loop for runs of them (e.g. zeros)
+            while (i + 1 < length && data[i] == shiftChar)
             {
-                newData[newLength] = data[i];
+                newData[newLength] = (byte)(data[i + 1] ^ shiftXor);
                 newLength++;
+                i += 2;
             }
+            if (i + 1 == length && data[i] == shiftChar)
+                i++;        // shift character without a following byte
         }
         
         //Array.Resize(ref newData, newLength);
@@ -1044,9 +1760,19 @@ public class EversysSerialComm {
     /// </summary>
     public void Dispose()
     {
+        metrics.unregisterMBean();
+
+        if (_schedulerSlot != null)
+        {
+            stopTransmissionThread = true;
+            _schedulerSlot.cancel();
+            _schedulerSlot = null;
+        }
+
         if (TransmissionThread != null)
         {
             stopTransmissionThread = true;
+            signalWork();
             
             try
             {
@@ -1059,7 +1785,14 @@ public class EversysSerialComm {
         
         if (ApiPort != null)
         {
-            ApiPort.closePort();
+            ApiPort.close();
+        }
+
+        if (_ownCapture && capture != null)
+        {
+            capture.close();
+            capture = null;
+            _ownCapture = false;
         }
     }
 
@@ -1068,10 +1801,18 @@ public class EversysSerialComm {
     /// Increments the sequence number and returns it.
     /// </summary>
     /// <returns>Next valid sequence number.</returns>
-    private byte NextSequenceNumber()
+    private synchronized byte NextSequenceNumber()
     {
         return sequenceNumber++;
     }
+
+    /// <summary>
+    /// Starts the sequence numbers at 0 again; synchronized like NextSequenceNumber().
+    /// </summary>
+    private synchronized void ResetSequenceNumber()
+    {
+        sequenceNumber = 0;
+    }
     
     
     //#region transmission state machine
@@ -1086,365 +1827,659 @@ public class EversysSerialComm {
         WaitingForResponse
     }
 
-    private SendStates ThreadState = SendStates.Idle;
+    /// <summary>
+    /// State of the oldest packet in flight; Idle when nothing is in flight.
+    /// </summary>
+    private volatile SendStates ThreadState = SendStates.Idle;
+
+    /// <summary>
+    /// InFlight.size() at the end of the last round; for the metrics.
+    /// </summary>
+    private volatile int _inFlightCount = 0;
+
+    /// <summary>
+    /// A packet which was taken from the OutgoingQueue and is sent or waits for its ack/response.
+    /// Every packet has its own timestamp and retry counters.
+    /// </summary>
+    private class InFlight_t extends EversysDeadlineWheel.Deadline
+    {
+        Packet_t packet;
+        SendStates state;
+        /// <summary>
+        /// true = counted in OpenRequests
+        /// </summary>
+        boolean openRequest;
+        /// <summary>
+        /// Counts Ack_e timeouts until it reaches MaxSendRepetition
+        /// </summary>
+        int ackTimeoutCounter;
+        /// <summary>
+        /// Counts Nacks until it reaches MaxSendRepetition
+        /// </summary>
+        int nackCounter;
+        /// <summary>
+        /// System.nanoTime() of the first and of the last transmission; for the metrics.
+        /// </summary>
+        long firstSentNanos;
+        long lastSentNanos;
+        /// <summary>
+        /// Encoded telegram of packet; written on the first send and reused for the repetitions.
+        /// The buffer stays with the entry when it goes back to the InFlightPool.
+        /// </summary>
+        byte[] frame = new byte[EversysFrameEncoder.maxFrameLength(0)];
+        /// <summary>
+        /// Valid bytes in frame; 0 = not encoded yet
+        /// </summary>
+        int frameLength;
+    }
+
+    /// <summary>
+    /// Packets in flight in the order they were sent. At most WindowSize entries. Only used by the transmission thread.
+    /// </summary>
+    private final ArrayList<InFlight_t> InFlight = new ArrayList<InFlight_t>(MAX_WINDOW_SIZE);
+
+    /// <summary>
+    /// Number of our requests in flight by sequence number, from the first transmission until the entry is released.
+    /// Read by the receive thread for the inline acks: a telegram with such a number may be a response.
+    /// </summary>
+    private final AtomicIntegerArray OpenRequests = new AtomicIntegerArray(256);
+
+    /// <summary>
+    /// Ack and response deadlines of the InFlight entries. Only used by the transmission thread.
+    /// </summary>
+    private final EversysDeadlineWheel Deadlines = new EversysDeadlineWheel();
+
+    /// <summary>
+    /// Finished InFlight_t entries for reuse.
+    /// </summary>
+    private final ArrayList<InFlight_t> InFlightPool = new ArrayList<InFlight_t>(MAX_WINDOW_SIZE);
+
+    /// <summary>
+    /// Monitor on which the transmission thread sleeps while there is nothing to do.
+    /// </summary>
+    private final Object workSignal = new Object();
+
+    /// <summary>
+    /// Flag; set when new work was handed to the transmission thread since it last looked for work.
+    /// </summary>
+    private boolean workPending = false;
+
+    /// <summary>
+    /// Wakes the transmission thread. Called for every new raw packet, enqueued packet and port state change.
+    /// </summary>
+    private void signalWork()
+    {
+        EversysIoScheduler.Slot slot = _schedulerSlot;
+        if (slot != null)
+        {
+            slot.wake();
+            return;
+        }
+
+        synchronized (workSignal)
+        {
+            workPending = true;
+            workSignal.notifyAll();
+        }
+    }
+
+    /// <summary>
+    /// Blocks until signalWork() is called or the timeout expires.
+    /// </summary>
+    /// <param name="timeoutNanos">0 = don't wait, Long.MAX_VALUE = wait until signalled</param>
+    private void awaitWork(long timeoutNanos) throws InterruptedException
+    {
+        synchronized (workSignal)
+        {
+            if (workPending == false && timeoutNanos > 0)
+            {
+                if (timeoutNanos == Long.MAX_VALUE)
+                    workSignal.wait();
+                else
+                    TimeUnit.NANOSECONDS.timedWait(workSignal, timeoutNanos);
+            }
+            workPending = false;
+        }
+    }
 
     /// <summary>
     /// Reads data from the serial ports and makes packets from the data.
     /// Writes data to the serial port and manages the ack/nack.
+    /// The thread only runs when there is work to do or when an ack/response deadline expires.
     /// </summary>
     private void TransmissionThreadWorker()
     {
-        LocalDateTime sent_timestamp = LocalDateTime.now();
-
         while (stopTransmissionThread == false)
         {
+            long timeout;
             try
             {
-                ProccessRawPacket();
-                IncomingDataQueueHandler();
-
-                switch (ThreadState)
-                {
-                    //#region State Idle
-                    case Idle:
-                        if (OutgoingQueue.size() > 0)
-                        {
-                            ThreadState = SendStates.Sending;
-                        }
-                        break;
-
-                    //#region State Sending
-                    case Sending:
-                        sent_timestamp = SendState(sent_timestamp);
-                        break;
-
-                    //#region State WaitingForAck
-                    case WaitingForAck:
-                        WaitingForAckState(sent_timestamp);
-                        break;
-
-                    //#region State WaitingForResponse
-                    case WaitingForResponse:
-                        WaitingForResponseState(sent_timestamp);
-                        break;
-                }
+                timeout = ProcessTransmission();
             }
             catch (Exception e)
             {
+                logger.error(e.toString());
                 break;
             }
 
-            //save shutdown and portswitch
-            if (PortIsIdle() && stopSerialPort)
+            try
             {
-                ApiPort.closePort();
-                _sendIsIdle = true;
-                _receiveIsIdle = true;
-
-                if (newSerialBaudrate != 0)
-                {
-                    //ApiPort.BaudRate = newSerialBaudrate;
-                    _baudRate = newSerialBaudrate;
-                    //ApiPort.PortName = newSerialName;
-                    _portName = newSerialName;
-                    
-                    try
-                    {
-                    	initialize();
-                        ApiPort = getSerialPort(_portName);
-                        ApiPort.setBaudRate(_baudRate);
-                    } catch (DeviceInitializeException e) {
-                    	logger.error(e.toString());
-                    }
-                    
-                    newSerialName = "";
-                    newSerialBaudrate = 0;
-                    Start();
-                }
+                awaitWork(timeout);
+            }
+            catch (InterruptedException e)
+            {
+                break;
             }
+        }
+    }
 
-            try {
-				Thread.sleep(ThreadSleepTime);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+    /// <summary>
+    /// Runs one round for the EversysIoScheduler.
+    /// </summary>
+    /// <returns>same as ProcessTransmission(); -1 = the engine was stopped</returns>
+    long RunScheduledRound()
+    {
+        if (stopTransmissionThread)
+            return -1;
+
+        try
+        {
+            return ProcessTransmission();
+        }
+        catch (Exception e)
+        {
+            logger.error(e.toString());
+            stopTransmissionThread = true;
+            return -1;
         }
     }
 
     /// <summary>
-    /// Checks if there is something to send and sends it.
+    /// Runs one round of the transmission state machine.
     /// </summary>
-    private LocalDateTime SendState(LocalDateTime sent_timestamp)
+    /// <returns>nanoseconds until the next round is due; 0 = immediately, Long.MAX_VALUE = only when signalled</returns>
+    private long ProcessTransmission()
     {
-        synchronized (OutgoingQueue)
+        SendStates previousState = ThreadState;
+
+        ProccessRawPacket();
+        IncomingDataQueueHandler();
+        AckHandler();
+
+        //#region States WaitingForAck and WaitingForResponse: expired deadlines
+        EversysDeadlineWheel.Deadline expired;
+        long now = System.nanoTime();
+        while ((expired = Deadlines.poll(now)) != null)
         {
-            if (OutgoingQueue.size() > 0 && _sendIsIdle && stopSerialPort == false)
+            InFlight_t entry = (InFlight_t)expired;
+            if (entry.packet.withdrawn)
+                continue;       // released below
+            if (entry.state == SendStates.WaitingForAck)
+                WaitingForAckState(entry);
+            else if (entry.state == SendStates.WaitingForResponse)
+                WaitingForResponseState(entry);
+        }
+
+        //#region State Sending
+        for (int i = 0; i < InFlight.size(); )
+        {
+            InFlight_t entry = InFlight.get(i);
+            if (entry.packet.withdrawn)
+                entry.state = SendStates.Idle;
+            else if (entry.state == SendStates.Sending)
+                SendState(entry);
+
+            if (entry.state == SendStates.Idle)
+                ReleaseInFlight(i);     // finished
+            else
+                i++;
+        }
+
+        //#region State Idle
+        // fill the window
+        while (InFlight.size() < _windowSize && stopSerialPort == false && !callbacks.isCongested())
+        {
+            Packet_t packet = PollOutgoing();
+            if (packet == null)
+                break;
+            if (packet.withdrawn)
+                continue;
+            if (packet.numberOnSend)
             {
-            	//hcpark
-            	long milis = ChronoUnit.MILLIS.between(incomingTimeStamp, LocalDateTime.now());
-            	
-                if (requestOpen == true && milis > ResponseTimeout.toMillis())
-                {
-                    // if this is a response and ResponseTimeout was exceeded, then ignore the packet
-                    OutgoingQueue.poll();
-                    requestOpen = false;
-                    ThreadState = SendStates.Idle;
-                    return sent_timestamp;
-                }
+                packet.sequenceNumber = NextSequenceNumber();
+                packet.numberOnSend = false;
+            }
+
+            InFlight_t entry = AcquireInFlight(packet);
+            InFlight.add(entry);
+            SendState(entry);
+            if (entry.state == SendStates.Idle)
+                ReleaseInFlight(InFlight.size() - 1);
+        }
+
+        ThreadState = InFlight.isEmpty() ? SendStates.Idle : InFlight.get(0).state;
+        _inFlightCount = InFlight.size();
+
+        if (_writeBufferLength > 0 && _schedulerSlot != null)
+        {
+            // the shared I/O thread doesn't wait for the window; the round at its end writes the buffer
+            long remaining = WriteWindowRemaining();
+            if (remaining > 0)
+                return IncomingRawQueue.size() > 0 || CanSendNext() ? 0 : Math.min(remaining, Deadlines.nanosUntilNext(System.nanoTime()));
+        }
+        if (_writeBufferLength > 0 && !FlushWritesIfDue())
+            return 0;   // window still open and there is new work; keep collecting
+
+        //save shutdown and portswitch
+        if (PortIsIdle() && stopSerialPort)
+        {
+            if (ApiPort != null)
+                ApiPort.close();
+            _sendIsIdle = true;
+            _receiveIsIdle = true;
 
-                if (checkForReset(OutgoingQueue.peek(), true))
+            if (newSerialBaudrate != 0)
+            {
+                //ApiPort.BaudRate = newSerialBaudrate;
+                _baudRate = newSerialBaudrate;
+                //ApiPort.PortName = newSerialName;
+                _portName = newSerialName;
+                
+                try
                 {
-                    lastAckCommand = -1;
-                    sequenceNumber = 0;
+                    ApiPort = _transportFactory.create(_portName);
+                    ApiPort.setBaudRate(_baudRate);
+                } catch (DeviceInitializeException e) {
+                	logger.error(e.toString());
                 }
                 
-                WriteToPort(OutgoingQueue.peek().ToByteArray());
+                newSerialName = "";
+                newSerialBaudrate = 0;
+                Start();
+            }
+        }
 
-                if (OutgoingQueue.peek().type == PacketType_t.Data_e || OutgoingQueue.peek().type == PacketType_t.Request_e)
-                {
-                    sent_timestamp = LocalDateTime.now();
-                    if (requestOpen == true)
-                    {
-                        requestOpen = false;
-                        ThreadState = SendStates.Idle;
-                        callPacketSentHandler(OutgoingQueue.poll());
-                    }
-                    else
-                        ThreadState = SendStates.WaitingForAck;
-                    return sent_timestamp;
-                }
-                else
-                    OutgoingQueue.poll();
+        // something left to do?
+        if (ThreadState != previousState || IncomingRawQueue.size() > 0 || IncomingDataQueue.size() > 0 || IncomingAckQueue.size() > 0)
+            return 0;
+        if (CanSendNext())
+            return 0;
+
+        if (stopSerialPort == false)
+        {
+            for (int i = 0; i < InFlight.size(); i++)
+            {
+                if (InFlight.get(i).state == SendStates.Sending)
+                    return 0;
+            }
+        }
+
+        // sleep until the next ack/response deadline
+        return Deadlines.nanosUntilNext(System.nanoTime());
+    }
+
+    /// <summary>
+    /// Sends the packet (again). Sets the entry to Idle when it doesn't wait for an ack.
+    /// </summary>
+    private void SendState(InFlight_t entry)
+    {
+        if (_sendIsIdle == false || stopSerialPort == true)
+            return;     // stays in Sending
+
+        Packet_t packet = entry.packet;
+
+    	//hcpark
+    	long elapsed = System.nanoTime() - incomingNanos;
+    	
+        if (packet.response && requestOpen == true && elapsed > ResponseTimeout.toNanos())
+        {
+            // if this is a response and ResponseTimeout was exceeded, then ignore the packet
+            requestOpen = false;
+            entry.state = SendStates.Idle;
+            return;
+        }
+
+        if (checkForReset(packet))
+        {
+            lastAckCommand = -1;
+            ResetSequenceNumber();
+        }
+        
+        boolean retransmission = entry.frameLength != 0;
+        if (entry.frameLength == 0 && packet.template != null)
+        {
+            if (entry.frame.length < packet.template.getMaxLength())
+                entry.frame = new byte[packet.template.getMaxLength()];
+            entry.frameLength = packet.template.write(packet.sequenceNumber, entry.frame, 0);
+        }
+        else if (entry.frameLength == 0)
+        {
+            int maxLength = EversysFrameEncoder.maxFrameLength(packet.dataLength);
+            if (entry.frame.length < maxLength)
+                entry.frame = new byte[maxLength];
+            entry.frameLength = EversysFrameEncoder.encode(packet, entry.frame, 0);
+        }
+        if (packet.type == PacketType_t.Request_e && !entry.openRequest)
+        {
+            // before the write, so the receive thread knows the request when the response arrives
+            OpenRequests.incrementAndGet(packet.sequenceNumber & 0xFF);
+            entry.openRequest = true;
+        }
+        WriteToPort(entry.frame, entry.frameLength);
+
+        metrics.packetSent(retransmission);
+        entry.lastSentNanos = System.nanoTime();
+        if (!retransmission)
+            entry.firstSentNanos = entry.lastSentNanos;
+
+        if (packet.type == PacketType_t.Data_e || packet.type == PacketType_t.Request_e)
+        {
+            if (packet.response)
+            {
+                requestOpen = false;
+                entry.state = SendStates.Idle;
+                callPacketSentHandler(packet);
+            }
+            else
+            {
+                entry.state = SendStates.WaitingForAck;
+                Deadlines.schedule(entry, entry.lastSentNanos + AckTimeoutNanos(packet));
             }
-            ThreadState = SendStates.Idle;
         }
-
-        return sent_timestamp;
+        else
+            entry.state = SendStates.Idle;
     }
 
     /// <summary>
-    /// Checks if an ack or a nack was received or if a ackTimeout occured.
+    /// Matches the received acks/nacks by sequence number with the packets waiting for an ack.
     /// </summary>
-    private void WaitingForAckState(LocalDateTime sent_timestamp)
+    private void AckHandler()
     {
-    	synchronized (OutgoingQueue)
+        Packet_t packet;
+        while ((packet = IncomingAckQueue.poll()) != null)
         {
-    		synchronized (IncomingAckQueue)
+            InFlight_t entry = FindInFlight(packet.sequenceNumber, SendStates.WaitingForAck);
+            if (entry == null)
             {
-                if (IncomingAckQueue.size() > 0)
-                {
-                    Packet_t packet = IncomingAckQueue.poll();
-                    if (packet.sequenceNumber != OutgoingQueue.peek().sequenceNumber)
+                // sequence number doesn't equal the sequence number of a sent packet
+                continue;
+            }
+
+            switch (packet.type)
+            {
+                case PosAck_e:
+                    long ackTime = System.nanoTime() - entry.lastSentNanos;
+                    metrics.ackReceived(entry.packet.message.command, ackTime);
+                    if (entry.firstSentNanos == entry.lastSentNanos)
+                        _ackRtt.sample(entry.packet.message.command, ackTime);     // sent once (Karn)
+                    entry.ackTimeoutCounter = 0;
+                    entry.nackCounter = 0;
+                    callPacketSentHandler(entry.packet);
+                    if (entry.packet.type == PacketType_t.Request_e)
                     {
-                        // sequence number doesn't equal the last commands sequence number
+                        // the response timeout counts from the last transmission, like the ack timeout
+                        entry.state = SendStates.WaitingForResponse;
+                        Deadlines.schedule(entry, entry.lastSentNanos + ResponseTimeoutNanos(entry.packet));
                     }
                     else
                     {
-
-                        switch (packet.type)
-                        {
-                            case PosAck_e:
-                                ackTimeoutCounter = 0;
-                                nackCounter = 0;
-                                if (OutgoingQueue.peek().type == PacketType_t.Request_e)
-                                {
-                                    callPacketSentHandler(OutgoingQueue.peek());
-                                    ThreadState = SendStates.WaitingForResponse;
-                                }
-                                else
-                                {
-                                    callPacketSentHandler(OutgoingQueue.poll());
-                                    ThreadState = SendStates.Idle;
-                                }
-                                break;
-
-                            case NegAck_e:
-                                ackTimeoutCounter = 0;
-                                if (++nackCounter > MaxSendRepetition)
-                                {
-                                    nackCounter = 0;
-                                    callNackFailHandler(OutgoingQueue.poll());
-                                    ThreadState = SendStates.Idle;
-                                }
-                                else
-                                    ThreadState = SendStates.Sending;
-                                break;
-
-                            default:
-                                break;
-                        }
+                        entry.state = SendStates.Idle;
+                        Deadlines.cancel(entry);
                     }
-                }
-
-                // ack timeout?
-                else if (ChronoUnit.MILLIS.between(sent_timestamp, LocalDateTime.now()) > AckTimeout.toMillis())
-                {
-                   	fireAckNackReceived(true);
+                    break;
 
-                    if (++ackTimeoutCounter > MaxSendRepetition)
+                case NegAck_e:
+                    metrics.nackReceived();
+                    entry.ackTimeoutCounter = 0;
+                    if (++entry.nackCounter > MaxSendRepetition)
                     {
-                        ackTimeoutCounter = 0;
-                        nackCounter = 0;
-                        callAckTimeoutHandler(OutgoingQueue.poll());
-                        ThreadState = SendStates.Idle;
+                        metrics.nackFailed();
+                        entry.nackCounter = 0;
+                        callNackFailHandler(entry.packet);
+                        entry.state = SendStates.Idle;
                     }
                     else
-                        ThreadState = SendStates.Sending;
-                }
+                        entry.state = SendStates.Sending;
+                    Deadlines.cancel(entry);
+                    break;
+
+                default:
+                    break;
             }
         }
     }
 
     /// <summary>
-    /// Checks if a response was received
+    /// Time in ns the packet waits for its ack after it was sent.
+    /// </summary>
+    private long AckTimeoutNanos(Packet_t packet)
+    {
+        if (_adaptiveTimeouts)
+            return _ackRtt.timeoutNanos(packet.message.command, AckTimeout.toNanos());
+        return AckTimeout.toNanos();
+    }
+
+    /// <summary>
+    /// Time in ns the request waits for its response after it was sent.
+    /// </summary>
+    private long ResponseTimeoutNanos(Packet_t packet)
+    {
+        if (_adaptiveTimeouts)
+            return _responseRtt.timeoutNanos(packet.message.command, ResponseTimeout.toNanos());
+        return ResponseTimeout.toNanos();
+    }
+
+    /// <summary>
+    /// Called when the ack deadline of the entry expired.
     /// </summary>
-    private void WaitingForResponseState(LocalDateTime sent_timestamp)
+    private void WaitingForAckState(InFlight_t entry)
     {
-        if (responseReceived == true)
+       	fireAckNackReceived(true);
+        _ackRtt.timedOut(entry.packet.message.command);     // the repetition waits twice as long
+
+        boolean failed = ++entry.ackTimeoutCounter > MaxSendRepetition;
+        metrics.ackTimeout(failed);
+        if (failed)
         {
-            responseReceived = false;
-            synchronized (OutgoingQueue)
-            {
-                OutgoingQueue.poll();
-            }
-            ThreadState = SendStates.Idle;
+            entry.ackTimeoutCounter = 0;
+            entry.nackCounter = 0;
+            callAckTimeoutHandler(entry.packet);
+            entry.state = SendStates.Idle;
         }
-        //else if (DateTime.Now.Subtract(sent_timestamp) > ResponseTimeout)
-        else if (ChronoUnit.MILLIS.between(sent_timestamp, LocalDateTime.now()) > ResponseTimeout.toMillis())
+        else
         {
-        	synchronized (OutgoingQueue)
-            {
-                callResponseTimeoutHandler(OutgoingQueue.poll());
-            }
-            ThreadState = SendStates.Idle;
+            entry.state = SendStates.Sending;
+            SendState(entry);
+        }
+    }
+
+    /// <summary>
+    /// Called when the response deadline of the entry expired. The response itself is handled in IncomingDataQueueHandler().
+    /// </summary>
+    private void WaitingForResponseState(InFlight_t entry)
+    {
+        _responseRtt.timedOut(entry.packet.message.command);
+        metrics.responseTimeout();
+        callResponseTimeoutHandler(entry.packet);
+        entry.state = SendStates.Idle;
+    }
+
+    /// <summary>
+    /// Returns the oldest packet in flight with this sequence number and state, or null.
+    /// </summary>
+    private InFlight_t FindInFlight(byte sequenceNumber, SendStates state)
+    {
+        for (int i = 0; i < InFlight.size(); i++)
+        {
+            InFlight_t entry = InFlight.get(i);
+            if (entry.packet.sequenceNumber == sequenceNumber && entry.state == state)
+                return entry;
         }
+        return null;
+    }
+
+    /// <summary>
+    /// Returns the oldest request in flight with this sequence number (waiting for its ack or response), or null.
+    /// </summary>
+    private InFlight_t FindOpenRequest(byte sequenceNumber)
+    {
+        for (int i = 0; i < InFlight.size(); i++)
+        {
+            InFlight_t entry = InFlight.get(i);
+            if (entry.packet.sequenceNumber == sequenceNumber && entry.packet.type == PacketType_t.Request_e
+                    && (entry.state == SendStates.WaitingForAck || entry.state == SendStates.WaitingForResponse))
+                return entry;
+        }
+        return null;
+    }
+
+    private InFlight_t AcquireInFlight(Packet_t packet)
+    {
+        InFlight_t entry = InFlightPool.isEmpty() ? new InFlight_t() : InFlightPool.remove(InFlightPool.size() - 1);
+        entry.packet = packet;
+        entry.state = SendStates.Sending;
+        entry.ackTimeoutCounter = 0;
+        entry.nackCounter = 0;
+        entry.frameLength = 0;
+        return entry;
+    }
+
+    private void ReleaseInFlight(int index)
+    {
+        InFlight_t entry = InFlight.remove(index);
+        Deadlines.cancel(entry);
+        if (entry.openRequest)
+        {
+            OpenRequests.decrementAndGet(entry.packet.sequenceNumber & 0xFF);
+            entry.openRequest = false;
+        }
+        entry.packet = null;
+        InFlightPool.add(entry);
     }
     //#endregion
     
   /// <summary>
     /// This method takes the raw packets and processes them.
     /// Then it puts the packet in the DataQueue or in the AckQueue
+    /// Package-private for tools/EversysAllocationBenchmark.
     /// </summary>
-    /// <param name="data">data from serial port</param>
-    /// <param name="length">number of bytes of data</param>
-    private void ProccessRawPacket()
+    void ProccessRawPacket()
     {
-        if (IncomingRawQueue.size() > 0)
+        RawPacket_t rawPacket = IncomingRawQueue.poll();
+        if (rawPacket != null)
         {
-            int index = 0;
-            Packet_t packet = new Packet_t();
-            packet.isFail = false;
-            RawPacket_t rawPacket = new RawPacket_t(new byte[getMaxPacketSize()], getMaxPacketSize());
-            synchronized (IncomingRawQueue)
-            {
-                rawPacket = IncomingRawQueue.poll();
-            }
-            
-            // delete SOT and EOT
-            //Array.Copy(rawPacket.data, 1, rawPacket.data, 0, rawPacket.length - 2);
-            System.arraycopy(rawPacket.data, 1, rawPacket.data, 0, rawPacket.length - 2);
-            rawPacket.length -= 2;
+            byte[] data = rawPacket.data;
+            int length = rawPacket.length;
 
-            // revert shifted characters
-            byte[] data = RevertShiftedChars(rawPacket.data, rawPacket.length);
-            int length = data.length;
-
-            if (length < 5)
+            if (length < PACKETHEADER_OFFSET)
             {
-                // length fail -> NACK
-                packet.isFail = true;
+                // not even a header, nobody to send a NACK to
+                RawPacketPool.tryOffer(rawPacket);
+                return;
             }
 
+            Packet_t packet = new Packet_t();
+            packet.isFail = false;
+            packet.ackSent = rawPacket.ackSent;
+
             // cast the rawPacket into a packet
-            packet.parity = (byte)(data[0] >> 6);
+            packet.parity = (byte)((data[0] >> 6) & 0x3);
             packet.protoVersion = (byte)(data[0] & 0x3F);
-            packet.isEncrypted = Encrypt_t.fromInteger(data[1] >> 7);
+            packet.isEncrypted = Encrypt_t.fromInteger((data[1] >> 7) & 0x1);
             packet.appPort = ApplicationPort_t.fromInteger((data[1] >> 3) & 0xF);
             packet.type = PacketType_t.fromInteger(data[1] & 0x7);
             packet.sequenceNumber = data[2];
             packet.source = (byte)data[3];
             packet.destination = (byte)data[4];
 
+            if (packet.type == null)
+            {
+                RawPacketPool.tryOffer(rawPacket);
+                return;
+            }
+
             switch (packet.type)
             {
                 case Data_e:
                 case Request_e:
+                    packet.data = EMPTY_DATA;
+                    if (length < HEADER_OFFSET + CRC_SIZE)
+                    {
+                        // length fail -> NACK
+                        metrics.lengthError();
+                        packet.isFail = true;
+                        packet.message = new Message_t((byte)0, (short)0);
+                        IncomingDataQueue.offer(packet);
+                        break;
+                    }
+
                     // cast command id and parameter
                     packet.message = new Message_t(
                         (byte)data[5],
-                        (short)(data[6] | (data[7] << 8))
+                        (short)((data[6] & 0xFF) | ((data[7] & 0xFF) << 8))
                         );
 
                     // cast data
-                    packet.dataLength = (int)(data[8] | ((int)data[9] << 8));
+                    packet.dataLength = (data[8] & 0xFF) | ((data[9] & 0xFF) << 8);
 
-                    if (packet.dataLength > 0 && length < getMaxPacketSize())
+                    if (packet.dataLength != length - HEADER_OFFSET - CRC_SIZE)
+                    {
+                        // length fail -> NACK
+                        metrics.lengthError();
+                        packet.isFail = true;
+                        packet.dataLength = 0;
+                    }
+                    else if (packet.dataLength > 0)
                     {
                         packet.data = new byte[packet.dataLength];
-                        while (index < packet.dataLength)
-                        {
-                            packet.data[index] = data[HEADER_OFFSET + index];
-                            index++;
-                        }
+                        System.arraycopy(data, HEADER_OFFSET, packet.data, 0, packet.dataLength);
                     }
 
                     // cast crc
-                    packet.CRC.LowByte = data[HEADER_OFFSET + index];
-                    packet.CRC.HighByte = data[HEADER_OFFSET + index + 1];
+                    packet.CRC = new PacketCRC_t();
+                    packet.CRC.LowByte = data[length - CRC_SIZE];
+                    packet.CRC.HighByte = data[length - 1];
+                    packet.CRC.As16BitVal = (short)((packet.CRC.LowByte & 0xFF) | ((packet.CRC.HighByte & 0xFF) << 8));
 
-                    // check crc
-                    if (CalculateCRC(data, length) != 0)
+                    // check crc, it was calculated while receiving
+                    if (rawPacket.crcResidue != 0)
                     {
                         // CRC fail -> NACK
+                        metrics.crcError();
                         packet.isFail = true;
                     }
 
-                    synchronized (IncomingDataQueue)
-                    {
-                        IncomingDataQueue.add(packet);
-                    }
+                    IncomingDataQueue.offer(packet);
 
                     break;
                 case PosAck_e:
                 case NegAck_e:
+                    if (packet.destination != this.Address)
+                        break;      // ack for another host on the same bus, see EversysSharedPort
                     fireAckNackReceived(packet);
                     
-                    synchronized (IncomingAckQueue)
-                    {
-                        IncomingAckQueue.add(packet);
-                    }
+                    IncomingAckQueue.offer(packet);
                     break;
 			default:
 				break;
             }
+
+            RawPacketPool.tryOffer(rawPacket);
         }
     }
     
   /// <summary>
     /// Checks the GetStatus response for the justReset bit. If it is set
     /// the sequence number will be set to 0.
+    /// An incoming packet is only checked when it is the response to an open request:
+    /// IncomingDataQueueHandler() matched its sequence number with FindOpenRequest().
     /// </summary>
-    /// <param name="p"></param>
-    private boolean checkForReset(Packet_t p, boolean outgoing)
+    /// <param name="p">outgoing packet or received response</param>
+    private boolean checkForReset(Packet_t p)
     {
         // commandID = GetStatus (0x01) and justReset bit is set
-        if (p.message.command == 0x01 && p.type == PacketType_t.Data_e)
-        {
-            if ((p.data[0] & 0x01) == 0x01)
-            {
-                if (outgoing)
-                {
-                    return true;
-                }
-                else
-                {
-                    if (OutgoingQueue.peek().sequenceNumber == p.sequenceNumber)
-                        return true;
-                }
-            }
-        }
-        return false;
+        return p.message.command == 0x01 && p.type == PacketType_t.Data_e && p.data != null && p.data.length > 0
+            && (p.data[0] & 0x01) == 0x01;
     }
 
     /// <summary>
@@ -1453,261 +2488,362 @@ public class EversysSerialComm {
     /// </summary>
     private void IncomingDataQueueHandler()
     {
-    	synchronized (IncomingDataQueue)
+        Packet_t incoming = IncomingDataQueue.poll();
+        if (incoming == null)
+            return;
+        metrics.packetReceived();
+
+        if (incoming.destination == this.Address)
         {
-            if (IncomingDataQueue.size() > 0)
-            {
-                if (IncomingDataQueue.peek().destination == this.Address)
+            // a packet which was acknowledged inline is not a response, see TryInlineAck()
+            InFlight_t request = incoming.ackSent ? null : FindOpenRequest(incoming.sequenceNumber);
+            if (request == null)
+            {   // if there is no request with this sequence number in flight
+                //if (DateTime.Now.Subtract(incomingTimeStamp) < AckTimeout)
+                if (!incoming.ackSent && System.nanoTime() - incomingNanos > AckTimeout.toNanos())
                 {
-                    if (OutgoingQueue.size() == 0 || OutgoingQueue.peek().type == PacketType_t.Data_e)
-                    {   // if there is no request in the queue
-                        Packet_t ackPacket = new Packet_t();
-                        ackPacket.parity = 0;
-                        ackPacket.protoVersion = PROTOCOL_VERSION;
-                        ackPacket.isEncrypted = Encrypt_t.No;		// 0
-                        ackPacket.appPort = ApplicationPort_t.Api_e;
-                        ackPacket.sequenceNumber = IncomingDataQueue.peek().sequenceNumber;
-                        ackPacket.source = this.Address;
-                        ackPacket.destination = IncomingDataQueue.peek().source;
-                        ackPacket.dataLength = 0;
-                        ackPacket.data = new byte[0];
-
-                        //if (DateTime.Now.Subtract(incomingTimeStamp) < AckTimeout)
-                        if (ChronoUnit.MILLIS.between(incomingTimeStamp, LocalDateTime.now()) > AckTimeout.toMillis())
-                        {
-                            if (IncomingDataQueue.peek().isFail == false)
-                            {
-                                ackPacket.type = PacketType_t.PosAck_e;
-                                _sendIsIdle = false;
-                                WriteToPort(ackPacket.ToByteArray());
-                                _sendIsIdle = true;
-
-                                if (IncomingDataQueue.peek().type == PacketType_t.Request_e)
-                                    requestOpen = true;
-
-                                // if the sequence Number of the last received packet is
-                                // the same as this then throw the packet away
-                                if (lastAckCommand != (int)IncomingDataQueue.peek().sequenceNumber)
-                                    callPacketReceivedHandler(IncomingDataQueue.poll());
-                                else
-                                    IncomingDataQueue.poll();
-
-                                lastAckCommand = (int)ackPacket.sequenceNumber;
-                            }
-                            else
-                            {
-                                ackPacket.type = PacketType_t.NegAck_e;
-                                _sendIsIdle = false;
-                                WriteToPort(ackPacket.ToByteArray());
-                                _sendIsIdle = true;
-                                IncomingDataQueue.poll();
-                            }
-                        }
-                    }
-                    else // the data packet is a response
+                    // the sender doesn't wait for the ack anymore, it will repeat the packet
+                }
+                else if (incoming.isFail == false)
+                {
+                    if (!incoming.ackSent)
                     {
-                        if (checkForReset(IncomingDataQueue.peek(), false))
-                        {
-                            lastAckCommand = -1;
-                            sequenceNumber = 0;
-                        }
-
-                        responseReceived = true;
-                        callPacketReceivedHandler(IncomingDataQueue.poll());
+                        _sendIsIdle = false;
+                        WriteAck(PacketType_t.PosAck_e, incoming);
+                        metrics.ackSent(true);
+                        _sendIsIdle = true;
                     }
+
+                    if (incoming.type == PacketType_t.Request_e)
+                        requestOpen = true;
+
+                    // if the sequence Number of the last received packet is
+                    // the same as this then throw the packet away
+                    if (lastAckCommand != (int)incoming.sequenceNumber)
+                        callPacketReceivedHandler(incoming);
+
+                    lastAckCommand = (int)incoming.sequenceNumber;
                 }
-                else
+                else if (!incoming.ackSent)
+                {
+                    _sendIsIdle = false;
+                    WriteAck(PacketType_t.NegAck_e, incoming);
+                    metrics.ackSent(false);
+                    _sendIsIdle = true;
+                }
+            }
+            else // the data packet is a response
+            {
+                if (checkForReset(incoming))
                 {
-                    IncomingDataQueue.poll();
+                    lastAckCommand = -1;
+                    ResetSequenceNumber();
                 }
+
+                // the response also acknowledges the request
+                long now = System.nanoTime();
+                metrics.responseReceived(request.packet.message.command, now - request.firstSentNanos);
+                if (request.firstSentNanos == request.lastSentNanos)     // sent once (Karn)
+                    _responseRtt.sample(request.packet.message.command, now - request.lastSentNanos);
+                request.state = SendStates.Idle;
+                callResponseReceivedHandler(request.packet, incoming);
+                callPacketReceivedHandler(incoming);
             }
         }
     }
 
     /// <summary>
-    /// Writes the packet to the serial port.
+    /// Send buffer for the acks and nacks; only used by the transmission thread.
     /// </summary>
-    /// <param name="data">data from ToByteArray()</param>
-    private void WriteToPort(byte[] data)
+    private final byte[] ackFrame = new byte[EversysFrameEncoder.maxAckFrameLength()];
+
+    /// <summary>
+    /// Acknowledges the incoming packet without creating a Packet_t.
+    /// </summary>
+    /// <param name="type">PosAck_e or NegAck_e</param>
+    /// <param name="incoming">acknowledged packet</param>
+    private void WriteAck(PacketType_t type, Packet_t incoming)
     {
-        _sendIsIdle = false;
-        byte[] buffer = ProcessToSend(data);
+        int length = EversysFrameEncoder.encodeAck(type, incoming.sequenceNumber, this.Address, incoming.source, PROTOCOL_VERSION, ackFrame, 0);
+        WriteToPort(ackFrame, length);
+    }
 
-        if (ReceiveOnlyMode == false)
+    /// <summary>
+    /// Serializes the writes of the transmission thread and the inline acks of the receive thread.
+    /// </summary>
+    private final Object _portWriteLock = new Object();
+
+    /// <summary>
+    /// Ack and nack telegrams for the inline acks of one destination. A telegram is encoded when its
+    /// sequence number is acked the first time and reused afterwards; only used by the receive thread.
+    /// </summary>
+    private final class AckFrames_t
+    {
+        final byte destination;
+        final byte source;
+        final byte[][] frames = new byte[2 * 256][];
+
+        AckFrames_t(byte source, byte destination)
+        {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        byte[] get(boolean valid, byte sequenceNumber)
         {
-            if (ApiPort != null && ApiPort.isOpen())
+            int index = (valid ? 0 : 256) + (sequenceNumber & 0xFF);
+            byte[] frame = frames[index];
+            if (frame == null)
             {
-                ApiPort.writeBytes(buffer, buffer.length);
+                byte[] buffer = new byte[EversysFrameEncoder.maxAckFrameLength()];
+                int length = EversysFrameEncoder.encodeAck(valid ? PacketType_t.PosAck_e : PacketType_t.NegAck_e,
+                    sequenceNumber, source, destination, PROTOCOL_VERSION, buffer, 0);
+                frames[index] = frame = Arrays.copyOf(buffer, length);
             }
-
-            callDataSentInterceptHandler(buffer);
+            return frame;
         }
-        _sendIsIdle = true;
     }
-    
+
+    private volatile AckFrames_t _ackFrames = null;
+
     /// <summary>
-    /// Makes the Data ready to be sent to the port.
+    /// Acknowledges a complete telegram directly on the receive thread, see setInlineAcks().
+    /// Same decision as IncomingDataQueueHandler() for a data packet or request which is not a response.
     /// </summary>
-    /// <param name="data">data from ToByteArray()</param>
-    /// <returns>final byte array with SOH and EOT</returns>
-    private static byte[] ProcessToSend(byte[] data)
+    /// <returns>true when the ack or nack was written</returns>
+    private boolean TryInlineAck(byte[] frame, int length, short crcResidue)
     {
-        int count = 0;
-        byte[] buffer = new byte[data.length * 2 + 2]; // Length*2 + 2 = maximum possible length (every byte shifted)
-        buffer[count++] = (byte)SpecialChars_t.SOH_e.getData();
-        for (int i = 0; i < data.length; i++)
-        {   // shift every special character
-            if (IsSpecialChar(data[i]))
-            {
-                buffer[count++] = (byte)SpecialChars_t.ShiftChar_e.getData();
-                buffer[count++] = (byte)(data[i] ^ (byte)SpecialChars_t.ShiftXOR_e.getData());
-            }
-            else
-            {
-                buffer[count++] = data[i];
-            }
+        if (length < PACKETHEADER_OFFSET || ReceiveOnlyMode || stopSerialPort)
+            return false;
+        int type = frame[1] & 0x7;
+        if (type != PacketType_t.Data_e.getData() && type != PacketType_t.Request_e.getData())
+            return false;
+        if (frame[4] != this.Address)
+            return false;
+        byte sequenceNumber = frame[2];
+        if (OpenRequests.get(sequenceNumber & 0xFF) > 0)
+            return false;       // may be the response to our request; the transmission thread decides
+
+        boolean valid = crcResidue == 0 && length >= HEADER_OFFSET + CRC_SIZE
+                && ((frame[8] & 0xFF) | ((frame[9] & 0xFF) << 8)) == length - HEADER_OFFSET - CRC_SIZE;
+
+        AckFrames_t acks = _ackFrames;
+        if (acks == null || acks.destination != frame[3] || acks.source != this.Address)
+            _ackFrames = acks = new AckFrames_t(this.Address, frame[3]);
+        byte[] ack = acks.get(valid, sequenceNumber);
+
+        synchronized (_portWriteLock)
+        {
+            if (ApiPort == null || !ApiPort.isOpen())
+                return false;
+
+            // telegrams which the transmission thread has buffered were sent before the ack
+            WriteBuffered();
+
+            // in the lock, so the capture has the telegrams in the order of the port (see WriteBuffered())
+            EversysCapture c = capture;
+            if (c != null)
+                c.record(EversysCapture.Direction_t.Outbound_e, ack, 0, ack.length);
+            ApiPort.write(ack, ack.length);
         }
-        buffer[count++] = (byte)SpecialChars_t.EOT_e.getData();
-        // Array.Resize(ref buffer, count);
-        buffer = Arrays.copyOfRange(buffer,0,count);		//hcpark		
-        return buffer;
+        metrics.ackSent(valid);
+        _inlineAckCount++;
+
+        callDataSentInterceptHandler(ack, ack.length);
+        return true;
     }
-    
-    public static int ArrayIndexOf(byte[] array, byte key) {
-    	int returnvalue = -1;
-        for (int i = 0; i < array.length; ++i) {
-            if (key == array[i]) {
-                returnvalue = i;
-                break;
-            }
-        }
-        return returnvalue;
+
+    private volatile long _inlineAckCount = 0;
+
+    /// <summary>
+    /// Acks and nacks which were written by the receive thread.
+    /// </summary>
+    public long getInlineAckCount()
+    {
+        return _inlineAckCount;
     }
-    
+
     /// <summary>
-    /// This method searches for a SOH and it will save the data after it.
-    /// Then it waits until it finds a EOT. If the MaxPacketSize was not exceeded,
-    /// then it will save the data with the SOH and EOT as a rawPacket in the IncomingRawQueue.
-    /// If the packet size grows over MaxPacketSize it will ignore the packet.
-    /// If there is still data after the EOT it will recursively call itself until there is no data left.
+    /// Telegrams which are written together with the next writeBytes() call. Filled by the transmission thread;
+    /// guarded by _portWriteLock, because TryInlineAck() writes it out before its ack.
     /// </summary>
-    /// <param name="buffer">data as byte array</param>
-    /// <param name="bytesRead">number of data bytes</param>
-    private void ProcessRawData(byte[] buffer, int bytesRead)
+    private byte[] _writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private volatile int _writeBufferLength = 0;
+    private int _writeBufferFrames = 0;
+    /// <summary>
+    /// System.nanoTime() when the first telegram was put into the empty _writeBuffer
+    /// </summary>
+    private long _writeBufferStart = 0;
+
+    private volatile long _writeCount = 0;
+    private volatile long _writtenFrameCount = 0;
+    private volatile int _maxFramesPerWrite = 0;
+
+    /// <summary>
+    /// Puts the telegram into the write buffer. It is written by FlushWrites() at the end of the round
+    /// or when the write coalescing window expires.
+    /// </summary>
+    /// <param name="frame">telegram from EversysFrameEncoder, starting at index 0</param>
+    /// <param name="length">number of bytes to write</param>
+    private void WriteToPort(byte[] frame, int length)
     {
-        int indexOfSoh = -1;
-        int indexOfEot = -1;
-        int bytesToProcess = bytesRead;
+        _sendIsIdle = false;
 
-        // no SOH in the rawDataBuffer?
-        if (rawDataBuffer[0] != (byte)SpecialChars_t.SOH_e.getData())
+        if (ReceiveOnlyMode == false)
         {
-            //indexOfSoh = Array.IndexOf(buffer, (byte)SpecialChars_t.SOH_e);
-        	indexOfSoh = ArrayIndexOf(buffer, (byte)SpecialChars_t.SOH_e.getData());
-            if (indexOfSoh >= 0)
+            synchronized (_portWriteLock)
             {
-                //Array.Copy(buffer, indexOfSoh, buffer, 0, bytesRead - indexOfSoh);
-            	System.arraycopy(buffer, indexOfSoh, buffer, 0, bytesRead - indexOfSoh);
-                bytesRead = bytesToProcess = bytesRead - indexOfSoh;
+                if (_writeBufferLength + length > _writeBuffer.length)
+                {
+                    WriteBuffered();
+                    if (length > _writeBuffer.length)
+                        _writeBuffer = new byte[length];
+                }
+                if (_writeBufferLength == 0)
+                    _writeBufferStart = System.nanoTime();
+                System.arraycopy(frame, 0, _writeBuffer, _writeBufferLength, length);
+                _writeBufferLength += length;
+                _writeBufferFrames++;
             }
+
+            callDataSentInterceptHandler(frame, length);
         }
+        _sendIsIdle = true;
+    }
+
+    /// <summary>
+    /// Writes the buffered telegrams with one writeBytes() call.
+    /// </summary>
+    private void FlushWrites()
+    {
+        if (_writeBufferLength == 0)
+            return;
 
-        if (rawDataBuffer[0] == (byte)SpecialChars_t.SOH_e.getData() || indexOfSoh >= 0)
+        _sendIsIdle = false;
+        synchronized (_portWriteLock)
         {
-            indexOfEot = ArrayIndexOf(buffer, (byte)SpecialChars_t.EOT_e.getData());
-            if (indexOfEot >= 0)
-            {
-                bytesToProcess = indexOfEot + 1;
-                // would MaxPacketSize be exceeded?
-                if (bytesToProcess + rawDataBufferLength <= getMaxPacketSize())
-                {
-                    // create a RawPacket and add it to the IncomingRawQueue
-                    RawPacket_t rawPacket = new RawPacket_t(new byte[bytesToProcess + rawDataBufferLength],
-                                                            bytesToProcess + rawDataBufferLength);
-                    System.arraycopy(rawDataBuffer, 0, rawPacket.data, 0, rawDataBufferLength);
-                    System.arraycopy(buffer, 0, rawPacket.data, rawDataBufferLength, bytesToProcess);
-                    
-                    synchronized (IncomingRawQueue) {
-                        if (rawPacket.length >= 10)
-                            rawDataBufferLength = 0;
-                        IncomingRawQueue.add(rawPacket);
-                    }
-                    
-                    incomingTimeStamp = LocalDateTime.now();
+            WriteBuffered();
+        }
+        _sendIsIdle = true;
+    }
 
-                    // reset rawDataBuffer
-                    rawDataBuffer = new byte[getMaxPacketSize()];
-                    rawDataBufferLength = 0;
-                }
-                else
-                {
-                    // MaxPacketSize would be exceeded, then ignore the packet and reset rawDataBuffer
-                    rawDataBuffer = new byte[getMaxPacketSize()];
-                    rawDataBufferLength = 0;
-                }
+    /// <summary>
+    /// Writes and empties the write buffer; the caller holds _portWriteLock.
+    /// </summary>
+    private void WriteBuffered()
+    {
+        if (_writeBufferLength == 0)
+            return;
 
-                if (bytesToProcess < bytesRead)
-                {
-                    // call this method recursively
-                	System.arraycopy(buffer, bytesToProcess, buffer, 0, bytesRead - bytesToProcess);
-                    //Array.Resize(ref buffer, bytesRead - bytesToProcess);
-                	buffer = Arrays.copyOfRange(buffer, 0, bytesRead - bytesToProcess);		//hcpark
-                    ProcessRawData(buffer, bytesRead - bytesToProcess);
-                }
+        if (ApiPort != null && ApiPort.isOpen())
+        {
+            // in the lock, so the capture has the telegrams in the order of the port (see TryInlineAck()),
+            // and before the write, so the answer of the machine can't be recorded first
+            EversysCapture c = capture;
+            if (c != null)
+                c.record(EversysCapture.Direction_t.Outbound_e, _writeBuffer, 0, _writeBufferLength);
+            ApiPort.write(_writeBuffer, _writeBufferLength);
+        }
 
-            }
-            else
-            {
-                // would MaxPacketSize be exceeded?
-                if (bytesRead + rawDataBufferLength <= getMaxPacketSize())
-                {
-                	System.arraycopy(buffer, 0, rawDataBuffer, rawDataBufferLength, bytesRead);
-                    rawDataBufferLength += bytesRead;
-                }
-                else
-                {
-                    rawDataBuffer = new byte[getMaxPacketSize()];
-                    rawDataBufferLength = 0;
-                }
-            }
+        _writeCount++;
+        _writtenFrameCount += _writeBufferFrames;
+        if (_writeBufferFrames > _maxFramesPerWrite)
+            _maxFramesPerWrite = _writeBufferFrames;
+        _writeBufferLength = 0;
+        _writeBufferFrames = 0;
+    }
+
+    /// <summary>
+    /// Time in ns until the write coalescing window of the buffered telegrams ends;
+    /// 0 = write now (no window, window expired or the port is stopping).
+    /// </summary>
+    private long WriteWindowRemaining()
+    {
+        long window = TimeUnit.MICROSECONDS.toNanos(_writeCoalescingWindow);
+        if (window == 0 || stopSerialPort)
+            return 0;
+        return Math.max(0, window - (System.nanoTime() - _writeBufferStart));
+    }
+
+    /// <summary>
+    /// Called by the TransmissionThread at the end of a round with telegrams in the write buffer.
+    /// Writes them when WriteWindowRemaining() is 0. Otherwise waits for the rest of the window,
+    /// in steps of WRITE_COALESCING_POLL, and stops waiting early when new work arrives so that
+    /// its telegrams go into the same write. With a scheduler, ProcessTransmission() doesn't wait.
+    /// </summary>
+    /// <returns>true when the buffer was written, false when the next round should add to it</returns>
+    private boolean FlushWritesIfDue()
+    {
+        long remaining;
+        while ((remaining = WriteWindowRemaining()) > 0)
+        {
+            if (IncomingRawQueue.size() > 0 || CanSendNext())
+                return false;
+            LockSupport.parkNanos(Math.min(remaining, WRITE_COALESCING_POLL));
         }
+        FlushWrites();
+        return true;
     }
     
+    public static int ArrayIndexOf(byte[] array, byte key) {
+        return EversysByteScan.indexOf(array, 0, array.length, key);
+    }
     
+    /// <summary>
+    /// Feeds the received data into the frameDecoder. Complete telegrams end up in RawFrameReceived().
+    /// </summary>
+    /// <param name="buffer">data as byte array</param>
+    /// <param name="bytesRead">number of data bytes</param>
+    void ProcessRawData(byte[] buffer, int bytesRead)
+    {
+        EversysCapture c = capture;
+        if (c != null)
+            c.record(EversysCapture.Direction_t.Inbound_e, buffer, 0, bytesRead);
+        frameDecoder.decode(buffer, 0, bytesRead);
+    }
 
     /// <summary>
-    /// Checks for special character (shifted characters)
+    /// Called by the frameDecoder for every complete telegram. The frame buffer is handed over to a pooled
+    /// RawPacket_t, which is put in the IncomingRawQueue; its old buffer is used for the next telegram.
     /// </summary>
-    /// <param name="c">to be checked character</param>
-    /// <returns>true/false</returns>
-    private static boolean IsSpecialChar(byte c)
+    /// <returns>buffer for the next telegram</returns>
+    private byte[] RawFrameReceived(byte[] frame, int length, short crcResidue)
     {
-        return (boolean)(c <= (byte)SpecialChars_t.EOT_e.getData() ||
-                        c == (byte)SpecialChars_t.ETB_e.getData() ||
-                        c == (byte)SpecialChars_t.LF_e.getData() ||
-                        c == (byte)SpecialChars_t.CR_e.getData() ||
-                        c == (byte)SpecialChars_t.ShiftChar_e.getData());
+        RawPacket_t rawPacket = AcquireRawPacket();
+        byte[] next = rawPacket.data;
+        rawPacket.data = frame;
+        rawPacket.length = length;
+        rawPacket.crcResidue = crcResidue;
+        rawPacket.ackSent = _inlineAcks && TryInlineAck(frame, length, crcResidue);
+
+        incomingNanos = System.nanoTime();
+        IncomingRawQueue.offer(rawPacket);
+        signalWork();
+        return next;
     }
-	
+
+    /// <summary>
+    /// Takes a RawPacket_t from the pool or creates a new one if the pool is empty.
+    /// </summary>
+    private RawPacket_t AcquireRawPacket()
+    {
+        RawPacket_t rawPacket = RawPacketPool.poll();
+        if (rawPacket == null || rawPacket.data.length < frameDecoder.getMaxFrameSize())
+            rawPacket = new RawPacket_t(frameDecoder.getMaxFrameSize());
+        rawPacket.length = 0;
+        rawPacket.crcResidue = CRC_INIT;
+        return rawPacket;
+    }
+
 	/// <summary>
-    /// calculates the crc value with the crcPolynomTable
+    /// calculates the crc value, see Crc16Ibm
     /// </summary>
     /// <param name="data_p">reference to a byte array. the CRC will be calculated on this array.</param>
     /// <param name="dataLength"> length of the array </param>
     /// <returns> crc value as 16bit value </returns>
     private static short CalculateCRC(byte[] data_p, int dataLength)
     {
-        short checksum;
-
-        checksum = CRC_INIT;
-
-        for (int nIndex = 0; nIndex < dataLength; nIndex++)
-        {
-        	// hcpark : short ?
-            checksum = (short)((checksum >> 8) ^ (short)crcPolynomTable[(checksum ^ data_p[nIndex]) & 0xFF]);
-        }
-
-        return checksum;
+        return Crc16Ibm.calculate(data_p, dataLength);
     }
 	
 	//================================================================================
@@ -1716,63 +2852,18 @@ public class EversysSerialComm {
 	private static Logger logger = LoggerFactory.getLogger(EversysSerialComm.class);
 	
 	private static final int SERIAL_COMM_ERROR = -1;
-	private static final int DEFAULT_COMM_READ_TIMEOUT = 5000;
-	private static final int DEFAULT_COMM_WRITE_TIMEOUT = 5000;
 	private static final int DEFAULT_BAUD_RATE = 115200;
 	
 	
-	private Map<String, SerialPort> comPorts = new ConcurrentHashMap<>();
-	
 	private Map<String, SerialConfig> serials = new ConcurrentHashMap<>();
 	
-	private Object _lock = new Object();
-	
 	private static EversysSerialComm _instance = new EversysSerialComm();
 	
-	public static EversysSerialComm getInstance() {
-		return _instance;
-	}
-	
-	/**
-	 * @throws DeviceInitializeException
-	 * @throws SQLException 
-	 * @throws IntrospectionException 
-	 * @throws InstantiationException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
-	 */
-	private void initialize() throws DeviceInitializeException {
-		
-		synchronized(_lock) {
-			
-			SerialPort[] serialPorts = SerialPort.getCommPorts();
-			
-			if(serialPorts == null || serialPorts.length == 0) {
-				throw new DeviceInitializeException("error occurred during serial device initialization");
-			}
-			
-			comPorts.clear();
-			
-			for(SerialPort serialPort : serialPorts) {
-				if(serialPort.isOpen()) {
-					serialPort.closePort();
-				}
-				
-				comPorts.put(serialPort.getSystemPortName(), serialPort);
-			}
-		}
-	}
-	
-	
 	/**
-	 * @param name
-	 * @return SerialPort
+	 * Default instance for a booth with a single machine. Use EversysSerialHub for more machines.
 	 */
-	public SerialPort getSerialPort(String name) {
-		synchronized(_lock) {
-			return comPorts.get(name);
-		}
+	public static EversysSerialComm getInstance() {
+		return _instance;
 	}
 	
 	
@@ -0,0 +1,160 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
+
+/// <summary>
+/// Registry for booths with several Eversys machines.
+/// Owns one EversysSerialComm per port and address; every instance has its own queues, sequence numbers
+/// and state machine. Engines with different addresses can share a port (multidrop bus, see EversysSharedPort).
+/// All instances share one EversysIoScheduler instead of one thread per port.
+/// </summary>
+public class EversysSerialHub {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysSerialHub.class);
+
+    private final EversysIoScheduler scheduler;
+
+    /// <summary>
+    /// Ports by port name.
+    /// </summary>
+    private final Map<String, EversysSharedPort> ports = new LinkedHashMap<String, EversysSharedPort>();
+
+    /// <summary>
+    /// Engines by key(port name, address).
+    /// </summary>
+    private final Map<String, EversysSerialComm> engines = new LinkedHashMap<String, EversysSerialComm>();
+
+    /// <summary>
+    /// Creates a hub with one shared I/O thread.
+    /// </summary>
+    public EversysSerialHub() {
+        this(1);
+    }
+
+    /// <summary>
+    /// Creates a hub with the given number of shared I/O threads.
+    /// </summary>
+    public EversysSerialHub(int ioThreads) {
+        this.scheduler = new EversysIoScheduler(ioThreads);
+    }
+
+    private static String key(String portName, byte address) {
+        return portName + "@" + (address & 0xFF);
+    }
+
+    /// <summary>
+    /// Opens the port if it isn't open yet and starts a new engine for the address on it.
+    /// </summary>
+    /// <param name="portName">Name of the port e.g. COM1</param>
+    /// <param name="baudRate">Baudrate e.g. 115200; all engines on a port use the same</param>
+    /// <param name="address">ID of this device on that port (source id)</param>
+    /// <param name="listener">listener for the packets of this machine, may be null</param>
+    /// <returns>the started engine</returns>
+    public synchronized EversysSerialComm open(String portName, int baudRate, byte address, PacketEventListener listener) throws DeviceInitializeException {
+        EversysSharedPort port = ports.get(portName);
+        if (port == null)
+            port = new EversysSharedPort(JSerialCommTransport.FACTORY.create(portName));
+        return start(portName, port, baudRate, address, listener);
+    }
+
+    /// <summary>
+    /// Starts a new engine on a transport which was created by the caller (TCP bridge, loopback, ...).
+    /// The port is registered under transport.getName(); further engines on it are opened with the same transport.
+    /// </summary>
+    public synchronized EversysSerialComm open(SerialTransport transport, int baudRate, byte address, PacketEventListener listener) {
+        String portName = transport.getName();
+        EversysSharedPort port = ports.get(portName);
+        if (port == null)
+            port = new EversysSharedPort(transport);
+        else if (port.getPort() != transport)
+            throw new IllegalStateException(portName + " is already open with another transport");
+        return start(portName, port, baudRate, address, listener);
+    }
+
+    private EversysSerialComm start(String portName, EversysSharedPort port, int baudRate, byte address, PacketEventListener listener) {
+        String key = key(portName, address);
+        if (engines.containsKey(key))
+            throw new IllegalStateException(key + " is already open");
+
+        EversysSerialComm engine = new EversysSerialComm();
+        engine.setScheduler(scheduler);
+        engine.setListener(listener);
+        engine.SerialComm(port.attach(address), baudRate, address);
+        engine.Start();
+
+        ports.put(portName, port);
+        engines.put(key, engine);
+        logger.info("eversys engine started : " + portName + ", address " + (address & 0xFF));
+        return engine;
+    }
+
+    /// <summary>
+    /// First engine of the port or null.
+    /// </summary>
+    public synchronized EversysSerialComm get(String portName) {
+        for (Map.Entry<String, EversysSerialComm> entry : engines.entrySet()) {
+            if (entry.getKey().startsWith(portName + "@"))
+                return entry.getValue();
+        }
+        return null;
+    }
+
+    /// <summary>
+    /// Engine of the port with the given address or null.
+    /// </summary>
+    public synchronized EversysSerialComm get(String portName, byte address) {
+        return engines.get(key(portName, address));
+    }
+
+    /// <summary>
+    /// Snapshot of all engines.
+    /// </summary>
+    public synchronized Collection<EversysSerialComm> getEngines() {
+        return new ArrayList<EversysSerialComm>(engines.values());
+    }
+
+    /// <summary>
+    /// Stops the engine of the port and address; the port is closed with its last engine.
+    /// </summary>
+    public synchronized void close(String portName, byte address) {
+        EversysSerialComm engine = engines.remove(key(portName, address));
+        if (engine == null)
+            return;
+        engine.Dispose();
+        EversysSharedPort port = ports.get(portName);
+        port.detach(engine.getTransport());
+        if (port.isUnused())
+            ports.remove(portName);
+    }
+
+    /// <summary>
+    /// Stops all engines of the port and closes the port.
+    /// </summary>
+    public synchronized void close(String portName) {
+        for (EversysSerialComm engine : getEngines()) {
+            if (engines.get(key(portName, engine.getAddress())) == engine)
+                close(portName, engine.getAddress());
+        }
+    }
+
+    /// <summary>
+    /// Stops all engines and the shared I/O threads.
+    /// </summary>
+    public synchronized void shutdown() {
+        for (EversysSerialComm engine : engines.values())
+            engine.Dispose();
+        engines.clear();
+        for (EversysSharedPort port : ports.values())
+            port.getPort().close();
+        ports.clear();
+        scheduler.shutdown();
+    }
+}
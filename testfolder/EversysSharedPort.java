@@ -0,0 +1,134 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/// <summary>
+/// One port with several machines on it (multidrop bus), used by EversysSerialHub.
+/// Every EversysSerialComm on the port gets its own SerialTransport from attach(); the engines use
+/// different addresses and every engine only takes the telegrams addressed to it.
+/// The received bytes go to all attached engines, the writes of the engines are serialized.
+/// </summary>
+class EversysSharedPort {
+
+    private final SerialTransport port;
+
+    private final CopyOnWriteArrayList<Drop> drops = new CopyOnWriteArrayList<Drop>();
+
+    EversysSharedPort(SerialTransport port) {
+        this.port = port;
+        port.setDataListener(new SerialTransport.DataListener() {
+            @Override
+            public void dataReceived(byte[] buffer, int length) {
+                for (Drop drop : drops) {
+                    SerialTransport.DataListener listener = drop.listener;
+                    if (drop.open && listener != null)
+                        listener.dataReceived(buffer, length);
+                }
+            }
+        });
+    }
+
+    /// <summary>
+    /// The shared port itself.
+    /// </summary>
+    SerialTransport getPort() {
+        return port;
+    }
+
+    /// <summary>
+    /// Transport for the engine with the given address; it is not opened yet.
+    /// </summary>
+    SerialTransport attach(byte address) {
+        for (Drop drop : drops) {
+            if (drop.address == address)
+                throw new IllegalStateException(port.getName() + " already has an engine with address " + (address & 0xFF));
+        }
+        Drop drop = new Drop(address);
+        drops.add(drop);
+        return drop;
+    }
+
+    /// <summary>
+    /// Removes the transport of attach(); closes the port with the last open one.
+    /// </summary>
+    void detach(SerialTransport transport) {
+        transport.close();
+        drops.remove(transport);
+    }
+
+    /// <summary>
+    /// true when no engine is attached anymore.
+    /// </summary>
+    boolean isUnused() {
+        return drops.isEmpty();
+    }
+
+    /// <summary>
+    /// View of the port for one address.
+    /// </summary>
+    private final class Drop implements SerialTransport {
+        final byte address;
+        volatile boolean open = false;
+        volatile SerialTransport.DataListener listener;
+
+        Drop(byte address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getName() {
+            return port.getName() + "@" + (address & 0xFF);
+        }
+
+        @Override
+        public boolean open() {
+            synchronized (EversysSharedPort.this) {
+                if (!port.isOpen() && !port.open())
+                    return false;
+                open = true;
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && port.isOpen();
+        }
+
+        @Override
+        public void close() {
+            synchronized (EversysSharedPort.this) {
+                if (!open)
+                    return;
+                open = false;
+                for (Drop drop : drops) {
+                    if (drop.open)
+                        return;
+                }
+                port.close();
+            }
+        }
+
+        /// <summary>
+        /// Sets the baudrate of the port; all engines on it use the same.
+        /// </summary>
+        @Override
+        public void setBaudRate(int baudRate) {
+            port.setBaudRate(baudRate);
+        }
+
+        @Override
+        public int write(byte[] buffer, int length) {
+            if (!open)
+                return -1;
+            synchronized (port) {
+                return port.write(buffer, length);
+            }
+        }
+
+        @Override
+        public void setDataListener(SerialTransport.DataListener listener) {
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Polls the telemetry requests (GetStatus_e, GetRequests_e, GetInfoMessages_e, GetSensorValues_e)
+/// of one EversysManager, each on its own schedule:
+///  - a poll is skipped when the previous poll of the same request is still in flight,
+///  - after IDLE_POLLS unchanged answers in a row the interval is doubled per unchanged answer, up to
+///    MAX_BACKOFF times the base interval; the first changed answer restores the base interval,
+///  - while a product is made (DoProduct_e or DoProductOfDisplay_e sent within the active hold time)
+///    all requests are polled ACTIVE_SPEEDUP times faster than their base interval.
+/// The TelemetryListener is only called when the payload of an answer differs from the previous one.
+/// </summary>
+public class EversysTelemetryPoller {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysTelemetryPoller.class);
+
+    /// <summary>
+    /// Receives the telemetry answers which changed.
+    /// </summary>
+    public interface TelemetryListener {
+        /// <summary>
+        /// Called on the callback thread of the engine.
+        /// </summary>
+        /// <param name="command">polled request</param>
+        /// <param name="payload">data of the response; a copy which the listener may keep</param>
+        void telemetryChanged(Command_t command, byte[] payload);
+    }
+
+    /// <summary>
+    /// Unchanged answers in a row before the interval is increased.
+    /// </summary>
+    static final int IDLE_POLLS = 5;
+
+    /// <summary>
+    /// Maximal interval as multiple of the base interval.
+    /// </summary>
+    static final int MAX_BACKOFF = 8;
+
+    /// <summary>
+    /// Interval divisor while a product is made.
+    /// </summary>
+    static final int ACTIVE_SPEEDUP = 4;
+
+    /// <summary>
+    /// Shortest interval in ms, also while a product is made.
+    /// </summary>
+    static final long MIN_INTERVAL = 20;
+
+    private final EversysManager manager;
+    private final ScheduledExecutorService timer;
+    private final Map<Command_t, Poll> polls = new EnumMap<Command_t, Poll>(Command_t.class);
+
+    private volatile TelemetryListener listener = null;
+    private volatile boolean running = false;
+
+    /// <summary>
+    /// Polls run faster until this System.nanoTime().
+    /// </summary>
+    private volatile long activeUntil = 0;
+    private volatile long activeHold = TimeUnit.SECONDS.toNanos(30);
+
+    EversysTelemetryPoller(EversysManager manager, ScheduledExecutorService timer) {
+        this.manager = manager;
+        this.timer = timer;
+        polls.put(Command_t.GetStatus_e, new Poll(Command_t.GetStatus_e, 200));
+        polls.put(Command_t.GetRequests_e, new Poll(Command_t.GetRequests_e, 500));
+        polls.put(Command_t.GetInfoMessages_e, new Poll(Command_t.GetInfoMessages_e, 1000));
+        polls.put(Command_t.GetSensorValues_e, new Poll(Command_t.GetSensorValues_e, 1000));
+    }
+
+    public void setListener(TelemetryListener listener) {
+        this.listener = listener;
+    }
+
+    /// <summary>
+    /// Sets the base interval of a telemetry request. 0 disables the request.
+    /// </summary>
+    public void setInterval(Command_t command, long interval, TimeUnit unit) {
+        Poll poll = getPoll(command);
+        synchronized (poll) {
+            poll.baseInterval = unit.toMillis(interval);
+            poll.delay = poll.baseInterval;
+            poll.unchanged = 0;
+        }
+        if (running)
+            poll.reschedule(0);
+    }
+
+    public long getInterval(Command_t command) {
+        return getPoll(command).baseInterval;
+    }
+
+    /// <summary>
+    /// Interval which is used for the next poll, after backoff or speedup.
+    /// </summary>
+    public long getCurrentInterval(Command_t command) {
+        return getPoll(command).currentInterval();
+    }
+
+    /// <summary>
+    /// How long the polls stay fast after a product was started.
+    /// </summary>
+    public void setActiveHold(Duration hold) {
+        activeHold = hold.toNanos();
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        for (Poll poll : polls.values())
+            poll.reschedule(0);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        for (Poll poll : polls.values())
+            poll.cancel();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /// <summary>
+    /// Called by EversysManager when a product is started: the polls speed up immediately.
+    /// </summary>
+    void productStarted() {
+        boolean wasActive = isActive();
+        activeUntil = System.nanoTime() + activeHold;
+        if (!wasActive && running) {
+            for (Poll poll : polls.values())
+                poll.reschedule(0);
+        }
+    }
+
+    public boolean isActive() {
+        return System.nanoTime() - activeUntil < 0;
+    }
+
+    /// <summary>
+    /// Latest answer of the request, or null if there was none yet.
+    /// </summary>
+    public byte[] getSnapshot(Command_t command) {
+        Poll poll = getPoll(command);
+        synchronized (poll) {
+            return poll.payload == null ? null : poll.payload.clone();
+        }
+    }
+
+    //#region statistics
+    public long getPollCount(Command_t command) { return getPoll(command).sent.get(); }
+    public long getSkippedCount(Command_t command) { return getPoll(command).skipped.get(); }
+    public long getFailedCount(Command_t command) { return getPoll(command).failed.get(); }
+    public long getPublishedCount(Command_t command) { return getPoll(command).published.get(); }
+    //#endregion
+
+    private Poll getPoll(Command_t command) {
+        Poll poll = polls.get(command);
+        if (poll == null)
+            throw new IllegalArgumentException("not a telemetry request: " + command);
+        return poll;
+    }
+
+    /// <summary>
+    /// Schedule and last answer of one telemetry request.
+    /// </summary>
+    private final class Poll implements Runnable, BiConsumer<Packet_t, Throwable> {
+        final Command_t command;
+        final AtomicBoolean inFlight = new AtomicBoolean(false);
+
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong published = new AtomicLong();
+
+        // guarded by this
+        long baseInterval;
+        long delay;
+        int unchanged = 0;
+        byte[] payload = null;
+        ScheduledFuture<?> next = null;
+
+        Poll(Command_t command, long baseInterval) {
+            this.command = command;
+            this.baseInterval = baseInterval;
+            this.delay = baseInterval;
+        }
+
+        synchronized long currentInterval() {
+            if (baseInterval == 0)
+                return 0;
+            if (isActive())
+                return Math.max(MIN_INTERVAL, baseInterval / ACTIVE_SPEEDUP);
+            return delay;
+        }
+
+        synchronized void reschedule(long delayMillis) {
+            cancel();
+            if (running && baseInterval > 0)
+                next = timer.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+        }
+
+        /// <summary>
+        /// Timer tick: sends the request unless the previous one is still in flight, and schedules the next tick.
+        /// </summary>
+        @Override
+        public void run() {
+            if (!running)
+                return;
+            reschedule(currentInterval());
+
+            if (!inFlight.compareAndSet(false, true)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            sent.incrementAndGet();
+            try {
+                CompletableFuture<Packet_t> future = manager.request(command, (short) 0, null);
+                future.whenComplete(this);
+            } catch (RuntimeException e) {
+                inFlight.set(false);
+                failed.incrementAndGet();
+                logger.error("cannot poll " + command + " : " + e.toString());
+            }
+        }
+
+        /// <summary>
+        /// Answer or failure of the request.
+        /// </summary>
+        @Override
+        public void accept(Packet_t response, Throwable error) {
+            inFlight.set(false);
+            if (error != null) {
+                failed.incrementAndGet();
+                return;
+            }
+
+            byte[] changed = null;
+            boolean backedOff = false;
+            synchronized (this) {
+                int length = Math.min(response.dataLength, response.data == null ? 0 : response.data.length);
+                if (payload != null && payload.length == length && equals(payload, response.data, length)) {
+                    if (++unchanged >= IDLE_POLLS)
+                        delay = Math.min(delay * 2, baseInterval * MAX_BACKOFF);
+                } else {
+                    payload = Arrays.copyOf(response.data == null ? new byte[0] : response.data, length);
+                    changed = payload.clone();
+                    unchanged = 0;
+                    backedOff = delay > baseInterval;
+                    delay = baseInterval;
+                }
+            }
+            if (backedOff)
+                reschedule(currentInterval());     // don't wait for the long tick
+
+            TelemetryListener l = listener;
+            if (changed != null && l != null) {
+                published.incrementAndGet();
+                try {
+                    l.telemetryChanged(command, changed);
+                } catch (RuntimeException e) {
+                    logger.error("telemetry listener failed on " + command + " : " + e.toString());
+                }
+            }
+        }
+
+        private boolean equals(byte[] previous, byte[] data, int length) {
+            for (int i = 0; i < length; i++) {
+                if (previous[i] != data[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+/// <summary>
+/// Gets the written telegrams in the send buffer itself; set with EversysSerialComm.setFrameSentListener().
+/// The telegrams are only copied when the callbacks are delivered on an executor.
+/// A PacketEventListener given to EversysSerialComm.setListener() which implements this interface
+/// doesn't get dataSentIntercept(), which needs a copy of every telegram.
+/// </summary>
+public interface FrameSentListener {
+
+    /// <summary>
+    /// Called when a telegram is put into the write buffer of the port; it is written together with
+    /// the other telegrams of the same write coalescing window. The buffer is reused after the call,
+    /// copy the bytes to keep them.
+    /// </summary>
+    /// <param name="frame">telegram with SOH, shifted characters and EOT, starting at index 0</param>
+    /// <param name="length">number of valid bytes in frame</param>
+    public void frameSent(byte[] frame, int length);
+}
@@ -0,0 +1,18 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+
+/// <summary>
+/// Optional extension of a PacketEventListener. If the listener given to
+/// EversysSerialComm.setListener() also implements this interface it is informed
+/// about received bytes which could not be assembled into a telegram.
+/// </summary>
+public interface FramingErrorListener {
+
+    /// <summary>
+    /// Called on the receiving thread.
+    /// </summary>
+    /// <param name="error">reason why the bytes were discarded</param>
+    /// <param name="discardedBytes">number of discarded bytes</param>
+    public void framingError(FramingError_t error, int discardedBytes);
+}
@@ -0,0 +1,179 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+/// <summary>
+/// SerialTransport for a COM port, based on jSerialComm. Default transport of EversysSerialComm.
+/// </summary>
+public class JSerialCommTransport implements SerialTransport {
+
+	private static final int DEFAULT_COMM_READ_TIMEOUT = 5000;
+	private static final int DEFAULT_COMM_WRITE_TIMEOUT = 5000;
+
+	/// <summary>
+	/// Enumerated ports; shared by all instances so that one instance doesn't replace the port of another one.
+	/// </summary>
+	private static Map<String, SerialPort> comPorts = new ConcurrentHashMap<>();
+
+	private static Object _lock = new Object();
+
+	/// <summary>
+	/// Creates the transports for EversysSerialComm by the system port name.
+	/// </summary>
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public SerialTransport create(String name) throws DeviceInitializeException {
+			return forPort(name);
+		}
+	};
+
+	private final SerialPort port;
+	private volatile DataListener listener = null;
+
+	/// <summary>
+	/// Buffer for the serialEvent. It is reused for every read.
+	/// </summary>
+	private final byte[] readBuffer = new byte[1024];
+
+	public JSerialCommTransport(SerialPort port) {
+		if (port == null)
+			throw new IllegalArgumentException("port must not be null");
+		this.port = port;
+	}
+
+	/// <summary>
+	/// Enumerates the ports and returns the transport for the port.
+	/// </summary>
+	/// <param name="name">system port name e.g. COM1</param>
+	public static JSerialCommTransport forPort(String name) throws DeviceInitializeException {
+		initialize();
+		SerialPort port = getSerialPort(name);
+		if (port == null)
+			throw new DeviceInitializeException("serial port not found : " + name);
+		return new JSerialCommTransport(port);
+	}
+
+	/**
+	 * @throws DeviceInitializeException
+	 */
+	private static void initialize() throws DeviceInitializeException {
+
+		synchronized(_lock) {
+
+			SerialPort[] serialPorts = SerialPort.getCommPorts();
+
+			if(serialPorts == null || serialPorts.length == 0) {
+				throw new DeviceInitializeException("error occurred during serial device initialization");
+			}
+
+			for(SerialPort serialPort : serialPorts) {
+				SerialPort known = comPorts.get(serialPort.getSystemPortName());
+				if(known != null && known.isOpen()) {
+					// in use by this or another instance
+					continue;
+				}
+
+				if(serialPort.isOpen()) {
+					serialPort.closePort();
+				}
+
+				comPorts.put(serialPort.getSystemPortName(), serialPort);
+			}
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return SerialPort
+	 */
+	public static SerialPort getSerialPort(String name) {
+		synchronized(_lock) {
+			return comPorts.get(name);
+		}
+	}
+
+	public SerialPort getSerialPort() {
+		return port;
+	}
+
+	@Override
+	public String getName() {
+		return port.getSystemPortName();
+	}
+
+	/// <summary>
+	/// Opens the port with blocking read/write timeouts; 8N1 is the default setting.
+	/// </summary>
+	@Override
+	public boolean open() {
+		if (!port.isOpen()) {
+			if (!port.openPort())
+				return false;
+			port.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING,
+					DEFAULT_COMM_READ_TIMEOUT, DEFAULT_COMM_WRITE_TIMEOUT);
+			if (listener != null)
+				addDataListener();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return port.isOpen();
+	}
+
+	@Override
+	public void close() {
+		port.removeDataListener();
+		port.closePort();
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) {
+		port.setBaudRate(baudRate);
+	}
+
+	@Override
+	public int write(byte[] buffer, int length) {
+		return port.writeBytes(buffer, length, 0);
+	}
+
+	@Override
+	public void setDataListener(DataListener listener) {
+		this.listener = listener;
+		port.removeDataListener();
+		if (listener != null && port.isOpen())
+			addDataListener();
+	}
+
+	private void addDataListener() {
+		port.addDataListener(new SerialPortDataListener() {
+
+			@Override
+			public int getListeningEvents() {
+				return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+			}
+
+			@Override
+			public void serialEvent(SerialPortEvent event) {
+				if (event.getEventType() != SerialPort.LISTENING_EVENT_DATA_AVAILABLE)
+					return;
+				DataListener l = listener;
+				int bytesAvailable;
+				while ((bytesAvailable = port.bytesAvailable()) > 0) {
+					int bytesRead = port.readBytes(readBuffer, Math.min(bytesAvailable, readBuffer.length));
+					if (bytesRead <= 0)
+						break;
+					if (l != null)
+						l.dataReceived(readBuffer, bytesRead);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,106 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// <summary>
+/// Latency histogram with log-linear buckets (like HdrHistogram): every power of two is split into
+/// 32 buckets, so a value is stored with a relative error below 3.2%. Fixed memory (about 9 KB),
+/// no allocation when recording. Values in nanoseconds up to about 18 minutes; larger values are
+/// counted in the last bucket.
+/// record() may be called from several threads; the reads are not an atomic snapshot.
+/// </summary>
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;   // 32
+    private static final int MAX_EXPONENT = 40;                     // 2^40 ns
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(3);     // count, sum, max
+
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int MAX = 2;
+
+    /// <summary>
+    /// Adds a value.
+    /// </summary>
+    /// <param name="value">latency in ns, negative values are counted as 0</param>
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        totals.incrementAndGet(COUNT);
+        totals.addAndGet(SUM, value);
+
+        long max;
+        while (value > (max = totals.get(MAX)) && !totals.compareAndSet(MAX, max, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return totals.get(COUNT);
+    }
+
+    public long getMax() {
+        return totals.get(MAX);
+    }
+
+    public double getMean() {
+        long count = totals.get(COUNT);
+        return count == 0 ? 0 : (double) totals.get(SUM) / count;
+    }
+
+    /// <summary>
+    /// Value below which the given part of the values lies.
+    /// </summary>
+    /// <param name="percentile">0 .. 100, e.g. 99.9</param>
+    /// <returns>upper bound of the bucket in ns, 0 when empty</returns>
+    public long getValueAtPercentile(double percentile) {
+        long count = totals.get(COUNT);
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /// <summary>
+    /// Clears all values.
+    /// </summary>
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        for (int i = 0; i < 3; i++)
+            totals.set(i, 0);
+    }
+
+    private static int index(long value) {
+        if (value > MAX_VALUE)
+            value = MAX_VALUE;
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,162 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/// <summary>
+/// In-memory SerialTransport. createPair() returns two connected ends, like a null modem cable:
+/// the bytes written to one end are received by the other one. Used for tests and load tests
+/// without COM ports, e.g. EversysSerialComm on one end and a machine simulator on the other.
+/// There is no baudrate; the bytes are transferred as fast as the receiving thread takes them.
+/// </summary>
+public class LoopbackTransport extends StreamTransport {
+
+    /// <summary>
+    /// Bytes which can be buffered per direction before write() blocks.
+    /// </summary>
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /// <summary>
+    /// Receive buffer of this end.
+    /// </summary>
+    private final BytePipe incoming = new BytePipe(PIPE_CAPACITY);
+    private LoopbackTransport peer;
+
+    private LoopbackTransport(String name) {
+        super(name);
+    }
+
+    /// <summary>
+    /// Creates two connected ends.
+    /// </summary>
+    /// <param name="name">name of the first end</param>
+    /// <param name="peerName">name of the second end</param>
+    /// <returns>both ends, not opened yet</returns>
+    public static LoopbackTransport[] createPair(String name, String peerName) {
+        LoopbackTransport a = new LoopbackTransport(name);
+        LoopbackTransport b = new LoopbackTransport(peerName);
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackTransport[] { a, b };
+    }
+
+    /// <summary>
+    /// The other end.
+    /// </summary>
+    public LoopbackTransport getPeer() {
+        return peer;
+    }
+
+    @Override
+    protected void connect() throws IOException {
+        incoming.openReader();
+        final BytePipe outgoing = peer.incoming;
+        setStreams(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return incoming.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return incoming.read(b, off, len);
+            }
+        }, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                outgoing.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                outgoing.write(b, off, len);
+            }
+        });
+    }
+
+    @Override
+    protected void disconnect() {
+        incoming.closeReader();
+    }
+
+    /// <summary>
+    /// Ring buffer for one direction. Bytes written while the reading end is closed are lost,
+    /// like on a serial line without a listener.
+    /// </summary>
+    private static final class BytePipe {
+        private final byte[] buffer;
+        private int head = 0;   // next byte to read
+        private int count = 0;
+        private boolean readerOpen = false;
+
+        BytePipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized void openReader() {
+            head = 0;
+            count = 0;
+            readerOpen = true;
+        }
+
+        synchronized void closeReader() {
+            readerOpen = false;
+            count = 0;
+            notifyAll();
+        }
+
+        /// <summary>
+        /// Blocks until at least one byte is available.
+        /// </summary>
+        /// <returns>number of bytes read, -1 when the reading end was closed</returns>
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            try {
+                while (count == 0 && readerOpen)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            if (!readerOpen)
+                return -1;
+
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        /// <summary>
+        /// Blocks while the buffer is full.
+        /// </summary>
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!readerOpen)
+                    return;     // nobody listens
+                if (count == buffer.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                    continue;
+                }
+
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+    }
+}
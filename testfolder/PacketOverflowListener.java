@@ -0,0 +1,19 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Queue_t;
+
+/// <summary>
+/// Optional extension of a PacketEventListener. If the listener given to
+/// EversysSerialComm.setListener() also implements this interface it is informed
+/// about packets which were dropped or rejected because a queue was full.
+/// </summary>
+public interface PacketOverflowListener {
+
+    /// <summary>
+    /// Called on the thread which tried to add the packet.
+    /// </summary>
+    /// <param name="queue">queue which was full</param>
+    /// <param name="packet">Packet_t or RawPacket_t which was not processed</param>
+    /// <param name="rejected">true = the new packet was refused, false = the oldest packet was dropped</param>
+    public void packetDropped(Queue_t queue, Object packet, boolean rejected);
+}
@@ -0,0 +1,18 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Optional extension of a PacketEventListener. If the listener given to
+/// EversysSerialComm.setListener() also implements this interface it gets every
+/// response together with the request it answers.
+/// </summary>
+public interface ResponseListener {
+
+    /// <summary>
+    /// Called before packetReceived() for the same response.
+    /// </summary>
+    /// <param name="request">request which was sent by this device</param>
+    /// <param name="response">received response with the same sequence number</param>
+    public void responseReceived(Packet_t request, Packet_t response);
+}
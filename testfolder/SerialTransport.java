@@ -0,0 +1,71 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
+
+/// <summary>
+/// Byte stream between EversysSerialComm and a machine. The protocol engine only uses this interface;
+/// implementations: JSerialCommTransport (COM port), NativeSerialTransport (Linux tty through libc, in ffm/),
+/// LoopbackTransport (in-memory pipe pair) and TcpTransport (serial to TCP bridge such as ser2net).
+/// </summary>
+public interface SerialTransport {
+
+    /// <summary>
+    /// Receives the bytes read from the transport.
+    /// </summary>
+    public interface DataListener {
+        /// <summary>
+        /// Called on the receiving thread of the transport, never on two threads at the same time.
+        /// The buffer is reused after the call.
+        /// </summary>
+        /// <param name="buffer">received bytes starting at index 0</param>
+        /// <param name="length">number of valid bytes</param>
+        public void dataReceived(byte[] buffer, int length);
+    }
+
+    /// <summary>
+    /// Creates transports by name. Used by EversysSerialComm.SerialComm() and ChangePort().
+    /// </summary>
+    public interface Factory {
+        /// <summary>
+        /// Creates the transport; it is not opened yet.
+        /// </summary>
+        /// <param name="name">port name e.g. COM1, meaning depends on the factory</param>
+        public SerialTransport create(String name) throws DeviceInitializeException;
+    }
+
+    /// <summary>
+    /// Name of the port, e.g. COM1 or host:port.
+    /// </summary>
+    public String getName();
+
+    /// <summary>
+    /// Opens the transport. Nothing happens if it is already open.
+    /// </summary>
+    /// <returns>true if the transport is open</returns>
+    public boolean open();
+
+    public boolean isOpen();
+
+    /// <summary>
+    /// Closes the transport. The data listener stays registered for the next open().
+    /// </summary>
+    public void close();
+
+    /// <summary>
+    /// Sets the baudrate; transports without a baudrate ignore it.
+    /// </summary>
+    public void setBaudRate(int baudRate);
+
+    /// <summary>
+    /// Writes the bytes; blocks until they are handed to the driver.
+    /// </summary>
+    /// <param name="buffer">bytes starting at index 0</param>
+    /// <param name="length">number of bytes to write</param>
+    /// <returns>number of written bytes, -1 on error</returns>
+    public int write(byte[] buffer, int length);
+
+    /// <summary>
+    /// Sets the listener for the received bytes; replaces the previous one. null = no listener.
+    /// </summary>
+    public void setDataListener(DataListener listener);
+}
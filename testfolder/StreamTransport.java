@@ -0,0 +1,145 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/// <summary>
+/// Base class for SerialTransports which are a pair of streams (socket, in-memory pipe).
+/// A daemon thread reads the input stream and hands the bytes to the DataListener.
+/// </summary>
+public abstract class StreamTransport implements SerialTransport {
+
+    private static Logger logger = LoggerFactory.getLogger(StreamTransport.class);
+
+    private final String name;
+    private volatile DataListener listener = null;
+    private volatile boolean opened = false;
+    private InputStream in;
+    private OutputStream out;
+    private Thread reader;
+
+    protected StreamTransport(String name) {
+        this.name = name;
+    }
+
+    /// <summary>
+    /// Connects the underlying resource and calls setStreams().
+    /// </summary>
+    protected abstract void connect() throws IOException;
+
+    /// <summary>
+    /// Closes the underlying resource. A blocked read of the input stream must return afterwards.
+    /// </summary>
+    protected abstract void disconnect();
+
+    /// <summary>
+    /// Called by connect().
+    /// </summary>
+    protected void setStreams(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        if (opened)
+            return true;
+
+        try {
+            connect();
+        } catch (IOException e) {
+            logger.error("cannot open " + name + " : " + e.toString());
+            return false;
+        }
+        opened = true;
+
+        final InputStream input = in;
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(input);
+            }
+        }, "eversys-rx-" + name);
+        reader.setDaemon(true);
+        reader.setPriority(Thread.MAX_PRIORITY);
+        reader.start();
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return opened;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!opened)
+            return;
+        opened = false;
+        disconnect();
+        reader = null;
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) {
+        // the baudrate is configured at the other end of the stream
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        OutputStream output = out;
+        if (!opened || output == null)
+            return -1;
+        try {
+            output.write(buffer, 0, length);
+            output.flush();
+            return length;
+        } catch (IOException e) {
+            if (opened)
+                logger.error("write to " + name + " failed : " + e.toString());
+            return -1;
+        }
+    }
+
+    @Override
+    public void setDataListener(DataListener listener) {
+        this.listener = listener;
+    }
+
+    private void readLoop(InputStream input) {
+        byte[] buffer = new byte[1024];
+        try {
+            int n;
+            while ((n = input.read(buffer, 0, buffer.length)) >= 0) {
+                DataListener l = listener;
+                if (n > 0 && l != null) {
+                    try {
+                        l.dataReceived(buffer, n);
+                    } catch (RuntimeException e) {
+                        // keep receiving, like the event thread of jSerialComm
+                        logger.error("data listener of " + name + " failed : " + e.toString());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (opened)
+                logger.error("read from " + name + " failed : " + e.toString());
+        }
+
+        synchronized (this) {
+            if (opened && in == input) {
+                logger.error(name + " was closed by the other side");
+                close();
+            }
+        }
+    }
+}
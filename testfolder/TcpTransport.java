@@ -0,0 +1,77 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
+
+/// <summary>
+/// SerialTransport over a TCP connection to a serial to TCP bridge (e.g. ser2net in raw mode).
+/// The baudrate is configured in the bridge. Nagle is switched off; EversysSerialComm already
+/// combines the telegrams of a round into one write.
+/// </summary>
+public class TcpTransport extends StreamTransport {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
+    /// <summary>
+    /// Creates the transports for EversysSerialComm from names like "localhost:3001".
+    /// </summary>
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public SerialTransport create(String name) throws DeviceInitializeException {
+            int colon = name.lastIndexOf(':');
+            if (colon <= 0)
+                throw new DeviceInitializeException("expected host:port : " + name);
+            try {
+                return new TcpTransport(name.substring(0, colon), Integer.parseInt(name.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                throw new DeviceInitializeException("expected host:port : " + name);
+            }
+        }
+    };
+
+    private final String host;
+    private final int port;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private Socket socket;
+
+    public TcpTransport(String host, int port) {
+        super(host + ":" + port);
+        this.host = host;
+        this.port = port;
+    }
+
+    /// <summary>
+    /// Timeout in ms for open().
+    /// </summary>
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    protected void connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), connectTimeout);
+            setStreams(s.getInputStream(), s.getOutputStream());
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+    }
+
+    @Override
+    protected void disconnect() {
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        socket = null;
+    }
+}
@@ -0,0 +1,48 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+/// <summary>
+/// EversysLoadGenerator over a pseudo-terminal instead of LoopbackTransport: the machine simulator runs on
+/// the master end (NativeSerialTransport), the engine on the terminal end through the selected backend.
+/// Run it once per backend and compare the latency percentiles; the pty adds the same kernel path to both.
+/// Linux only, Java 22 or newer (or Java 21 with --enable-preview) and --enable-native-access=ALL-UNNAMED;
+/// in the source folder ffm/ like NativeSerialTransport, compiled together with tools/.
+///
+/// Arguments: the ones of EversysLoadGenerator and
+///   backend=native (NativeSerialTransport, termios + epoll) or backend=jserialcomm (JSerialCommTransport)
+/// </summary>
+public class EversysPtyLoadGenerator extends EversysLoadGenerator {
+
+    /// <summary>
+    /// Terminal end; kept open for the jSerialComm backend, so the master end doesn't see a hang up.
+    /// </summary>
+    private NativeSerialTransport terminal;
+
+    private EversysPtyLoadGenerator(String[] args) {
+        super(args);
+    }
+
+    public static void main(String[] args) throws Exception {
+        EversysPtyLoadGenerator generator = new EversysPtyLoadGenerator(args);
+        try {
+            generator.run();
+        } finally {
+            if (generator.terminal != null)
+                generator.terminal.close();
+        }
+    }
+
+    @Override
+    protected SerialTransport[] createTransports() throws Exception {
+        NativeSerialTransport[] pty = NativeSerialTransport.createPtyPair();
+        String backend = option("backend", "native");
+        if ("native".equals(backend))
+            return pty;
+        if (!"jserialcomm".equals(backend))
+            throw new IllegalArgumentException("backend must be native or jserialcomm : " + backend);
+
+        terminal = pty[0];
+        return new SerialTransport[] { new JSerialCommTransport(SerialPort.getCommPort(terminal.getName())), pty[1] };
+    }
+}
@@ -0,0 +1,796 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.exception.DeviceInitializeException;
+
+/// <summary>
+/// SerialTransport for a Linux tty (e.g. /dev/ttyUSB0) which calls libc directly through java.lang.foreign
+/// (Java 22 or newer, or Java 21 with --enable-preview; run with --enable-native-access=ALL-UNNAMED to avoid
+/// the restricted method warning). It is kept in the separate source folder ffm/ with EversysPtyLoadGenerator,
+/// which is only compiled on such a JDK; the rest of the package builds with Java 8. Only the part of the API
+/// which is the same in Java 21 and 22 is used (no getString(), allocateFrom() or layout VarHandles).
+///
+/// open() opens the device non-blocking and configures it raw 8N1 with termios: no echo, no line editing,
+/// no character translation, no flow control, VMIN = 1 and VTIME = 0. A daemon thread waits on epoll and
+/// reads straight into an off-heap buffer: one epoll_wait() and one read() per event, against
+/// bytesAvailable() + readBytes() of jSerialComm. The bytes are copied into a reused array for the
+/// DataListener; nothing is allocated per event. close() wakes the thread through an eventfd.
+///
+/// createPtyPair() returns both ends of a pseudo-terminal, so the transport can be tested end to end on any
+/// Linux box: EversysSerialComm on the terminal end, EversysMachineSimulator on the master end
+/// (see EversysPtyLoadGenerator, which also runs jSerialComm on the same terminal for comparison).
+///
+/// Linux on x86_64 and aarch64 only (struct layouts and constants below); see isSupported().
+/// </summary>
+public class NativeSerialTransport implements SerialTransport {
+
+    private static Logger logger = LoggerFactory.getLogger(NativeSerialTransport.class);
+
+    /// <summary>
+    /// Creates the transports for EversysSerialComm by the device path, e.g. /dev/ttyUSB0.
+    /// </summary>
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public SerialTransport create(String name) throws DeviceInitializeException {
+            if (!isSupported())
+                throw new DeviceInitializeException("native serial transport is not supported on " + System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+            return new NativeSerialTransport(name);
+        }
+    };
+
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final int DEFAULT_WRITE_TIMEOUT = 5000;     // ms
+
+    //#region libc constants, Linux x86_64 / aarch64
+    private static final int O_RDWR = 02;
+    private static final int O_NOCTTY = 0400;
+    private static final int O_NONBLOCK = 04000;
+    private static final int O_CLOEXEC = 02000000;
+    private static final int F_SETFD = 2;
+    private static final int F_GETFL = 3;
+    private static final int F_SETFL = 4;
+    private static final int FD_CLOEXEC = 1;
+
+    private static final int EINTR = 4;
+    private static final int EIO = 5;
+    private static final int EAGAIN = 11;
+
+    /// <summary>
+    /// struct termios of glibc: c_iflag, c_oflag, c_cflag, c_lflag, c_line, c_cc[32], c_ispeed, c_ospeed
+    /// </summary>
+    private static final long TERMIOS_SIZE = 60;
+    private static final long C_CFLAG = 8;
+    private static final long C_CC = 17;
+    private static final int VTIME = 5;
+    private static final int VMIN = 6;
+    private static final int CSIZE = 060;
+    private static final int CS8 = 060;
+    private static final int CSTOPB = 0100;
+    private static final int CREAD = 0200;
+    private static final int PARENB = 0400;
+    private static final int CLOCAL = 04000;
+    private static final int CRTSCTS = 020000000000;
+    private static final int TCSANOW = 0;
+    private static final int TCIOFLUSH = 2;
+
+    private static final int EPOLL_CLOEXEC = 02000000;
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLLIN = 0x001;
+    private static final int EPOLLERR = 0x008;
+    private static final int EPOLLHUP = 0x010;
+    private static final int EFD_CLOEXEC = 02000000;
+    private static final int EFD_NONBLOCK = 04000;
+    private static final short POLLOUT = 0x004;
+
+    /// <summary>
+    /// struct epoll_event is packed on x86_64 (events, data at 4), naturally aligned elsewhere (data at 8).
+    /// </summary>
+    private static final boolean EPOLL_PACKED = "amd64".equals(System.getProperty("os.arch")) || "x86_64".equals(System.getProperty("os.arch"));
+    private static final long EPOLL_EVENT_SIZE = EPOLL_PACKED ? 12 : 16;
+    private static final long EPOLL_DATA_OFFSET = EPOLL_PACKED ? 4 : 8;
+    //#endregion
+
+    /// <summary>
+    /// epoll_event.data of the two registered descriptors.
+    /// </summary>
+    private static final long TOKEN_PORT = 0;
+    private static final long TOKEN_WAKE = 1;
+
+    private final String name;
+    /// <summary>
+    /// Device which open() opens; null for the descriptors of createPtyPair(), which are owned from the
+    /// start and can't be opened again after close().
+    /// </summary>
+    private final String path;
+    /// <summary>
+    /// Configure the descriptor with termios in open(); false for the master end of a pseudo-terminal.
+    /// </summary>
+    private final boolean terminal;
+
+    private volatile DataListener listener = null;
+    private volatile boolean opened = false;
+    private volatile int baudRate = 0;
+    private int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+
+    /// <summary>
+    /// Guards the descriptors and the arena against release() while write() uses them.
+    /// </summary>
+    private final Object writeLock = new Object();
+
+    private int fd;
+    private int epollFd = -1;
+    private int wakeFd = -1;
+    private Arena arena;
+    private MemorySegment writeBuffer;
+    private MemorySegment writeState;
+    private MemorySegment pollFd;
+    private Thread reader;
+
+    /// <summary>
+    /// Creates the transport for a device; it is not opened yet.
+    /// </summary>
+    /// <param name="path">tty device e.g. /dev/ttyUSB0 or /dev/ttyS0</param>
+    public NativeSerialTransport(String path) {
+        this(path, path, -1, true);
+    }
+
+    private NativeSerialTransport(String name, String path, int fd, boolean terminal) {
+        this.name = name;
+        this.path = path;
+        this.fd = fd;
+        this.terminal = terminal;
+    }
+
+    /// <summary>
+    /// true on Linux x86_64 and aarch64 if the libc functions can be linked.
+    /// </summary>
+    public static boolean isSupported() {
+        String arch = System.getProperty("os.arch");
+        if (!System.getProperty("os.name").startsWith("Linux") || !(EPOLL_PACKED || "aarch64".equals(arch)))
+            return false;
+        try {
+            return LibC.READ != null;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /// <summary>
+    /// Opens a pseudo-terminal (openpty) and returns both ends, like a null modem cable: the bytes written to
+    /// one end are received by the other one. Both descriptors are owned by the transports: close() closes
+    /// them, and they can't be opened again. The terminal end is configured raw in open() like a real port;
+    /// its name is the device path (e.g. /dev/pts/3), so other serial libraries can open it as well.
+    /// </summary>
+    /// <returns>{ terminal end, master end }, not opened yet</returns>
+    public static NativeSerialTransport[] createPtyPair() throws IOException {
+        try (Arena a = Arena.ofConfined()) {
+            MemorySegment state = a.allocate(LibC.CALL_STATE);
+            MemorySegment fds = a.allocate(8, 4);     // int[2]
+            if (LibC.openpty(state, fds, fds.asSlice(4)) != 0)
+                throw new IOException("openpty failed : " + LibC.strerror(LibC.errno(state)));
+            int master = fds.get(JAVA_INT, 0);
+            int slave = fds.get(JAVA_INT, 4);
+
+            MemorySegment buffer = a.allocate(256);
+            int error = LibC.ttyname(slave, buffer, buffer.byteSize());
+            if (error != 0) {
+                LibC.close(state, master);
+                LibC.close(state, slave);
+                throw new IOException("ttyname failed : " + LibC.strerror(error));
+            }
+            String slaveName = LibC.string(buffer);
+            return new NativeSerialTransport[] {
+                    new NativeSerialTransport(slaveName, null, slave, true),
+                    new NativeSerialTransport(slaveName + "-master", null, master, false) };
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /// <summary>
+    /// Timeout in ms of write() while the output buffer of the driver is full.
+    /// </summary>
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        if (opened)
+            return true;
+        if (reader != null) {
+            // the previous reader releases the descriptors when it ends
+            joinReader(reader);
+            reader = null;
+        }
+
+        try {
+            acquire();
+        } catch (IOException e) {
+            logger.error("cannot open " + name + " : " + e.getMessage());
+            release();
+            return false;
+        }
+        opened = true;
+
+        final int port = fd;
+        final int epoll = epollFd;
+        final MemorySegment readBuffer = arena.allocate(READ_BUFFER_SIZE);
+        final MemorySegment events = arena.allocate(2 * EPOLL_EVENT_SIZE, 8);
+        final MemorySegment readState = arena.allocate(LibC.CALL_STATE);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readLoop(port, epoll, readBuffer, events, readState);
+                } finally {
+                    // nobody called close() if the port was hung up or failed
+                    if (opened && terminal)
+                        logger.error(name + " was closed by the other side");
+                    else if (opened)
+                        logger.info(name + " : the terminal end was closed");     // master end of a pty
+                    opened = false;
+                    release();
+                }
+            }
+        }, "eversys-rx-" + name);
+        reader.setDaemon(true);
+        reader.setPriority(Thread.MAX_PRIORITY);
+        reader.start();
+        return true;
+    }
+
+    /// <summary>
+    /// Opens and configures the port, creates epoll, eventfd and the buffers.
+    /// </summary>
+    private void acquire() throws IOException {
+        synchronized (writeLock) {
+            arena = Arena.ofShared();
+            MemorySegment state = arena.allocate(LibC.CALL_STATE);
+
+            if (path != null) {
+                fd = LibC.open(state, LibC.string(arena, path), O_RDWR | O_NOCTTY | O_NONBLOCK | O_CLOEXEC);
+                if (fd < 0)
+                    throw new IOException(LibC.strerror(LibC.errno(state)));
+            } else {
+                if (fd < 0)
+                    throw new IOException("closed");
+                int flags = LibC.fcntl(state, fd, F_GETFL, 0);
+                if (flags < 0 || LibC.fcntl(state, fd, F_SETFL, flags | O_NONBLOCK) < 0 || LibC.fcntl(state, fd, F_SETFD, FD_CLOEXEC) < 0)
+                    throw new IOException("fcntl : " + LibC.strerror(LibC.errno(state)));
+            }
+            if (terminal) {
+                configure(state, baudRate);
+                LibC.tcflush(state, fd, TCIOFLUSH);
+            }
+
+            epollFd = LibC.epollCreate(state, EPOLL_CLOEXEC);
+            if (epollFd < 0)
+                throw new IOException("epoll_create1 : " + LibC.strerror(LibC.errno(state)));
+            wakeFd = LibC.eventfd(state, 0, EFD_CLOEXEC | EFD_NONBLOCK);
+            if (wakeFd < 0)
+                throw new IOException("eventfd : " + LibC.strerror(LibC.errno(state)));
+
+            MemorySegment event = arena.allocate(EPOLL_EVENT_SIZE, 8);
+            event.set(JAVA_INT, 0, EPOLLIN);
+            event.set(JAVA_LONG_UNALIGNED, EPOLL_DATA_OFFSET, TOKEN_PORT);
+            if (LibC.epollCtl(state, epollFd, EPOLL_CTL_ADD, fd, event) != 0)
+                throw new IOException("epoll_ctl : " + LibC.strerror(LibC.errno(state)));
+            event.set(JAVA_LONG_UNALIGNED, EPOLL_DATA_OFFSET, TOKEN_WAKE);
+            if (LibC.epollCtl(state, epollFd, EPOLL_CTL_ADD, wakeFd, event) != 0)
+                throw new IOException("epoll_ctl : " + LibC.strerror(LibC.errno(state)));
+
+            writeBuffer = arena.allocate(WRITE_BUFFER_SIZE);
+            writeState = arena.allocate(LibC.CALL_STATE);
+            pollFd = arena.allocate(8, 4);
+        }
+    }
+
+    /// <summary>
+    /// Closes the descriptors and frees the buffers; called by the reader when it ends, or by open() on failure.
+    /// </summary>
+    private void release() {
+        synchronized (writeLock) {
+            try (Arena a = Arena.ofConfined()) {
+                MemorySegment state = a.allocate(LibC.CALL_STATE);
+                if (epollFd >= 0)
+                    LibC.close(state, epollFd);
+                if (wakeFd >= 0)
+                    LibC.close(state, wakeFd);
+                if (fd >= 0)
+                    LibC.close(state, fd);
+            }
+            epollFd = -1;
+            wakeFd = -1;
+            fd = -1;
+            if (arena != null)
+                arena.close();
+            arena = null;
+            writeBuffer = null;
+            writeState = null;
+            pollFd = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return opened;
+    }
+
+    /// <summary>
+    /// Closes the port and waits for the receiving thread, unless it is called by the DataListener.
+    /// </summary>
+    @Override
+    public void close() {
+        Thread r;
+        synchronized (this) {
+            r = reader;
+            if (!opened) {
+                if (r == null && path == null) {
+                    release();     // never opened end of a pseudo-terminal
+                }
+                return;
+            }
+            opened = false;
+            synchronized (writeLock) {
+                if (wakeFd >= 0) {
+                    try (Arena a = Arena.ofConfined()) {
+                        MemorySegment one = a.allocate(JAVA_LONG);
+                        one.set(JAVA_LONG, 0, 1L);
+                        LibC.write(a.allocate(LibC.CALL_STATE), wakeFd, one, 8);
+                    }
+                }
+            }
+        }
+        if (r != null && r != Thread.currentThread())
+            joinReader(r);
+    }
+
+    private static void joinReader(Thread r) {
+        try {
+            r.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /// <summary>
+    /// Sets the baudrate (termios speed); applied at once if the port is open, otherwise by open().
+    /// Pseudo-terminals accept but ignore it.
+    /// </summary>
+    @Override
+    public void setBaudRate(int baudRate) {
+        if (speed(baudRate) < 0) {
+            logger.error("unsupported baudrate for " + name + " : " + baudRate);
+            return;
+        }
+        this.baudRate = baudRate;
+        synchronized (writeLock) {
+            if (opened && terminal && fd >= 0) {
+                try (Arena a = Arena.ofConfined()) {
+                    configure(a.allocate(LibC.CALL_STATE), baudRate);
+                } catch (IOException e) {
+                    logger.error("cannot set the baudrate of " + name + " : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /// <summary>
+    /// Raw 8N1, receiver on, modem control lines ignored, no flow control, VMIN = 1, VTIME = 0.
+    /// </summary>
+    /// <param name="rate">baudrate, 0 = keep the current speed</param>
+    private void configure(MemorySegment state, int rate) throws IOException {
+        try (Arena a = Arena.ofConfined()) {
+            MemorySegment termios = a.allocate(TERMIOS_SIZE, 4);
+            if (LibC.tcgetattr(state, fd, termios) != 0)
+                throw new IOException("tcgetattr : " + LibC.strerror(LibC.errno(state)));
+
+            LibC.cfmakeraw(termios);
+            int cflag = termios.get(JAVA_INT, C_CFLAG);
+            cflag &= ~(CSIZE | CSTOPB | PARENB | CRTSCTS);
+            cflag |= CS8 | CREAD | CLOCAL;
+            termios.set(JAVA_INT, C_CFLAG, cflag);
+            termios.set(JAVA_BYTE, C_CC + VMIN, (byte) 1);
+            termios.set(JAVA_BYTE, C_CC + VTIME, (byte) 0);
+            if (rate > 0 && LibC.cfsetspeed(state, termios, speed(rate)) != 0)
+                throw new IOException("cfsetspeed : " + LibC.strerror(LibC.errno(state)));
+
+            if (LibC.tcsetattr(state, fd, TCSANOW, termios) != 0)
+                throw new IOException("tcsetattr : " + LibC.strerror(LibC.errno(state)));
+        }
+    }
+
+    /// <summary>
+    /// termios speed constant of the baudrate, -1 if there is none.
+    /// </summary>
+    private static int speed(int baudRate) {
+        switch (baudRate) {
+            case 1200:   return 0000011;
+            case 2400:   return 0000013;
+            case 4800:   return 0000014;
+            case 9600:   return 0000015;
+            case 19200:  return 0000016;
+            case 38400:  return 0000017;
+            case 57600:  return 0010001;
+            case 115200: return 0010002;
+            case 230400: return 0010003;
+            case 460800: return 0010004;
+            case 921600: return 0010007;
+            default:     return -1;
+        }
+    }
+
+    /// <summary>
+    /// Writes the bytes; waits with poll() while the output buffer of the driver is full.
+    /// </summary>
+    @Override
+    public int write(byte[] buffer, int length) {
+        synchronized (writeLock) {
+            if (!opened || fd < 0)
+                return -1;
+
+            int written = 0;
+            while (written < length) {
+                int chunk = Math.min(length - written, WRITE_BUFFER_SIZE);
+                MemorySegment.copy(buffer, written, writeBuffer, JAVA_BYTE, 0, chunk);
+                int sent = 0;
+                while (sent < chunk) {
+                    long n = LibC.write(writeState, fd, writeBuffer.asSlice(sent), chunk - sent);
+                    if (n >= 0) {
+                        sent += (int) n;
+                        continue;
+                    }
+                    int errno = LibC.errno(writeState);
+                    if (errno == EINTR)
+                        continue;
+                    if (errno == EAGAIN && awaitWritable())
+                        continue;
+                    if (opened)
+                        logger.error("write to " + name + " failed : " + (errno == EAGAIN ? "timeout" : LibC.strerror(errno)));
+                    return -1;
+                }
+                written += chunk;
+            }
+            return length;
+        }
+    }
+
+    private boolean awaitWritable() {
+        pollFd.set(JAVA_INT, 0, fd);
+        pollFd.set(JAVA_SHORT, 4, POLLOUT);
+        pollFd.set(JAVA_SHORT, 6, (short) 0);
+        int n;
+        do {
+            n = LibC.poll(writeState, pollFd, 1, writeTimeout);
+        } while (n < 0 && LibC.errno(writeState) == EINTR);
+        return n > 0;
+    }
+
+    @Override
+    public void setDataListener(DataListener listener) {
+        this.listener = listener;
+    }
+
+    private void readLoop(int port, int epoll, MemorySegment buffer, MemorySegment events, MemorySegment state) {
+        byte[] array = new byte[READ_BUFFER_SIZE];
+        while (opened) {
+            int n = LibC.epollWait(state, epoll, events, 2, -1);
+            if (n < 0) {
+                int errno = LibC.errno(state);
+                if (errno == EINTR)
+                    continue;
+                logger.error("epoll_wait on " + name + " failed : " + LibC.strerror(errno));
+                return;
+            }
+
+            for (int i = 0; i < n && opened; i++) {
+                long offset = i * EPOLL_EVENT_SIZE;
+                if (events.get(JAVA_LONG_UNALIGNED, offset + EPOLL_DATA_OFFSET) != TOKEN_PORT)
+                    continue;       // woken by close()
+                int flags = events.get(JAVA_INT, offset);
+                if ((flags & EPOLLIN) != 0) {
+                    if (!readAvailable(port, buffer, array, state))
+                        return;
+                } else if ((flags & (EPOLLHUP | EPOLLERR)) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /// <summary>
+    /// Reads after an EPOLLIN event. A read which doesn't fill the buffer goes back to epoll_wait()
+    /// (level triggered) instead of reading again until EAGAIN.
+    /// </summary>
+    /// <returns>false = end of the stream (hang up) or error</returns>
+    private boolean readAvailable(int port, MemorySegment buffer, byte[] array, MemorySegment state) {
+        while (opened) {
+            long n = LibC.read(state, port, buffer, buffer.byteSize());
+            if (n > 0) {
+                MemorySegment.copy(buffer, JAVA_BYTE, 0, array, 0, (int) n);
+                DataListener l = listener;
+                if (l != null) {
+                    try {
+                        l.dataReceived(array, (int) n);
+                    } catch (RuntimeException e) {
+                        // keep receiving, like the event thread of jSerialComm
+                        logger.error("data listener of " + name + " failed : " + e.toString());
+                    }
+                }
+                if (n < buffer.byteSize())
+                    return true;
+                continue;
+            }
+            if (n == 0)
+                return false;
+            int errno = LibC.errno(state);
+            if (errno == EAGAIN)
+                return true;
+            if (errno == EINTR)
+                continue;
+            if (errno != EIO && opened)     // EIO: the other end of a pseudo-terminal was closed
+                logger.error("read from " + name + " failed : " + LibC.strerror(errno));
+            return false;
+        }
+        return true;
+    }
+
+    /// <summary>
+    /// Downcall handles of the used libc functions. A nested class, so that the transport class can be
+    /// loaded (e.g. for isSupported()) where they can't be linked.
+    /// </summary>
+    private static final class LibC {
+
+        private static final Linker LINKER = Linker.nativeLinker();
+        private static final SymbolLookup LOOKUP = LINKER.defaultLookup();
+        private static final Linker.Option ERRNO = Linker.Option.captureCallState("errno");
+
+        /// <summary>
+        /// errno after the call; the first argument of the handles with ERRNO.
+        /// </summary>
+        static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+        private static final long ERRNO_OFFSET = CALL_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+        private static final MethodHandle OPEN = function("open", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), ERRNO, Linker.Option.firstVariadicArg(2));
+        private static final MethodHandle CLOSE = function("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT), ERRNO);
+        static final MethodHandle READ = function("read", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), ERRNO);
+        private static final MethodHandle WRITE = function("write", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), ERRNO);
+        private static final MethodHandle FCNTL = function("fcntl", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT), ERRNO, Linker.Option.firstVariadicArg(2));
+        private static final MethodHandle POLL = function("poll", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT), ERRNO);
+        private static final MethodHandle TCGETATTR = function("tcgetattr", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS), ERRNO);
+        private static final MethodHandle TCSETATTR = function("tcsetattr", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS), ERRNO);
+        private static final MethodHandle TCFLUSH = function("tcflush", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), ERRNO);
+        private static final MethodHandle CFMAKERAW = function("cfmakeraw", FunctionDescriptor.ofVoid(ADDRESS));
+        private static final MethodHandle CFSETSPEED = function("cfsetspeed", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT), ERRNO);
+        private static final MethodHandle EPOLL_CREATE1 = function("epoll_create1", FunctionDescriptor.of(JAVA_INT, JAVA_INT), ERRNO);
+        private static final MethodHandle EPOLL_CTL = function("epoll_ctl", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS), ERRNO);
+        private static final MethodHandle EPOLL_WAIT = function("epoll_wait", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT), ERRNO);
+        private static final MethodHandle EVENTFD = function("eventfd", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), ERRNO);
+        private static final MethodHandle OPENPTY = function("openpty", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS), ERRNO);
+        private static final MethodHandle TTYNAME_R = function("ttyname_r", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_LONG));
+        private static final MethodHandle STRERROR = function("strerror", FunctionDescriptor.of(ADDRESS, JAVA_INT));
+
+        private static MethodHandle function(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+            Optional<MemorySegment> symbol = LOOKUP.find(name);
+            if (!symbol.isPresent() && "openpty".equals(name)) {
+                // in libutil before glibc 2.34
+                symbol = SymbolLookup.libraryLookup("libutil.so.1", Arena.global()).find(name);
+            }
+            if (!symbol.isPresent())
+                throw new UnsatisfiedLinkError("libc function not found : " + name);
+            return LINKER.downcallHandle(symbol.get(), descriptor, options);
+        }
+
+        static int errno(MemorySegment state) {
+            return state.get(JAVA_INT, ERRNO_OFFSET);
+        }
+
+        /// <summary>
+        /// The NUL terminated string in the segment (ASCII: device paths, error messages).
+        /// </summary>
+        static String string(MemorySegment segment) {
+            StringBuilder result = new StringBuilder();
+            for (long i = 0; i < segment.byteSize(); i++) {
+                byte b = segment.get(JAVA_BYTE, i);
+                if (b == 0)
+                    break;
+                result.append((char) (b & 0xFF));
+            }
+            return result.toString();
+        }
+
+        /// <summary>
+        /// The string as NUL terminated UTF-8 in a segment of the arena.
+        /// </summary>
+        static MemorySegment string(Arena arena, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            MemorySegment segment = arena.allocate(bytes.length + 1, 1);
+            MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, bytes.length);
+            segment.set(JAVA_BYTE, bytes.length, (byte) 0);
+            return segment;
+        }
+
+        static String strerror(int errno) {
+            try {
+                MemorySegment message = (MemorySegment) STRERROR.invokeExact(errno);
+                return string(message.reinterpret(256)) + " (errno " + errno + ")";
+            } catch (Throwable e) {
+                return "errno " + errno;
+            }
+        }
+
+        static int open(MemorySegment state, MemorySegment path, int flags) {
+            try {
+                return (int) OPEN.invokeExact(state, path, flags, 0);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int close(MemorySegment state, int fd) {
+            try {
+                return (int) CLOSE.invokeExact(state, fd);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static long read(MemorySegment state, int fd, MemorySegment buffer, long count) {
+            try {
+                return (long) READ.invokeExact(state, fd, buffer, count);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static long write(MemorySegment state, int fd, MemorySegment buffer, long count) {
+            try {
+                return (long) WRITE.invokeExact(state, fd, buffer, count);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int fcntl(MemorySegment state, int fd, int command, int argument) {
+            try {
+                return (int) FCNTL.invokeExact(state, fd, command, argument);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int poll(MemorySegment state, MemorySegment fds, long count, int timeout) {
+            try {
+                return (int) POLL.invokeExact(state, fds, count, timeout);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int tcgetattr(MemorySegment state, int fd, MemorySegment termios) {
+            try {
+                return (int) TCGETATTR.invokeExact(state, fd, termios);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int tcsetattr(MemorySegment state, int fd, int action, MemorySegment termios) {
+            try {
+                return (int) TCSETATTR.invokeExact(state, fd, action, termios);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int tcflush(MemorySegment state, int fd, int queue) {
+            try {
+                return (int) TCFLUSH.invokeExact(state, fd, queue);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static void cfmakeraw(MemorySegment termios) {
+            try {
+                CFMAKERAW.invokeExact(termios);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int cfsetspeed(MemorySegment state, MemorySegment termios, int speed) {
+            try {
+                return (int) CFSETSPEED.invokeExact(state, termios, speed);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int epollCreate(MemorySegment state, int flags) {
+            try {
+                return (int) EPOLL_CREATE1.invokeExact(state, flags);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int epollCtl(MemorySegment state, int epoll, int operation, int fd, MemorySegment event) {
+            try {
+                return (int) EPOLL_CTL.invokeExact(state, epoll, operation, fd, event);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int epollWait(MemorySegment state, int epoll, MemorySegment events, int maxEvents, int timeout) {
+            try {
+                return (int) EPOLL_WAIT.invokeExact(state, epoll, events, maxEvents, timeout);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        static int eventfd(MemorySegment state, int initial, int flags) {
+            try {
+                return (int) EVENTFD.invokeExact(state, initial, flags);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        /// <summary>
+        /// openpty(master, slave, NULL, NULL, NULL): no name buffer (its size is not checked), default termios.
+        /// </summary>
+        static int openpty(MemorySegment state, MemorySegment master, MemorySegment slave) {
+            try {
+                return (int) OPENPTY.invokeExact(state, master, slave, MemorySegment.NULL, MemorySegment.NULL, MemorySegment.NULL);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        /// <returns>0 or the error number</returns>
+        static int ttyname(int fd, MemorySegment buffer, long size) {
+            try {
+                return (int) TTYNAME_R.invokeExact(fd, buffer, size);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        private static RuntimeException rethrow(Throwable e) {
+            if (e instanceof RuntimeException)
+                return (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            return new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Floods a slow listener through a small dispatcher queue.
+/// </summary>
+public class EversysCallbackDispatcherTest {
+
+    private static final int CAPACITY = 8;
+    private static final int PACKETS = 500;
+
+    private final EversysSerialComm engine = new EversysSerialComm();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /// <summary>
+    /// The engine acks a received packet before it is raised, so the machine never repeats it:
+    /// every packetReceived() has to arrive, in order, even when the informational events are dropped.
+    /// </summary>
+    @Test
+    public void deliversEveryReceivedPacketToSlowListener() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> received = new ArrayList<Integer>();
+        final CountDownLatch allReceived = new CountDownLatch(PACKETS);
+        SlowListener listener = new SlowListener(release) {
+            @Override
+            public void packetReceived(Packet_t packet) {
+                super.packetReceived(packet);
+                received.add(packet.sequenceNumber & 0xFF);
+                allReceived.countDown();
+            }
+        };
+
+        EversysCallbackDispatcher dispatcher = new EversysCallbackDispatcher(executor, CAPACITY, null);
+        for (int i = 0; i < PACKETS; i++) {
+            Packet_t packet = engine.new Packet_t();
+            packet.sequenceNumber = (byte) i;
+            dispatcher.packetReceived(listener, packet);
+            dispatcher.framingError(listener, FramingError_t.values()[0], 1);
+        }
+        assertTrue(dispatcher.isCongested());
+        release.countDown();
+
+        assertTrue("received " + received.size() + " of " + PACKETS, allReceived.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < PACKETS; i++)
+            assertEquals(i & 0xFF, (int) received.get(i));
+        assertTrue(dispatcher.getDroppedCount() > 0);
+        assertTrue(dispatcher.getDroppedCount() <= PACKETS);
+    }
+
+    /// <summary>
+    /// Blocks in the first callback until released, so the events pile up behind it.
+    /// </summary>
+    private static class SlowListener implements PacketEventListener, FramingErrorListener {
+        private final CountDownLatch release;
+
+        SlowListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        private void await() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void PacketEventFired(Object sender, PacketEventArgs eventArgs) {
+            await();
+        }
+
+        @Override
+        public void packetSent(Packet_t packet) {
+            await();
+        }
+
+        @Override
+        public void packetReceived(Packet_t packet) {
+            await();
+        }
+
+        @Override
+        public void ackTimeout(Packet_t packet) {
+            await();
+        }
+
+        @Override
+        public void nackFail(Packet_t packet) {
+            await();
+        }
+
+        @Override
+        public void responseTimeout(Packet_t packet) {
+            await();
+        }
+
+        @Override
+        public void dataSentIntercept(byte[] data) {
+            await();
+        }
+
+        @Override
+        public void framingError(FramingError_t error, int discardedBytes) {
+            await();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.ApplicationPort_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Encrypt_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Message_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketCRC_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketType_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Queue_t;
+
+/// <summary>
+/// Heap allocation of the receive path per telegram: every frame goes through ProcessRawData() (frame decoder,
+/// unshifting, CRC, RawPacket_t pool) and ProccessRawPacket() on the calling thread, then the Packet_t is
+/// taken from the incoming queue like the transmission thread does. The bytes are counted with
+/// com.sun.management.ThreadMXBean.getThreadAllocatedBytes() around frames telegrams after a warmup;
+/// the lowest of rounds runs is printed, so a recompilation during one run doesn't count.
+///
+/// The Packet_t for the listener (with its Message_t, PacketCRC_t and payload array for data) is the only allocation
+/// left by design; its size is measured the same way and printed next to it. A higher number per frame is a
+/// regression of the receive path. Source folder tools/, not shipped.
+///
+/// Arguments (key=value, all optional):
+///   sizes=0,16,64,240 frames=100000 warmup=20000 rounds=5 seed=1
+/// </summary>
+public class EversysAllocationBenchmark {
+
+    private final Map<String, String> options = new TreeMap<String, String>();
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final EversysSerialComm engine = new EversysSerialComm();
+
+    private int rounds;
+
+    /// <summary>
+    /// Keeps the JIT from removing the measured code; escape keeps it from scalar replacing the reference objects.
+    /// </summary>
+    private static long sink = 0;
+    private static volatile Object escape;
+
+    private EversysAllocationBenchmark(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("expected key=value : " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+            throw new IllegalStateException("the JVM doesn't count allocated bytes per thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EversysAllocationBenchmark(args).run();
+    }
+
+    private long option(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private interface Case {
+        void run();
+    }
+
+    private void run() {
+        Random random = new Random(option("seed", 1L));
+        int frames = (int) option("frames", 100000L);
+        int warmup = (int) option("warmup", 20000L);
+        rounds = (int) option("rounds", 5L);
+        String sizes = options.containsKey("sizes") ? options.get("sizes") : "0,16,64,240";
+        System.out.println("options: " + options);
+
+        final byte machine = EversysMachineSimulator.DEFAULT_ADDRESS;
+        final byte host = engine.getAddress();
+
+        final byte[] ack = new byte[EversysFrameEncoder.maxAckFrameLength()];
+        final int ackLength = EversysFrameEncoder.encodeAck(PacketType_t.PosAck_e, (byte) 1, machine, host, (byte) 0, ack, 0);
+        report("ack", warmup, frames, new Case() {
+            public void run() { receive(ack, ackLength); }
+        }, new Case() {
+            public void run() { escape = engine.new Packet_t(); }
+        });
+
+        for (String size : sizes.split(",")) {
+            final int dataLength = Integer.parseInt(size.trim());
+            byte[] payload = new byte[dataLength];
+            random.nextBytes(payload);
+
+            Packet_t packet = engine.CreatePacket(host, engine.new Message_t((byte) 0x01, (short) 0), payload, dataLength,
+                    false, Encrypt_t.No, (byte) 0, ApplicationPort_t.Api_e, (byte) 1);
+            packet.source = machine;
+            final byte[] frame = new byte[EversysFrameEncoder.maxFrameLength(dataLength)];
+            final int frameLength = EversysFrameEncoder.encode(packet, frame, 0);
+
+            report("data " + dataLength, warmup, frames, new Case() {
+                public void run() { receive(frame, frameLength); }
+            }, new Case() {
+                public void run() { escape = listenerPacket(dataLength); }
+            });
+        }
+    }
+
+    /// <summary>
+    /// One telegram through the receive path, as the receive and the transmission thread would do it.
+    /// </summary>
+    private void receive(byte[] frame, int length) {
+        engine.ProcessRawData(frame, length);
+        engine.ProccessRawPacket();
+        Object packet = engine.getQueue(Queue_t.IncomingData_e).poll();
+        if (packet == null)
+            packet = engine.getQueue(Queue_t.IncomingAck_e).poll();
+        if (packet == null)
+            throw new IllegalStateException("telegram was not decoded");
+        sink += packet.hashCode();
+    }
+
+    /// <summary>
+    /// What ProccessRawPacket() creates for the listener from a data telegram.
+    /// </summary>
+    private Packet_t listenerPacket(int dataLength) {
+        Packet_t packet = engine.new Packet_t();
+        packet.message = engine.new Message_t((byte) 0x01, (short) 0);
+        packet.data = dataLength == 0 ? null : new byte[dataLength];
+        packet.dataLength = dataLength;
+        packet.CRC = engine.new PacketCRC_t();
+        return packet;
+    }
+
+    private void report(String name, int warmup, int frames, Case path, Case expected) {
+        double perFrame = allocatedPerCall(path, warmup, frames);
+        double packet = allocatedPerCall(expected, warmup, frames);
+        System.out.println(String.format("%-10s %8.1f bytes/frame, %8.1f of them the Packet_t for the listener, %6.1f decoding",
+                name, perFrame, packet, perFrame - packet));
+    }
+
+    private double allocatedPerCall(Case c, int warmup, int calls) {
+        for (int i = 0; i < warmup; i++)
+            c.run();
+        long id = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long before = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < calls; i++)
+                c.run();
+            min = Math.min(min, threads.getThreadAllocatedBytes(id) - before);
+        }
+        return (double) min / calls;
+    }
+}
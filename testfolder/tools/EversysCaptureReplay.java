@@ -0,0 +1,301 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.ApplicationPort_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Encrypt_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketType_t;
+
+/// <summary>
+/// Replays EversysCapture files through an EversysSerialComm: the received chunks are written by the
+/// machine end of a LoopbackTransport, so they go through the frame decoder and the state machine like on
+/// the real port; the recorded data packets and requests of the host are enqueued again with their
+/// original sequence numbers (acks, nacks and repetitions are created by the engine itself).
+/// The records are played at their original pace divided by speed; speed=0 plays as fast as possible.
+/// Unless only the received data is played, a received chunk also waits until the engine has written as
+/// many bytes as the host had written before it, so the acks and responses of the machine don't overtake
+/// the packets they belong to.
+/// A command line tool in the source folder tools/, not part of the shipped package.
+///
+/// Usage: EversysCaptureReplay (file or directory)... [speed=1] [address=65] [inboundOnly=0]
+/// </summary>
+public class EversysCaptureReplay {
+
+    /// <summary>
+    /// Pause in ns before a full outgoing lane is tried again.
+    /// </summary>
+    static final long ENQUEUE_RETRY_NANOS = 100000;
+
+    /// <summary>
+    /// Longest wait in ns for the engine to catch up with the recorded host traffic before a received
+    /// chunk is played anyway.
+    /// </summary>
+    static final long SYNC_TIMEOUT_NANOS = 200000000;
+
+    private final EversysSerialComm engine;
+    private final SerialTransport machine;
+    private final double speed;
+    private final boolean inboundOnly;
+
+    private final EversysFrameDecoder outboundDecoder;
+    private int lastSequenceNumber = -1;
+    private int lastCommand = -1;
+
+    private long records = 0;
+    private long inboundBytes = 0;
+    private long packetsEnqueued = 0;
+    private long repetitionsSkipped = 0;
+
+    private long recordedOutboundBytes = 0;
+    private final AtomicLong hostBytes = new AtomicLong();
+    private long syncTimeouts = 0;
+
+    private long firstRecordTime = Long.MIN_VALUE;
+    private long replayStart = 0;
+
+    /// <summary>
+    /// Creates a replay into a started engine.
+    /// </summary>
+    /// <param name="engine">engine which reads from the other end of machine</param>
+    /// <param name="machine">opened transport which plays the machine</param>
+    /// <param name="speed">1 = original pace, 10 = ten times faster, 0 = no pauses</param>
+    /// <param name="inboundOnly">true = only the received data is played, the recorded host packets are not sent</param>
+    public EversysCaptureReplay(EversysSerialComm engine, SerialTransport machine, double speed, boolean inboundOnly) {
+        this.engine = engine;
+        this.machine = machine;
+        this.speed = speed;
+        this.inboundOnly = inboundOnly;
+        this.outboundDecoder = new EversysFrameDecoder(engine.getMaxPacketSize(), new EversysFrameDecoder.FrameHandler() {
+            @Override
+            public byte[] frameReceived(byte[] frame, int length, short crcResidue) {
+                if (crcResidue == 0)
+                    resend(frame, length);
+                return frame;
+            }
+
+            @Override
+            public void framingError(EversysFrameDecoder.FramingError_t error, int discardedBytes) {
+                // recorded garbage of the host side, nothing to replay
+            }
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<String, String>();
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0)
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            else
+                files.addAll(captureFiles(new File(arg)));
+        }
+        if (files.isEmpty()) {
+            System.out.println("usage: EversysCaptureReplay (file or directory)... [speed=1] [address=65] [inboundOnly=0]");
+            return;
+        }
+
+        double speed = Double.parseDouble(option(options, "speed", "1"));
+        byte address = (byte) Integer.parseInt(option(options, "address", "65"));
+        boolean inboundOnly = !"0".equals(option(options, "inboundOnly", "0"));
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair("replay-host", "replay-machine");
+        EversysSerialComm engine = new EversysSerialComm();
+        engine.SerialComm(pair[0], 115200, address);
+        engine.setCaptureDirectory(null);       // don't capture the replay
+        final EversysCaptureReplay replay = new EversysCaptureReplay(engine, pair[1], speed, inboundOnly);
+        pair[1].setDataListener(new SerialTransport.DataListener() {
+            @Override
+            public void dataReceived(byte[] buffer, int length) {
+                replay.hostDataWritten(length);     // acks and packets of the engine, not checked
+            }
+        });
+        pair[1].open();
+
+        engine.Start();
+
+        long start = System.nanoTime();
+        for (File file : files)
+            replay.replay(file);
+        Thread.sleep(100);     // let the engine finish the last telegrams
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("replayed %d files, %d records, %d bytes received, %d packets sent in %.3f s",
+                files.size(), replay.getRecordCount(), replay.getInboundBytes(), replay.getPacketsEnqueued(), elapsed / 1e9));
+        EversysMetrics metrics = engine.getMetrics();
+        System.out.println("engine: received=" + metrics.getPacketsReceived() + " acksSent=" + metrics.getAcksSent()
+                + " nacksSent=" + metrics.getNacksSent() + " crcErrors=" + metrics.getCrcErrors()
+                + " lengthErrors=" + metrics.getLengthErrors() + " framingResyncs=" + metrics.getFramingResyncs()
+                + " sent=" + metrics.getPacketsSent() + " acksReceived=" + metrics.getAcksReceived()
+                + " responses=" + metrics.getResponsesReceived() + " ackTimeouts=" + metrics.getAckTimeouts()
+                + " bytesWritten=" + replay.getHostBytes() + " syncTimeouts=" + replay.getSyncTimeouts());
+
+        engine.Dispose();
+        pair[1].close();
+    }
+
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /// <summary>
+    /// The file, or the capture files of the directory sorted by name (= by start time per port).
+    /// </summary>
+    private static List<File> captureFiles(File file) {
+        if (!file.isDirectory())
+            return Arrays.asList(file);
+        File[] files = file.listFiles();
+        List<File> result = new ArrayList<File>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.getName().endsWith(EversysCapture.FILE_SUFFIX))
+                    result.add(f);
+            }
+        }
+        return result;
+    }
+
+    /// <summary>
+    /// Plays all records of the file. Several files are played in a row on one time line.
+    /// </summary>
+    public void replay(File file) throws IOException, InterruptedException {
+        EversysCapture.Reader reader = new EversysCapture.Reader(file);
+        try {
+            // record times on the wall clock, so files of different runs fit on one time line
+            long fileBase = reader.getStartMillis() * 1000000L - reader.getStartNanos();
+            while (reader.next()) {
+                waitFor(fileBase + reader.nanos);
+                records++;
+                if (reader.direction == EversysCapture.Direction_t.Inbound_e) {
+                    if (!inboundOnly)
+                        waitForHost();
+                    inboundBytes += reader.length;
+                    machine.write(reader.data, reader.length);
+                } else if (!inboundOnly) {
+                    recordedOutboundBytes += reader.length;
+                    outboundDecoder.decode(reader.data, 0, reader.length);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /// <summary>
+    /// Called with the bytes the engine wrote to the machine end of the transport.
+    /// </summary>
+    public void hostDataWritten(int length) {
+        hostBytes.addAndGet(length);
+    }
+
+    /// <summary>
+    /// Waits until the engine has written the recorded host traffic so far, at most SYNC_TIMEOUT_NANOS.
+    /// </summary>
+    private void waitForHost() throws InterruptedException {
+        if (hostBytes.get() >= recordedOutboundBytes)
+            return;
+        long deadline = System.nanoTime() + SYNC_TIMEOUT_NANOS;
+        while (hostBytes.get() < recordedOutboundBytes) {
+            if (System.nanoTime() - deadline >= 0) {
+                syncTimeouts++;
+                // the engine wrote less than the host (e.g. fewer repetitions): continue from here
+                hostBytes.set(recordedOutboundBytes);
+                return;
+            }
+            LockSupport.parkNanos(ENQUEUE_RETRY_NANOS);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    private void waitFor(long recordTime) throws InterruptedException {
+        if (firstRecordTime == Long.MIN_VALUE) {
+            firstRecordTime = recordTime;
+            replayStart = System.nanoTime();
+            return;
+        }
+        if (speed <= 0)
+            return;
+
+        long due = replayStart + (long) ((recordTime - firstRecordTime) / speed);
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    /// <summary>
+    /// Enqueues a recorded data packet or request of the host again; acks, nacks and repetitions are skipped.
+    /// </summary>
+    private void resend(byte[] frame, int length) {
+        if (length < 12)
+            return;
+        int type = frame[1] & 0x7;
+        if (type != PacketType_t.Data_e.getData() && type != PacketType_t.Request_e.getData())
+            return;
+
+        int sequenceNumber = frame[2] & 0xFF;
+        int command = frame[5] & 0xFF;
+        if (sequenceNumber == lastSequenceNumber && command == lastCommand) {
+            repetitionsSkipped++;
+            return;
+        }
+        lastSequenceNumber = sequenceNumber;
+        lastCommand = command;
+
+        int dataLength = (frame[8] & 0xFF) | ((frame[9] & 0xFF) << 8);
+        if (10 + dataLength + 2 != length)
+            return;
+        byte[] data = dataLength > 0 ? Arrays.copyOfRange(frame, 10, 10 + dataLength) : new byte[2];
+        short parameter = (short) ((frame[6] & 0xFF) | ((frame[7] & 0xFF) << 8));
+
+        Packet_t packet = engine.CreatePacket(frame[4], engine.new Message_t(frame[5], parameter), data, dataLength,
+                type == PacketType_t.Request_e.getData(), Encrypt_t.fromInteger((frame[1] >> 7) & 0x1),
+                (byte) ((frame[0] >> 6) & 0x3), ApplicationPort_t.fromInteger((frame[1] >> 3) & 0xF), frame[2]);
+
+        // the engine may be slower than the capture (speed=0): wait until the lane has room
+        while (!engine.EnqueuePreparedPacket(packet))
+            LockSupport.parkNanos(ENQUEUE_RETRY_NANOS);
+        packetsEnqueued++;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    public long getInboundBytes() {
+        return inboundBytes;
+    }
+
+    public long getPacketsEnqueued() {
+        return packetsEnqueued;
+    }
+
+    public long getRepetitionsSkipped() {
+        return repetitionsSkipped;
+    }
+
+    public long getHostBytes() {
+        return hostBytes.get();
+    }
+
+    /// <summary>
+    /// Received chunks which were played although the engine had not caught up with the host.
+    /// </summary>
+    public long getSyncTimeouts() {
+        return syncTimeouts;
+    }
+}
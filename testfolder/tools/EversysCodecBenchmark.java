@@ -0,0 +1,184 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.SpecialChars_t;
+
+/// <summary>
+/// Compares the bytewise unshifting (the code before EversysByteScan) with RevertShiftedChars(), which copies
+/// the runs found by EversysByteScan.indexOf(), and measures the shifting and
+/// EversysFrameEncoder/EversysFrameDecoder on large payloads.
+/// Every case is run for warmupMs, then measured for runMs; the results of both versions are compared once.
+/// Source folder tools/ like EversysCrcBenchmark, not shipped.
+///
+/// Payloads: random (about 4% special characters), text (ASCII, a few LF/CR) and zeros (every byte special).
+///
+/// Arguments (key=value, all optional):
+///   size=4096 warmupMs=1000 runMs=2000 seed=1
+/// </summary>
+public class EversysCodecBenchmark {
+
+    private static final byte SHIFT_CHAR = SpecialChars_t.ShiftChar_e.getData();
+    private static final byte SHIFT_XOR = SpecialChars_t.ShiftXOR_e.getData();
+
+    private final Map<String, String> options = new TreeMap<String, String>();
+
+    /// <summary>
+    /// Keeps the JIT from removing the measured code.
+    /// </summary>
+    private static long sink = 0;
+
+    private EversysCodecBenchmark(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("expected key=value : " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EversysCodecBenchmark(args).run();
+    }
+
+    private long option(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private interface Case {
+        void run();
+    }
+
+    private void run() {
+        final int size = (int) option("size", 4096L);
+        Random random = new Random(option("seed", 1L));
+        long warmup = option("warmupMs", 1000L);
+        long measure = option("runMs", 2000L);
+        System.out.println("options: " + options);
+
+        byte[] text = ("Espresso 25 ml, 9 bar, 93 C\r\nMilk foam 120 ml\n").getBytes();
+        byte[][] payloads = { new byte[size], new byte[size], new byte[size] };
+        random.nextBytes(payloads[0]);
+        for (int i = 0; i < size; i++)
+            payloads[1][i] = text[i % text.length];
+        String[] names = { "random", "text", "zeros" };
+
+        for (int p = 0; p < payloads.length; p++) {
+            final byte[] payload = payloads[p];
+            final byte[] shifted = new byte[2 * size];
+            final int shiftedLength = shiftBytewise(payload, shifted);
+            check(names[p], payload, shifted, shiftedLength);
+
+            final byte[] out = new byte[2 * size];
+            measure(names[p] + " shift", size, warmup, measure, new Case() {
+                public void run() { sink += EversysByteScan.shift(payload, 0, size, out, 0); }
+            });
+            measure(names[p] + " unshift bytewise", shiftedLength, warmup, measure, new Case() {
+                public void run() { sink += unshiftBytewise(shifted, shiftedLength).length; }
+            });
+            measure(names[p] + " unshift runs", shiftedLength, warmup, measure, new Case() {
+                public void run() { sink += EversysSerialComm.RevertShiftedChars(shifted, shiftedLength).length; }
+            });
+
+            // whole telegrams: encode, then decode with CRC check
+            final byte[] telegram = new byte[10 + size];
+            telegram[0] = 1;
+            telegram[1] = (byte) 0x68;
+            telegram[3] = 65;
+            telegram[4] = 10;
+            telegram[8] = (byte) size;
+            telegram[9] = (byte) (size >> 8);
+            System.arraycopy(payload, 0, telegram, 10, size);
+            final byte[] frame = new byte[EversysFrameEncoder.maxTelegramFrameLength(telegram.length)];
+            final int frameLength = EversysFrameEncoder.encodeTelegram(telegram, telegram.length, frame, 0);
+            final EversysFrameDecoder decoder = new EversysFrameDecoder(telegram.length + 2, new EversysFrameDecoder.FrameHandler() {
+                public byte[] frameReceived(byte[] f, int length, short crcResidue) {
+                    sink += length + crcResidue;
+                    return f;
+                }
+                public void framingError(FramingError_t error, int discardedBytes) {
+                    throw new IllegalStateException(error.toString());
+                }
+            });
+            measure(names[p] + " encode", size, warmup, measure, new Case() {
+                public void run() { sink += EversysFrameEncoder.encodeTelegram(telegram, telegram.length, frame, 0); }
+            });
+            measure(names[p] + " decode", size, warmup, measure, new Case() {
+                public void run() { decoder.decode(frame, 0, frameLength); }
+            });
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void check(String name, byte[] payload, byte[] shifted, int shiftedLength) {
+        byte[] out = new byte[shifted.length];
+        int length = EversysByteScan.shift(payload, 0, payload.length, out, 0);
+        if (length != shiftedLength || !Arrays.equals(Arrays.copyOf(out, length), Arrays.copyOf(shifted, shiftedLength)))
+            throw new IllegalStateException(name + ": shift differs");
+        if (!Arrays.equals(EversysSerialComm.RevertShiftedChars(shifted, shiftedLength), unshiftBytewise(shifted, shiftedLength)))
+            throw new IllegalStateException(name + ": unshift differs");
+        for (int from = 0; from < shiftedLength; from++) {
+            int expected = -1;
+            for (int i = from; i < shiftedLength && expected < 0; i++) {
+                if (shifted[i] == SHIFT_CHAR)
+                    expected = i;
+            }
+            if (EversysByteScan.indexOf(shifted, from, shiftedLength, SHIFT_CHAR) != expected)
+                throw new IllegalStateException(name + ": indexOf differs from " + from);
+        }
+    }
+
+    private static void measure(String name, int bytes, long warmupMs, long runMs, Case c) {
+        long end = System.nanoTime() + warmupMs * 1000000L;
+        while (System.nanoTime() < end)
+            c.run();
+
+        long operations = 0;
+        long start = System.nanoTime();
+        end = start + runMs * 1000000L;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++)
+                c.run();
+            operations += 64;
+        } while ((now = System.nanoTime()) < end);
+
+        double nsPerOp = (double) (now - start) / operations;
+        System.out.println(String.format("%-24s %10.1f ns/op %8.0f MB/s", name, nsPerOp, bytes / nsPerOp * 1e3));
+    }
+
+    //#region bytewise versions, as before EversysByteScan
+    private static int shiftBytewise(byte[] data, byte[] out) {
+        int pos = 0;
+        for (int i = 0; i < data.length; i++) {
+            byte b = data[i];
+            if (EversysFrameEncoder.isSpecialChar(b)) {
+                out[pos++] = SHIFT_CHAR;
+                out[pos++] = (byte) (b ^ SHIFT_XOR);
+            } else {
+                out[pos++] = b;
+            }
+        }
+        return pos;
+    }
+
+    private static byte[] unshiftBytewise(byte[] data, int length) {
+        int newLength = 0;
+        byte[] newData = new byte[length];
+        for (int i = 0; length > i; i++) {
+            if (data[i] == SHIFT_CHAR) {
+                i++;
+                newData[newLength++] = (byte) (data[i] ^ SHIFT_XOR);
+            } else {
+                newData[newLength++] = data[i];
+            }
+        }
+        return Arrays.copyOfRange(newData, 0, newLength);
+    }
+    //#endregion
+}
@@ -0,0 +1,221 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.Packet_t;
+
+/// <summary>
+/// Load test of the protocol engine: EversysManager and EversysSerialComm on one end of a LoopbackTransport,
+/// EversysMachineSimulator on the other end. Sends all Command_t in turn (Get... as request, the others as
+/// command) with a fixed number of outstanding calls and prints throughput and latency percentiles.
+/// In the source folder tools/ next to EversysMachineSimulator.
+///
+/// Arguments (key=value, all optional):
+///   requests=100000 warmup=10000 concurrency=1 window=1
+///   latencyUs=0 jitterUs=0 nackRate=0 ackLossRate=0 responseLossRate=0 corruptionRate=0 resetRate=0
+///   ackTimeoutMs=200 responseTimeoutMs=200 writeWindowUs=0 seed=1
+///   cache=0 (1 = keep the response cache of EversysManager; by default every request goes to the wire)
+///   capture=0 (1 = with the always-on capture in EversysCapture.configuredDirectory())
+///   adaptive=1 (0 = fixed ack/response timeouts) minAckTimeoutMs=10 (lower bound of the adaptive ack timeouts)
+/// </summary>
+public class EversysLoadGenerator {
+
+    private final Map<String, String> options = new TreeMap<String, String>();
+
+    protected EversysLoadGenerator(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("expected key=value : " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EversysLoadGenerator(args).run();
+    }
+
+    protected long option(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    protected double option(String key, double defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    protected String option(String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /// <summary>
+    /// Connected transports { engine end, machine end }, not opened yet. Overridden by EversysPtyLoadGenerator.
+    /// </summary>
+    protected SerialTransport[] createTransports() throws Exception {
+        return LoopbackTransport.createPair("host", "machine");
+    }
+
+    void run() throws Exception {
+        int requests = (int) option("requests", 100000L);
+        int warmup = (int) option("warmup", 10000L);
+        int concurrency = (int) option("concurrency", 1L);
+
+        SerialTransport[] pair = createTransports();
+
+        EversysMachineSimulator simulator = new EversysMachineSimulator(pair[1]);
+        simulator.setSeed(option("seed", 1L));
+        simulator.setResponseLatency(option("latencyUs", 0L), option("jitterUs", 0L), TimeUnit.MICROSECONDS);
+        simulator.setNackRate(option("nackRate", 0.0));
+        simulator.setAckLossRate(option("ackLossRate", 0.0));
+        simulator.setResponseLossRate(option("responseLossRate", 0.0));
+        simulator.setCorruptionRate(option("corruptionRate", 0.0));
+        simulator.setResetRate(option("resetRate", 0.0));
+        simulator.start();
+
+        EversysSerialComm engine = new EversysSerialComm();
+        engine.SerialComm(pair[0], 115200, EversysMachineSimulator.DEFAULT_ADDRESS);
+        if (option("capture", 0L) == 0)
+            engine.setCaptureDirectory(null);
+        engine.setWindowSize((int) option("window", 1L));
+        engine.setAckTimeout(Duration.ofMillis(option("ackTimeoutMs", 200L)));
+        engine.setResponseTimeout(Duration.ofMillis(option("responseTimeoutMs", 200L)));
+        engine.setWriteCoalescingWindow(option("writeWindowUs", 0L));
+        engine.setAdaptiveTimeouts(option("adaptive", 1L) != 0);
+        engine.getAckRtt().setBounds(Duration.ofMillis(option("minAckTimeoutMs", 10L)), engine.getAckRtt().getMaxTimeout());
+
+        EversysManager manager = new EversysManager();
+        manager.init(engine);
+        if (option("cache", 0L) == 0) {
+            for (Command_t cmd : Command_t.values())
+                manager.getResponseCache().setTtl(cmd, Duration.ZERO);
+        }
+        engine.Start();
+
+        System.out.println("options: " + options);
+        runPhase(manager, warmup, concurrency, null);
+
+        Result result = new Result(requests);
+        long start = System.nanoTime();
+        runPhase(manager, requests, concurrency, result);
+        long elapsed = System.nanoTime() - start;
+
+        result.print(elapsed);
+        System.out.println("engine: writes=" + engine.getWriteCount() + " frames/write=" + String.format("%.2f", engine.getFramesPerWrite())
+                + " maxFrames/write=" + engine.getMaxFramesPerWrite());
+        EversysMetrics metrics = engine.getMetrics();
+        System.out.println("metrics: sent=" + metrics.getPacketsSent() + " retransmissions=" + metrics.getRetransmissions()
+                + " ackTimeouts=" + metrics.getAckTimeouts() + " nacks=" + metrics.getNacksReceived()
+                + " responseTimeouts=" + metrics.getResponseTimeouts() + " crcErrors=" + metrics.getCrcErrors()
+                + " framingResyncs=" + metrics.getFramingResyncs());
+        System.out.println("ack time p99 us: " + metrics.getAckTimeP99());
+        if (engine.isAdaptiveTimeouts())
+            System.out.println("ack timeout us: " + metrics.getAckTimeoutEstimate());
+        System.out.println("simulator: " + simulator);
+
+        engine.Dispose();
+        simulator.stop();
+    }
+
+    /// <summary>
+    /// Sends count calls with at most concurrency outstanding ones and waits until all finished.
+    /// </summary>
+    private void runPhase(EversysManager manager, int count, int concurrency, final Result result) throws InterruptedException {
+        final Command_t[] commands = commandMix();
+        final Semaphore outstanding = new Semaphore(concurrency);
+
+        for (int i = 0; i < count; i++) {
+            outstanding.acquire();
+            Command_t cmd = commands[i % commands.length];
+            final long sent = System.nanoTime();
+
+            CompletableFuture<Packet_t> future = cmd.name().startsWith("Get")
+                    ? manager.request(cmd, (short) 0, null)
+                    : manager.command(cmd, (short) 0, null);
+            future.whenComplete(new BiConsumer<Packet_t, Throwable>() {
+                @Override
+                public void accept(Packet_t packet, Throwable error) {
+                    if (result != null)
+                        result.record(System.nanoTime() - sent, error);
+                    outstanding.release();
+                }
+            });
+        }
+        outstanding.acquire(concurrency);
+        outstanding.release(concurrency);
+    }
+
+    private static Command_t[] commandMix() {
+        List<Command_t> commands = new ArrayList<Command_t>();
+        for (Command_t cmd : Command_t.values()) {
+            if (cmd != Command_t.Undef_e)
+                commands.add(cmd);
+        }
+        return commands.toArray(new Command_t[commands.size()]);
+    }
+
+    /// <summary>
+    /// Latencies of the successful calls and the failures by exception type.
+    /// </summary>
+    private static final class Result {
+        private final long[] latencies;
+        private final AtomicInteger count = new AtomicInteger();
+        private final Map<String, AtomicInteger> failures = new TreeMap<String, AtomicInteger>();
+
+        Result(int capacity) {
+            latencies = new long[capacity];
+        }
+
+        void record(long latency, Throwable error) {
+            if (error == null) {
+                latencies[count.getAndIncrement()] = latency;
+                return;
+            }
+            Throwable cause = error.getCause() != null ? error.getCause() : error;
+            synchronized (failures) {
+                AtomicInteger n = failures.get(cause.getClass().getSimpleName());
+                if (n == null)
+                    failures.put(cause.getClass().getSimpleName(), n = new AtomicInteger());
+                n.incrementAndGet();
+            }
+        }
+
+        void print(long elapsed) {
+            int n = count.get();
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+
+            int failed = 0;
+            synchronized (failures) {
+                for (AtomicInteger f : failures.values())
+                    failed += f.get();
+            }
+            double seconds = elapsed / 1e9;
+            System.out.println(String.format("calls: ok=%d failed=%d in %.2f s, %.0f calls/s", n, failed, seconds, (n + failed) / seconds));
+            if (n > 0) {
+                System.out.println(String.format("latency us: p50=%.1f p99=%.1f p999=%.1f max=%.1f",
+                        percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3,
+                        percentile(sorted, 0.999) / 1e3, sorted[n - 1] / 1e3));
+            }
+            if (failed > 0)
+                System.out.println("failures: " + failures);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysManager.Command_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.ApplicationPort_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketType_t;
+
+/// <summary>
+/// Coffee machine on the other end of a SerialTransport (usually one end of LoopbackTransport.createPair()).
+/// Speaks the full SOH ... EOT telegram format: every data packet addressed to the machine is acked,
+/// every request of any Command_t is answered with a data packet with the same sequence number.
+/// Faults can be injected: response latency, nacks, lost acks and responses, corrupted bytes
+/// and the justReset bit in the GetStatus response (see EversysSerialComm.checkForReset()).
+/// The response payloads are zero filled placeholders of a plausible size; the real layouts
+/// are not modelled. Use setResponse() for specific contents.
+/// A test tool in the source folder tools/; the shipped engine doesn't use it.
+/// </summary>
+public class EversysMachineSimulator {
+
+    private static Logger logger = LoggerFactory.getLogger(EversysMachineSimulator.class);
+
+    /// <summary>
+    /// Default address of the machine; EversysManager sends to 65.
+    /// </summary>
+    public static final byte DEFAULT_ADDRESS = 0x41;
+
+    /// <summary>
+    /// Sequence numbers which are remembered to detect repeated packets (lost ack).
+    /// </summary>
+    private static final int HISTORY_SIZE = EversysSerialComm.MAX_WINDOW_SIZE;
+
+    private static final int PACKET_HEADER_SIZE = 5;
+    private static final int DATA_HEADER_SIZE = 5;
+    private static final int CRC_SIZE = 2;
+
+    private final SerialTransport transport;
+    private final byte address;
+    private final EversysFrameDecoder decoder;
+    private final ScheduledExecutorService responder;
+    private final Random random = new Random();
+    private final Object writeLock = new Object();
+
+    //#region fault injection
+    private volatile long responseLatency = 0;     // µs
+    private volatile long responseJitter = 0;      // µs
+    private volatile double nackRate = 0;
+    private volatile double ackLossRate = 0;
+    private volatile double responseLossRate = 0;
+    private volatile double corruptionRate = 0;
+    private volatile double resetRate = 0;
+    private volatile boolean resetPending = false;
+    //#endregion
+
+    /// <summary>
+    /// Response payload per command id.
+    /// </summary>
+    private final byte[][] responses = new byte[256][];
+
+    /// <summary>
+    /// Last command ids and sequence numbers ((command << 8) | sequence number) and the responses sent for them.
+    /// The command is part of the key because the host restarts its sequence numbers after a reset.
+    /// Only used by the receiving thread.
+    /// </summary>
+    private final int[] history = new int[HISTORY_SIZE];
+    private final byte[][] historyResponses = new byte[HISTORY_SIZE][];
+    private int historyNext = 0;
+
+    /// <summary>
+    /// Sequence number of the GetStatus request which was answered with justReset, -1 = none.
+    /// The host restarts its sequence numbers after such a response; the history is cleared
+    /// with the first packet which is not a repetition of that request.
+    /// </summary>
+    private int resetSequenceNumber = -1;
+
+    //#region statistics
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong crcErrors = new AtomicLong();
+    private final AtomicLong framingErrors = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+    private final AtomicLong acksLost = new AtomicLong();
+    private final AtomicLong nacksSent = new AtomicLong();
+    private final AtomicLong responsesSent = new AtomicLong();
+    private final AtomicLong responsesLost = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    //#endregion
+
+    public EversysMachineSimulator(SerialTransport transport) {
+        this(transport, DEFAULT_ADDRESS);
+    }
+
+    /// <param name="transport">port to the host</param>
+    /// <param name="address">address of the machine (destination of the host packets)</param>
+    public EversysMachineSimulator(SerialTransport transport, byte address) {
+        this.transport = transport;
+        this.address = address;
+        this.decoder = new EversysFrameDecoder(1024, new EversysFrameDecoder.FrameHandler() {
+            @Override
+            public byte[] frameReceived(byte[] frame, int length, short crcResidue) {
+                handleFrame(frame, length, crcResidue);
+                return frame;
+            }
+
+            @Override
+            public void framingError(FramingError_t error, int discardedBytes) {
+                framingErrors.incrementAndGet();
+            }
+        });
+        this.responder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "eversys-sim-" + transport.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Arrays.fill(history, -1);
+        setDefaultResponses();
+    }
+
+    private void setDefaultResponses() {
+        for (Command_t cmd : Command_t.values())
+            responses[cmd.getData() & 0xFF] = new byte[0];
+        responses[Command_t.GetApiVersion_e.getData() & 0xFF] = new byte[4];
+        responses[Command_t.GetStatus_e.getData() & 0xFF] = new byte[16];
+        responses[Command_t.GetRequests_e.getData() & 0xFF] = new byte[8];
+        responses[Command_t.GetInfoMessages_e.getData() & 0xFF] = new byte[16];
+        responses[Command_t.GetProductDump_e.getData() & 0xFF] = new byte[64];
+        responses[Command_t.GetSensorValues_e.getData() & 0xFF] = new byte[32];
+        responses[Command_t.GetProductParameters_e.getData() & 0xFF] = new byte[64];
+        responses[Command_t.GetMachineCounters_e.getData() & 0xFF] = new byte[64];
+        responses[Command_t.GetBlockedScreenState_e.getData() & 0xFF] = new byte[2];
+        responses[Command_t.GetQRCodeState_e.getData() & 0xFF] = new byte[2];
+    }
+
+    /// <summary>
+    /// Opens the transport and starts answering.
+    /// </summary>
+    public void start() {
+        transport.setDataListener(new SerialTransport.DataListener() {
+            @Override
+            public void dataReceived(byte[] buffer, int length) {
+                decoder.decode(buffer, 0, length);
+            }
+        });
+        if (!transport.open())
+            logger.error("simulator cannot open " + transport.getName());
+    }
+
+    /// <summary>
+    /// Closes the transport; pending responses are discarded.
+    /// </summary>
+    public void stop() {
+        responder.shutdownNow();
+        transport.close();
+    }
+
+    //#region configuration
+    /// <summary>
+    /// Payload of the response to the command. For GetStatus_e bit 0 of the first byte is the justReset bit.
+    /// </summary>
+    public void setResponse(Command_t command, byte[] payload) {
+        responses[command.getData() & 0xFF] = payload.clone();
+    }
+
+    /// <summary>
+    /// Time between the ack of a request and its response, plus a random part of up to jitter.
+    /// </summary>
+    public void setResponseLatency(long latency, long jitter, TimeUnit unit) {
+        responseLatency = unit.toMicros(latency);
+        responseJitter = unit.toMicros(jitter);
+    }
+
+    /// <summary>
+    /// Probability (0..1) that a valid packet is answered with a nack.
+    /// </summary>
+    public void setNackRate(double rate) {
+        nackRate = rate;
+    }
+
+    /// <summary>
+    /// Probability that the ack of a packet is not sent; the packet is executed anyway.
+    /// </summary>
+    public void setAckLossRate(double rate) {
+        ackLossRate = rate;
+    }
+
+    /// <summary>
+    /// Probability that the response to a request is not sent.
+    /// </summary>
+    public void setResponseLossRate(double rate) {
+        responseLossRate = rate;
+    }
+
+    /// <summary>
+    /// Probability that one byte of a sent telegram is changed.
+    /// </summary>
+    public void setCorruptionRate(double rate) {
+        corruptionRate = rate;
+    }
+
+    /// <summary>
+    /// Probability that the machine resets before it answers a GetStatus request; the response has the justReset bit set.
+    /// </summary>
+    public void setResetRate(double rate) {
+        resetRate = rate;
+    }
+
+    /// <summary>
+    /// The next GetStatus response has the justReset bit set.
+    /// </summary>
+    public void injectReset() {
+        resetPending = true;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+    //#endregion
+
+    //#region statistics
+    public long getReceivedCount() { return received.get(); }
+    public long getCrcErrorCount() { return crcErrors.get(); }
+    public long getFramingErrorCount() { return framingErrors.get(); }
+    public long getAckCount() { return acksSent.get(); }
+    public long getLostAckCount() { return acksLost.get(); }
+    public long getNackCount() { return nacksSent.get(); }
+    public long getResponseCount() { return responsesSent.get(); }
+    public long getLostResponseCount() { return responsesLost.get(); }
+    public long getDuplicateCount() { return duplicates.get(); }
+    public long getCorruptedCount() { return corrupted.get(); }
+    public long getResetCount() { return resets.get(); }
+
+    @Override
+    public String toString() {
+        return "received=" + received + " crcErrors=" + crcErrors + " framingErrors=" + framingErrors
+                + " acks=" + acksSent + " lostAcks=" + acksLost + " nacks=" + nacksSent
+                + " responses=" + responsesSent + " lostResponses=" + responsesLost
+                + " duplicates=" + duplicates + " corrupted=" + corrupted + " resets=" + resets;
+    }
+    //#endregion
+
+    /// <summary>
+    /// Called on the receiving thread of the transport for every telegram.
+    /// </summary>
+    private void handleFrame(byte[] frame, int length, short crcResidue) {
+        received.incrementAndGet();
+        if (length < PACKET_HEADER_SIZE)
+            return;
+
+        byte protocol = frame[0];
+        int type = frame[1] & 0x07;
+        byte sequenceNumber = frame[2];
+        byte source = frame[3];
+        byte destination = frame[4];
+
+        if (type != PacketType_t.Data_e.getData() && type != PacketType_t.Request_e.getData())
+            return;     // acks of the host, they have no CRC; the simulator doesn't send own packets
+        if (destination != address)
+            return;
+        if (crcResidue != 0) {
+            crcErrors.incrementAndGet();
+            sendAck(PacketType_t.NegAck_e, protocol, sequenceNumber, source);
+            return;
+        }
+
+        if (length < PACKET_HEADER_SIZE + DATA_HEADER_SIZE + CRC_SIZE) {
+            sendAck(PacketType_t.NegAck_e, protocol, sequenceNumber, source);
+            return;
+        }
+        byte command = frame[5];
+        short parameter = (short) ((frame[6] & 0xFF) | ((frame[7] & 0xFF) << 8));
+        int dataLength = (frame[8] & 0xFF) | ((frame[9] & 0xFF) << 8);
+        if (length != PACKET_HEADER_SIZE + DATA_HEADER_SIZE + dataLength + CRC_SIZE) {
+            sendAck(PacketType_t.NegAck_e, protocol, sequenceNumber, source);
+            return;
+        }
+
+        if (chance(nackRate)) {
+            sendAck(PacketType_t.NegAck_e, protocol, sequenceNumber, source);
+            return;
+        }
+
+        if (resetSequenceNumber >= 0 && resetSequenceNumber != (sequenceNumber & 0xFF)) {
+            clearHistory();
+            resetSequenceNumber = -1;
+        }
+
+        int seen = findHistory(command, sequenceNumber);
+        if (seen >= 0) {
+            // repeated because our ack was lost: ack again, don't execute twice
+            duplicates.incrementAndGet();
+            sendOrLoseAck(protocol, sequenceNumber, source);
+            if (historyResponses[seen] != null)
+                scheduleResponse(historyResponses[seen]);
+            return;
+        }
+
+        sendOrLoseAck(protocol, sequenceNumber, source);
+
+        byte[] response = null;
+        if (type == PacketType_t.Request_e.getData())
+            response = buildResponse(protocol, sequenceNumber, source, command, parameter);
+        addHistory(command, sequenceNumber, response);
+
+        if (response != null) {
+            if (chance(responseLossRate))
+                responsesLost.incrementAndGet();
+            else
+                scheduleResponse(response);
+        }
+    }
+
+    private byte[] buildResponse(byte protocol, byte sequenceNumber, byte destination, byte command, short parameter) {
+        byte[] payload = responses[command & 0xFF];
+        if (payload == null)
+            payload = new byte[0];
+
+        if (command == Command_t.GetStatus_e.getData() && (resetPending || chance(resetRate))) {
+            resetPending = false;
+            resets.incrementAndGet();
+            clearHistory();
+            resetSequenceNumber = sequenceNumber & 0xFF;
+            payload = payload.length > 0 ? payload.clone() : new byte[1];
+            payload[0] |= 0x01;     // justReset
+        }
+
+        byte[] telegram = new byte[PACKET_HEADER_SIZE + DATA_HEADER_SIZE + payload.length];
+        telegram[0] = protocol;
+        telegram[1] = (byte) ((ApplicationPort_t.Api_e.getData() << 3) | PacketType_t.Data_e.getData());
+        telegram[2] = sequenceNumber;
+        telegram[3] = address;
+        telegram[4] = destination;
+        telegram[5] = command;
+        telegram[6] = (byte) parameter;
+        telegram[7] = (byte) (parameter >> 8);
+        telegram[8] = (byte) payload.length;
+        telegram[9] = (byte) (payload.length >> 8);
+        System.arraycopy(payload, 0, telegram, PACKET_HEADER_SIZE + DATA_HEADER_SIZE, payload.length);
+
+        byte[] frame = new byte[EversysFrameEncoder.maxTelegramFrameLength(telegram.length)];
+        int length = EversysFrameEncoder.encodeTelegram(telegram, telegram.length, frame, 0);
+        return Arrays.copyOf(frame, length);
+    }
+
+    private void scheduleResponse(final byte[] frame) {
+        long delay = responseLatency;
+        long jitter = responseJitter;
+        if (jitter > 0)
+            delay += (long) (random.nextDouble() * jitter);
+
+        if (delay <= 0) {
+            sendResponse(frame);
+            return;
+        }
+        try {
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendResponse(frame);
+                }
+            }, delay, TimeUnit.MICROSECONDS);
+        } catch (Exception e) {
+            // stopped
+        }
+    }
+
+    private void sendResponse(byte[] frame) {
+        responsesSent.incrementAndGet();
+        write(frame, frame.length);
+    }
+
+    private void sendOrLoseAck(byte protocol, byte sequenceNumber, byte destination) {
+        if (chance(ackLossRate))
+            acksLost.incrementAndGet();
+        else
+            sendAck(PacketType_t.PosAck_e, protocol, sequenceNumber, destination);
+    }
+
+    private void sendAck(PacketType_t type, byte protocol, byte sequenceNumber, byte destination) {
+        byte[] frame = new byte[EversysFrameEncoder.maxAckFrameLength()];
+        int length = EversysFrameEncoder.encodeAck(type, sequenceNumber, address, destination, protocol, frame, 0);
+        if (type == PacketType_t.PosAck_e)
+            acksSent.incrementAndGet();
+        else
+            nacksSent.incrementAndGet();
+        write(frame, length);
+    }
+
+    /// <summary>
+    /// Writes the telegram; with corruptionRate one byte between SOH and EOT is changed.
+    /// </summary>
+    private void write(byte[] frame, int length) {
+        if (length > 2 && chance(corruptionRate)) {
+            corrupted.incrementAndGet();
+            frame = Arrays.copyOf(frame, length);
+            frame[1 + random.nextInt(length - 2)] ^= (byte) (1 + random.nextInt(255));
+        }
+        synchronized (writeLock) {
+            transport.write(frame, length);
+        }
+    }
+
+    private boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private int findHistory(byte command, byte sequenceNumber) {
+        int key = ((command & 0xFF) << 8) | (sequenceNumber & 0xFF);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            if (history[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    private void addHistory(byte command, byte sequenceNumber, byte[] response) {
+        history[historyNext] = ((command & 0xFF) << 8) | (sequenceNumber & 0xFF);
+        historyResponses[historyNext] = response;
+        historyNext = (historyNext + 1) % HISTORY_SIZE;
+    }
+
+    private void clearHistory() {
+        Arrays.fill(history, -1);
+        Arrays.fill(historyResponses, null);
+        historyNext = 0;
+    }
+}
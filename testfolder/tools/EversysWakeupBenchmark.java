@@ -0,0 +1,243 @@
+package com.dalkomm.beat.booth.manager.comm.serial;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.dalkomm.beat.booth.manager.comm.serial.EversysFrameDecoder.FramingError_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.ApplicationPort_t;
+import com.dalkomm.beat.booth.manager.comm.serial.EversysSerialComm.PacketType_t;
+
+/// <summary>
+/// Idle CPU and ack turnaround of the transmission thread, wake-on-work (EversysSerialComm) against the
+/// polling loop it replaced (sleep ThreadSleepTime, then look at the queues).
+///
+/// The benchmark plays the machine on one end of a LoopbackTransport. For each mode it first measures the
+/// CPU time of all threads of the host side while nothing is sent (idleMs), then sends data packets to the
+/// host one at a time and measures the time until the ack arrives (acks, a random 1 - 2 intervalUs apart,
+/// so the host is idle when each packet arrives and the arrivals are not in phase with the polling loop).
+///
+/// The polling mode is a model of the old TransmissionThreadWorker reduced to its timing: the receive
+/// thread queues the bytes, a worker which sleeps sleepMs between rounds takes them and writes the ack.
+/// Lives in the source folder tools/ with the other benchmarks; it is not part of the shipped engine.
+///
+/// Arguments (key=value, all optional):
+///   idleMs=5000 acks=2000 intervalUs=2000 sleepMs=1
+/// </summary>
+public class EversysWakeupBenchmark {
+
+    private static final byte HOST_ADDRESS = 0x20;
+    private static final byte MACHINE_ADDRESS = EversysMachineSimulator.DEFAULT_ADDRESS;
+
+    private final Map<String, String> options = new TreeMap<String, String>();
+
+    private EversysWakeupBenchmark(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("expected key=value : " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EversysWakeupBenchmark(args).run();
+    }
+
+    private long option(String key, long defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /// <summary>
+    /// Host end under test.
+    /// </summary>
+    private interface Host {
+        void start(SerialTransport transport);
+        void stop();
+    }
+
+    private void run() throws Exception {
+        System.out.println("options: " + options);
+        final long sleepMs = option("sleepMs", 1L);
+
+        measure("polling " + sleepMs + " ms", new Host() {
+            private PollingWorker worker;
+            public void start(SerialTransport transport) {
+                worker = new PollingWorker(transport, sleepMs);
+                worker.start();
+            }
+            public void stop() {
+                worker.stop();
+            }
+        });
+
+        measure("wake-on-work", new Host() {
+            private EversysSerialComm engine;
+            public void start(SerialTransport transport) {
+                engine = new EversysSerialComm();
+                engine.SerialComm(transport, 115200, HOST_ADDRESS);
+                engine.setCaptureDirectory(null);
+                engine.Start();
+            }
+            public void stop() {
+                engine.Dispose();
+            }
+        });
+    }
+
+    private void measure(String name, Host host) throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair("host", "machine");
+        final LinkedBlockingQueue<Long> acks = new LinkedBlockingQueue<Long>();
+        final EversysFrameDecoder decoder = new EversysFrameDecoder(64, new EversysFrameDecoder.FrameHandler() {
+            public byte[] frameReceived(byte[] frame, int length, short crcResidue) {
+                if (length >= 5 && (frame[1] & 0x07) == PacketType_t.PosAck_e.getData())
+                    acks.add(System.nanoTime());
+                return frame;
+            }
+            public void framingError(FramingError_t error, int discardedBytes) {
+            }
+        });
+        SerialTransport machine = pair[1];
+        machine.setDataListener(new SerialTransport.DataListener() {
+            public void dataReceived(byte[] buffer, int length) {
+                decoder.decode(buffer, 0, length);
+            }
+        });
+        machine.open();
+        host.start(pair[0]);
+        Thread.sleep(200);      // let the threads start and settle
+
+        // idle CPU of every thread except this one
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long idleMs = option("idleMs", 5000L);
+        long before = cpuNanos(threads);
+        long start = System.nanoTime();
+        Thread.sleep(idleMs);
+        double elapsed = System.nanoTime() - start;
+        double cpu = cpuNanos(threads) - before;
+
+        // ack turnaround
+        int count = (int) option("acks", 2000L);
+        long interval = TimeUnit.MICROSECONDS.toNanos(option("intervalUs", 2000L));
+        LatencyHistogram latency = new LatencyHistogram();
+        Random random = new Random(1);
+        int lost = 0;
+        byte[] frame = new byte[EversysFrameEncoder.maxTelegramFrameLength(10)];
+        for (int i = 0; i < count; i++) {
+            int length = EversysFrameEncoder.encodeTelegram(dataTelegram((byte) i), 10, frame, 0);
+            long sent = System.nanoTime();
+            machine.write(frame, length);
+            Long received = acks.poll(1, TimeUnit.SECONDS);
+            if (received == null)
+                lost++;
+            else
+                latency.record(received - sent);
+            LockSupport.parkNanos(interval + (long) (random.nextDouble() * interval));
+        }
+
+        host.stop();
+        machine.close();
+
+        System.out.println(String.format("%-16s idle cpu %7.2f ms/s (%.3f%% of a core)   ack us: p50=%.1f p99=%.1f max=%.1f lost=%d",
+                name, cpu / elapsed * 1000, cpu / elapsed * 100,
+                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                latency.getMax() / 1000.0, lost));
+    }
+
+    /// <summary>
+    /// Data packet of the machine to the host without payload.
+    /// </summary>
+    private static byte[] dataTelegram(byte sequenceNumber) {
+        byte[] telegram = new byte[10];
+        telegram[0] = 0;
+        telegram[1] = (byte) ((ApplicationPort_t.Api_e.getData() << 3) | PacketType_t.Data_e.getData());
+        telegram[2] = sequenceNumber;
+        telegram[3] = MACHINE_ADDRESS;
+        telegram[4] = HOST_ADDRESS;
+        telegram[5] = 0x01;
+        return telegram;
+    }
+
+    private static long cpuNanos(ThreadMXBean threads) {
+        long self = Thread.currentThread().getId();
+        long sum = 0;
+        for (long id : threads.getAllThreadIds()) {
+            if (id == self)
+                continue;
+            long nanos = threads.getThreadCpuTime(id);
+            if (nanos > 0)
+                sum += nanos;
+        }
+        return sum;
+    }
+
+    /// <summary>
+    /// The old worker loop: every sleepMs it takes the received bytes and acks the data packets.
+    /// </summary>
+    private static class PollingWorker implements Runnable {
+        private final SerialTransport transport;
+        private final long sleepMs;
+        private final ConcurrentLinkedQueue<byte[]> received = new ConcurrentLinkedQueue<byte[]>();
+        private final EversysFrameDecoder decoder;
+        private final byte[] ack = new byte[EversysFrameEncoder.maxAckFrameLength()];
+        private volatile boolean stop = false;
+        private Thread thread;
+
+        PollingWorker(final SerialTransport transport, long sleepMs) {
+            this.transport = transport;
+            this.sleepMs = sleepMs;
+            this.decoder = new EversysFrameDecoder(64, new EversysFrameDecoder.FrameHandler() {
+                public byte[] frameReceived(byte[] frame, int length, short crcResidue) {
+                    int n = EversysFrameEncoder.encodeAck(PacketType_t.PosAck_e, frame[2], HOST_ADDRESS, frame[3], (byte) 0, ack, 0);
+                    transport.write(ack, n);
+                    return frame;
+                }
+                public void framingError(FramingError_t error, int discardedBytes) {
+                }
+            });
+        }
+
+        void start() {
+            transport.setDataListener(new SerialTransport.DataListener() {
+                public void dataReceived(byte[] buffer, int length) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(buffer, 0, copy, 0, length);
+                    received.add(copy);
+                }
+            });
+            transport.open();
+            thread = new Thread(this, "polling-worker");
+            thread.start();
+        }
+
+        public void run() {
+            while (!stop) {
+                byte[] bytes;
+                while ((bytes = received.poll()) != null)
+                    decoder.decode(bytes, 0, bytes.length);
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() {
+            stop = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            transport.close();
+        }
+    }
+}